@@ -16,23 +16,28 @@
 
 package self.philbrown.css;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import self.philbrown.cssparser.ParserConstants;
+import self.philbrown.cssparser.Scanner;
 import self.philbrown.cssparser.Token;
 import self.philbrown.cssparser.TokenSequence;
 import self.philbrown.droidQuery.$;
-import self.philbrown.droidQuery.Function;
 import android.content.Context;
 import android.util.Log;
 import android.view.View;
 
 /**
- * 
+ * Selects views using CSS selectors. Selectors are {@link #compile(String) compiled} once into a
+ * {@link Selector}, with class names resolved ahead of time, and cached by selector string. A selection
+ * is then made in a single traversal of the view hierarchy.
  * @author Phil Brown
  * @since 1:39:29 PM Dec 3, 2013
  *
@@ -83,7 +88,7 @@ import android.view.View;
  * 	<tr>
  * 		<td>[attribute~=value]</td>
  * 		<td>[text~=flower]</td>
- * 		<td>Selects all elements with a <i>text</i> attribute containing the word "flower". This is the same as <i>[attribute*=value]</i></td>
+ * 		<td>Selects all elements with a <i>text</i> attribute containing the word "flower".</td>
  * 		<td>2</td>
  * 	</tr>
  * 	<tr>
@@ -101,7 +106,7 @@ import android.view.View;
  * 	<tr>
  * 		<td>[attribute*=value]</td>
  * 		<td>[text*=flower]</td>
- * 		<td>Selects all elements with a <i>text</i> attribute containing the word "flower". This is the same as <i>[attribute~=value]</i></td>
+ * 		<td>Selects all elements with a <i>text</i> attribute containing "flower".</td>
  * 		<td>3</td>
  * 	</tr>
  * 	<tr>
@@ -221,7 +226,7 @@ import android.view.View;
  * 	<tr>
  * 		<td>:not(selector)</td>
  * 		<td>:not(Button)</td>
- * 		<td>Selects every element that is not a <i>Button</i> element.</td>
+ * 		<td>Selects every element that does not match the selector. Here, every element that is not a <i>Button</i> element.</td>
  * 		<td>3</td>
  * 	</tr>
  * 	<tr>
@@ -310,25 +315,43 @@ import android.view.View;
  */
 public class CSSSelector implements ParserConstants
 {
-	private static Token DOT_TOKEN = new Token(DOT);
-	private static Token HASH_TOKEN = new Token(HASH);
-	private static Token TIMES_TOKEN = new Token(TIMES);
-	private static Token LEFTSQ_TOKEN = new Token(LEFTSQ);
-	private static Token DBL_COLON_TOKEN = new Token(DOUBLE_COLON);
-	private static Token COLON_TOKEN = new Token(COLON);
-	private static Token COMMA_TOKEN = new Token(COMMA);
-	private static Token SPACE_TOKEN = new Token(SPACE);
-	private static Token GT_TOKEN = new Token(GT);
+	/** The maximum number of compiled selectors to cache */
+	private static final int CACHE_SIZE = 256;
+	
+	/** Compiled selectors, by selector string */
+	private static Map<String, Selector> compiled = new LinkedHashMap<String, Selector>(0, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Selector> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
 	
-	private static Token EQ = new Token(EQUAL);
-	private static Token OR_EQ = new Token(OR_EQUAL);
-	private static Token CARET_EQ = new Token(CARET_EQUAL);
-	private static Token NOT_EQ = new Token(NOT_EQUAL);
-	private static Token TIMES_EQ = new Token(TIMES_EQUAL);
-	private static Token DOLLAR_EQ = new Token(DOLLAR_EQUAL);
+	/** Resolved classes, by the class name used in a selector. {@code null} for names that could not be resolved. */
+	private static Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
 	
-	private static Token LEFTPAREN_TOKEN = new Token(LEFTPAREN);
-	private static Token RIGHTPAREN_TOKEN = new Token(RIGHTPAREN);
+	/** The pseudo-classes that match views, by name */
+	private static Map<String, Integer> pseudoClasses = new HashMap<String, Integer>();
+	static
+	{
+		pseudoClasses.put("first-child", Selector.PseudoMatcher.FIRST_CHILD);
+		pseudoClasses.put("last-child", Selector.PseudoMatcher.LAST_CHILD);
+		pseudoClasses.put("nth-child", Selector.PseudoMatcher.NTH_CHILD);
+		pseudoClasses.put("nth-last-child", Selector.PseudoMatcher.NTH_LAST_CHILD);
+		pseudoClasses.put("only-child", Selector.PseudoMatcher.ONLY_CHILD);
+		pseudoClasses.put("first-of-type", Selector.PseudoMatcher.FIRST_OF_TYPE);
+		pseudoClasses.put("last-of-type", Selector.PseudoMatcher.LAST_OF_TYPE);
+		pseudoClasses.put("nth-of-type", Selector.PseudoMatcher.NTH_OF_TYPE);
+		pseudoClasses.put("nth-last-of-type", Selector.PseudoMatcher.NTH_LAST_OF_TYPE);
+		pseudoClasses.put("only-of-type", Selector.PseudoMatcher.ONLY_OF_TYPE);
+		pseudoClasses.put("root", Selector.PseudoMatcher.ROOT);
+		pseudoClasses.put("empty", Selector.PseudoMatcher.EMPTY);
+		pseudoClasses.put("enabled", Selector.PseudoMatcher.ENABLED);
+		pseudoClasses.put("disabled", Selector.PseudoMatcher.DISABLED);
+		pseudoClasses.put("checked", Selector.PseudoMatcher.CHECKED);
+		pseudoClasses.put("focus", Selector.PseudoMatcher.FOCUS);
+		pseudoClasses.put("selection", Selector.PseudoMatcher.SELECTION);
+	}
 	
 	public $ makeSelection(Context context, TokenSequence selector)
 	{
@@ -337,906 +360,522 @@ public class CSSSelector implements ParserConstants
 	
 	public $ makeSelection(View parent, TokenSequence selector)
 	{
-		return makeSelection($.with(parent.getContext()), selector);
+		return makeSelection($.with(parent), selector);
 	}
 	
 	public $ makeSelection($ droidQuery, TokenSequence selector)
 	{
-		//### class selector
-		if (selector.startsWith(DOT_TOKEN))
+		return makeSelection(droidQuery, compile(selector));
+	}
+	
+	/**
+	 * Select the views that match a selector, using the {@link #compile(String) compiled selector cache}
+	 * @param context the context. The selection is made in the content view of an Activity.
+	 * @param selector the selector
+	 * @return the selection
+	 */
+	public $ makeSelection(Context context, String selector)
+	{
+		return makeSelection($.with(context), compile(selector));
+	}
+	
+	/**
+	 * Select the views that match a selector, using the {@link #compile(String) compiled selector cache}
+	 * @param parent the root of the view hierarchy to select from
+	 * @param selector the selector
+	 * @return the selection
+	 */
+	public $ makeSelection(View parent, String selector)
+	{
+		return makeSelection($.with(parent), compile(selector));
+	}
+	
+	/**
+	 * Select the views that match a compiled selector, in a single traversal of the view hierarchies
+	 * of the selected views. If the selector ends with {@code :first-letter} or {@code :first-line}, the
+	 * {@link $#data() data} of the selection is set to the first letter or line of the text of each selected view.
+	 * @param droidQuery the roots of the view hierarchies to select from
+	 * @param selector the selector
+	 * @return the selection
+	 */
+	public $ makeSelection($ droidQuery, Selector selector)
+	{
+		List<View> roots = new ArrayList<View>(droidQuery.size());
+		for (int i = 0; i < droidQuery.size(); i++)
 		{
-			TokenSequence sel = selector.subSequence(1);
-			if (sel == null) sel = new TokenSequence(new ArrayList<Token>(), null);
-			if (sel.contains(new Token(DOT, null)))
-			{
-				//expected that the full class is provided
-				droidQuery.selectByType(sel.toString());
-			}
-			else
+			roots.add(droidQuery.view(i));
+		}
+		$ selection = $.with(droidQuery.context(), selector.select(roots));
+		String pseudoElement = selector.pseudoElement();
+		if (pseudoElement != null)
+		{
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < selection.size(); i++)
 			{
-				//check android.view
-				try {
-					Class<?> clazz = Class.forName(String.format(Locale.US, "android.view%s", selector.toString()));
-					droidQuery.selectByType(clazz);
-				}
-				catch (Throwable t)
-				{
-					//check android.widget
-					try {
-						Class<?> clazz = Class.forName(String.format(Locale.US, "android.widget%s", selector.toString()));
-						droidQuery.selectByType(clazz);
-					}
-					catch (Throwable t2)
-					{
-						//check android.webkit
-						try {
-							Class<?> clazz = Class.forName(String.format(Locale.US, "android.webkit%s", selector.toString()));
-							droidQuery.selectByType(clazz);
-						}
-						catch (Throwable t3)
-						{
-							//could not select class
-							Log.w("droidQuery", String.format(Locale.US, "Could not select class %s.", sel.toString()));
-						}
-					}
-				}
-				
+				Object text = $.with(selection.view(i)).attr("text");
+				if (text == null || text.toString().length() == 0)
+					continue;
+				if (pseudoElement.equals("first-letter"))
+					builder.append(text.toString().charAt(0));
+				else
+					builder.append(text.toString().split("\n")[0]);
 			}
-			
-			
+			selection.data(builder.toString());
+		}
+		return selection;
+	}
+	
+	/**
+	 * Compile a selector. Compiled selectors are cached by selector string, so compiling the same
+	 * selector again is a map lookup.
+	 * @param selector the selector
+	 * @return the compiled selector. If the selector is invalid, this selector matches nothing.
+	 */
+	public static Selector compile(String selector)
+	{
+		synchronized (compiled)
+		{
+			Selector s = compiled.get(selector);
+			if (s != null)
+				return s;
+		}
+		Selector s;
+		try
+		{
+			s = compile(tokenize(selector), selector, false);
+		}
+		catch (IOException e)
+		{
+			Log.w("droidQuery", String.format(Locale.US, "Invalid css selector: %s", selector));
+			s = new Selector(new Selector.Complex[0], null);
 		}
-		//### id selector
-		else if (selector.startsWith(HASH_TOKEN))
+		synchronized (compiled)
+		{
+			compiled.put(selector, s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Compile a parsed selector, such as the selector of a {@link self.philbrown.cssparser.RuleSet RuleSet}.
+	 * These are cached by their tokens. The CSS parser does not keep white space, so a type selector
+	 * (or {@code *}) directly following a complete compound selector is read as a descendant combinator,
+	 * as in {@code LinearLayout Button}.
+	 * @param selector the selector
+	 * @return the compiled selector. If the selector is invalid, this selector matches nothing.
+	 */
+	public static Selector compile(TokenSequence selector)
+	{
+		StringBuilder key = new StringBuilder("\u0000");
+		for (Token token : selector)
+		{
+			key.append(token.tokenCode).append(' ').append(token.toString()).append(' ');
+		}
+		String k = key.toString();
+		synchronized (compiled)
+		{
+			Selector s = compiled.get(k);
+			if (s != null)
+				return s;
+		}
+		Selector s = compile(selector.getTokens(), selector.toString(), true);
+		synchronized (compiled)
+		{
+			compiled.put(k, s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Split a selector into tokens. Unlike {@link TokenSequence#parse(String)}, white space is kept, since
+	 * it is the descendant combinator. Each run of white space becomes a single {@link #SPACE} token.
+	 * @param selector the selector
+	 * @return the tokens
+	 * @throws IOException if the selector cannot be read
+	 */
+	private static List<Token> tokenize(String selector) throws IOException
+	{
+		//the scanner only reports spaces as white space
+		String text = selector.trim().replaceAll("\\s+", " ");
+		Scanner scanner = new Scanner(new ByteArrayInputStream(text.getBytes("UTF-8")));
+		List<Token> tokens = new ArrayList<Token>();
+		Token token = scanner.nextToken(false);
+		while (token.tokenCode != EOF)
+		{
+			if (token.tokenCode != SPACE || tokens.isEmpty() || tokens.get(tokens.size()-1).tokenCode != SPACE)
+				tokens.add(token);
+			token = scanner.nextToken(false);
+		}
+		return tokens;
+	}
+	
+	/**
+	 * Compile the tokens of a selector
+	 * @param tokens the tokens
+	 * @param text the selector, used for log messages
+	 * @param inferDescendants {@code true} if the tokens have no white space, so descendant combinators
+	 * must be inferred
+	 * @return the compiled selector. If the selector is invalid, this selector matches nothing.
+	 */
+	private static Selector compile(List<Token> tokens, String text, boolean inferDescendants)
+	{
+		try
+		{
+			return new Compiler(tokens, inferDescendants).selector();
+		}
+		catch (IllegalArgumentException e)
+		{
+			Log.w("droidQuery", String.format(Locale.US, "Invalid css selector %s (%s).", text, e.getMessage()));
+			return new Selector(new Selector.Complex[0], null);
+		}
+	}
+	
+	/**
+	 * Resolve a class name used in a selector. Names without a package are looked up in {@code android.view},
+	 * {@code android.widget} and {@code android.webkit}. Results are cached.
+	 * @param name the class name
+	 * @return the class, or {@code null} if it could not be found.
+	 */
+	private static Class<?> resolveClass(String name)
+	{
+		synchronized (classes)
+		{
+			if (classes.containsKey(name))
+				return classes.get(name);
+		}
+		Class<?> clazz = null;
+		String[] candidates;
+		if (name.contains("."))
+			candidates = new String[]{name};
+		else
+			candidates = new String[]{"android.view." + name, "android.widget." + name, "android.webkit." + name};
+		for (String candidate : candidates)
 		{
-			String classname = "";
 			try
 			{
-				classname = String.format(Locale.US, "%s.R.id", droidQuery.context().getPackageName());
-				Class<?> clazz = Class.forName(classname);
-				TokenSequence sel = selector.subSequence(1);
-				if (sel == null) sel = new TokenSequence(new ArrayList<Token>(), null);
-				try
-				{
-					Field f = clazz.getField(sel.toString());
-					int id = (Integer) f.get(null);
-					droidQuery.id(id);
-				}
-				catch (Throwable t)
-				{
-					Log.w("droidQuery", String.format(Locale.US, "No resource found for R.id.%s", sel.toString()));
-				}
+				clazz = Class.forName(candidate);
+				break;
 			}
-			catch (Throwable t)
+			catch (ClassNotFoundException e)
 			{
-				Log.w("droidQuery", String.format(Locale.US, "No class found for %s", classname));
+				//try the next package
 			}
 		}
-		//### all selector
-		else if (selector.equals(TIMES_TOKEN))
+		if (clazz == null)
+			Log.w("droidQuery", String.format(Locale.US, "Could not select class %s.", name));
+		synchronized (classes)
 		{
-			droidQuery.selectAll();
+			classes.put(name, clazz);
 		}
-		//### attribute selectors. Added for android: attributes can be named like: @color/green
-		else if (selector.startsWith(LEFTSQ_TOKEN))
+		return clazz;
+	}
+	
+	/**
+	 * Compiles the tokens of one selector. White space is only significant as the descendant combinator,
+	 * and is skipped around the other combinators, commas, parentheses and brackets. Tokens from the CSS
+	 * parser have no white space, so for those a descendant combinator is recognized as a type selector
+	 * (or {@code *}) directly following a complete compound selector.
+	 */
+	private static class Compiler
+	{
+		/** The tokens */
+		private List<Token> tokens;
+		/** The index of the next token */
+		private int position;
+		/** The pseudo-element that ends the selector, if any */
+		private String pseudoElement;
+		/** Whether descendant combinators are inferred, since the tokens have no white space */
+		private boolean inferDescendants;
+		
+		public Compiler(List<Token> tokens, boolean inferDescendants)
 		{
-			if (!selector.endsWith(new Token(RIGHTSQ)))
-			{
-				Log.w("droidQuery", String.format(Locale.US, "Invalid css selector: %s", selector.toString()));
-				return droidQuery;
-			}
-			TokenSequence sel = selector.subSequence(1, selector.length()-1);
-			
-			List<View> selection = new ArrayList<View>();
-			
-			//### startsWith (|=)
-			if (sel.contains(OR_EQ))
-			{
-				TokenSequence[] split = sel.split(OR_EQ);
-				TokenSequence attribute = split[0];
-				TokenSequence value = split[1];
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
-				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						if (val.toString().startsWith(value.toString()))
-						{
-							selection.add(v);
-						}
-					}
-				}
-				
-				droidQuery = $.with(selection);
-				
-			}
-			//### startsWith (^=)
-			else if (sel.contains(CARET_EQ))
-			{
-				TokenSequence[] split = sel.split(CARET_EQ);
-				TokenSequence attribute = split[0];
-				TokenSequence value = split[1];
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
-				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						if (val.toString().startsWith(value.toString()))
-						{
-							selection.add(v);
-						}
-					}
-				}
-				
-				droidQuery = $.with(selection);
-				
-			}
-			//### contains (~=)
-			else if (sel.contains(NOT_EQ))
+			this.tokens = tokens;
+			this.inferDescendants = inferDescendants;
+		}
+		
+		/**
+		 * Compile the whole selector
+		 * @return the compiled selector
+		 */
+		public Selector selector()
+		{
+			Selector selector = list();
+			if (position < tokens.size())
+				throw new IllegalArgumentException("unexpected " + tokens.get(position).toString());
+			return selector;
+		}
+		
+		/**
+		 * Compile comma-separated selectors, up to the end of the tokens or a closing parenthesis
+		 * @return the compiled selectors
+		 */
+		private Selector list()
+		{
+			List<Selector.Complex> complexes = new ArrayList<Selector.Complex>();
+			accept(SPACE);
+			complexes.add(complex());
+			while (accept(COMMA))
 			{
-				TokenSequence[] split = sel.split(NOT_EQ);
-				TokenSequence attribute = split[0];
-				TokenSequence value = split[1];
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
-				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						if (value.toString().contains(val.toString()))
-						{
-							selection.add(v);
-						}
-					}
-				}
-				
-				droidQuery = $.with(selection);
+				accept(SPACE);
+				complexes.add(complex());
 			}
-			//### contains (*=)
-			else if (sel.contains(TIMES_EQ))
+			return new Selector(complexes.toArray(new Selector.Complex[complexes.size()]), pseudoElement);
+		}
+		
+		/**
+		 * Compile compound selectors separated by combinators
+		 * @return the compiled selector
+		 */
+		private Selector.Complex complex()
+		{
+			List<Selector.Compound> compounds = new ArrayList<Selector.Compound>();
+			List<Integer> combinators = new ArrayList<Integer>();
+			compounds.add(compound());
+			while (position < tokens.size())
 			{
-				TokenSequence[] split = sel.split(TIMES_EQ);
-				TokenSequence attribute = split[0];
-				TokenSequence value = split[1];
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
+				boolean space = accept(SPACE);
+				if (position >= tokens.size())
+					break;
+				int next = peek();
+				if (next == COMMA || next == RIGHTPAREN)
+					break;
+				if (pseudoElement != null)
+					throw new IllegalArgumentException("pseudo-element must be last");
+				if (accept(GT))
 				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						if (value.toString().contains(val.toString()))
-						{
-							selection.add(v);
-						}
-					}
+					accept(SPACE);
+					combinators.add(Selector.CHILD);
 				}
-				
-				droidQuery = $.with(selection);
-			}
-			//### equals
-			else if (sel.contains(EQ))
-			{
-				TokenSequence[] split = sel.split(EQ);
-				TokenSequence attribute = split[0];
-				TokenSequence value = split[1];
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
+				else if (space || (inferDescendants && (next == IDENTIFIER || next == TIMES)))
 				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						if (val.toString().equals(value.toString()))
-						{
-							selection.add(v);
-						}
-					}
+					combinators.add(Selector.DESCENDANT);
 				}
-				
-				droidQuery = $.with(selection);
-			}
-			//### ends with
-			else if (sel.contains(DOLLAR_EQ))
-			{
-				TokenSequence[] split = sel.split(DOLLAR_EQ);
-				TokenSequence attribute = split[0];
-				TokenSequence value = split[1];
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
+				else
 				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						if (val.toString().endsWith(value.toString()))
-						{
-							selection.add(v);
-						}
-					}
+					throw new IllegalArgumentException("unexpected " + tokens.get(position).toString());
 				}
-				
-				droidQuery = $.with(selection);
+				compounds.add(compound());
 			}
-			//### has attribute
-			else
+			int[] array = new int[combinators.size()];
+			for (int i = 0; i < array.length; i++)
 			{
-				TokenSequence attribute = sel;
-				$ d = $.with(droidQuery.view(0)).selectAll();
-				for (int i = 0; i < d.size(); i++)
-				{
-					View v = d.view(i);
-					Object val = null;
-					try {
-						//check getters
-						Method m = v.getClass().getMethod(String.format("get%s", capitalize(attribute.toString())));
-						val = m.invoke(v);
-					}
-					catch (Throwable t)
-					{
-						try {
-							//check fields
-							Field f = v.getClass().getField(attribute.toString());
-							val = f.get(v);
-						}
-						catch (Throwable t2)
-						{
-							//don't print
-						}
-					}
-					if (val != null)
-					{
-						selection.add(v);
-					}
-				}
-				
-				droidQuery = $.with(selection);
+				array[i] = combinators.get(i);
 			}
-			
+			return new Selector.Complex(compounds.toArray(new Selector.Compound[compounds.size()]), array);
 		}
-		else if (selector.contains(COLON_TOKEN) || selector.contains(DBL_COLON_TOKEN))
+		
+		/**
+		 * Compile simple selectors that apply to one view
+		 * @return the compiled selector
+		 */
+		private Selector.Compound compound()
 		{
-			if (selector.startsWith(COLON_TOKEN) || selector.contains(DBL_COLON_TOKEN))
+			List<Selector.Matcher> matchers = new ArrayList<Selector.Matcher>();
+			Class<?> type = null;
+			int start = position;
+			if (accept(TIMES))
 			{
-				TokenSequence sel = null;
-				if (selector.contains(COLON_TOKEN))
-					sel = selector.subSequence(1);
-				else
-					sel = selector.subSequence(2);
-				
-				if (sel.equals("first-child"))
-				{
-					return droidQuery.selectNthChilds(0);
-				}
-				else if (sel.startsWith("nth-child"))
-				{
-					if (sel.contains(LEFTPAREN_TOKEN) && sel.contains(RIGHTPAREN_TOKEN))
-					{
-						TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-						int n = 0;
-						try
-						{
-							n = Integer.parseInt(_sel.toString());
-						}
-						catch (Throwable t)
-						{
-							Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-						}
-						n = n-1;
-						if (n < 0)
-							n = 0;
-						return droidQuery.selectNthChilds(n);
-					}
-					else
-					{
-						//not a valid format.
-						Log.w("CSS", "Invalid selector " + selector.toString());
-					}
-					
-				}
-				else if (sel.startsWith("nth-last-child"))
-				{
-					if (sel.contains(LEFTPAREN_TOKEN) && sel.contains(RIGHTPAREN_TOKEN))
-					{
-						TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-						int n = 0;
-						try
-						{
-							n = Integer.parseInt(_sel.toString());
-						}
-						catch (Throwable t)
-						{
-							Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-						}
-						n = n-1;
-						if (n < 0)
-							n = 0;
-						return droidQuery.selectNthFromEndChilds(n);
-					}
-					else
-					{
-						//not a valid format.
-						Log.w("CSS", "Invalid selector " + selector.toString());
-					}
-				}
-				else if (sel.equals("last-child"))
-				{
-					if (sel.contains(LEFTPAREN_TOKEN) && sel.contains(RIGHTPAREN_TOKEN))
-					{
-						TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-						int n = 0;
-						try
-						{
-							n = Integer.parseInt(_sel.toString());
-						}
-						catch (Throwable t)
-						{
-							Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-						}
-						n = n-1;
-						if (n < 0)
-							n = 0;
-						return droidQuery.selectLastChilds(n);
-					}
-					else
-					{
-						//not a valid format.
-						Log.w("CSS", "Invalid selector " + selector.toString());
-					}
-				}
+				//matches all views
 			}
-			
-			TokenSequence[] split = selector.splitOnAny(new Token[]{COLON_TOKEN, DBL_COLON_TOKEN});
-			
-			TokenSequence sel = split[1];
-			if (split.length == 2)
+			else if (position < tokens.size() && (peek() == IDENTIFIER || peek() == DOT))
 			{
-				if (sel.equals("first-child"))
-				{
-					droidQuery.selectNthChilds(0);
-					return makeSelection(droidQuery, split[0]);
-				}
-				else if (sel.equals("first-of-type"))
-				{
-					return droidQuery.selectNthChildsOfType(0, split[0].toString());
-				}
-				else if (sel.equals("last-of-type"))
-				{
-					return droidQuery.selectNthFromEndChildsOfType(0, split[0].toString());
-				}
-				else if (sel.startsWith("nth-child"))
+				type = type(matchers);
+			}
+			while (position < tokens.size())
+			{
+				int next = peek();
+				if (next == DOT)
 				{
-					if (sel.contains(LEFTPAREN_TOKEN) && sel.contains(RIGHTPAREN_TOKEN))
-					{
-						TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-						int n = 0;
-						try
-						{
-							n = Integer.parseInt(_sel.toString());
-						}
-						catch (Throwable t)
-						{
-							Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-						}
-						n = n-1;
-						if (n < 0)
-							n = 0;
-						droidQuery.selectNthChilds(n);
-						return makeSelection(droidQuery, split[0]);
-					}
-					else
-					{
-						//not a valid format.
-						Log.w("CSS", "Invalid selector " + selector.toString());
-					}
-					
+					type = type(matchers);
 				}
-				else if (sel.startsWith("nth-last-child"))
+				else if (accept(HASH))
 				{
-					if (sel.contains(LEFTPAREN_TOKEN) && sel.contains(RIGHTPAREN_TOKEN))
-					{
-						TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-						int n = 0;
-						try
-						{
-							n = Integer.parseInt(_sel.toString());
-						}
-						catch (Throwable t)
-						{
-							Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-						}
-						n = n-1;
-						if (n < 0)
-							n = 0;
-						droidQuery.selectNthFromEndChilds(n);
-						return makeSelection(droidQuery, split[0]);
-					}
-					else
-					{
-						//not a valid format.
-						Log.w("CSS", "Invalid selector " + selector.toString());
-					}
+					matchers.add(new Selector.IdMatcher(name()));
 				}
-				else if (sel.startsWith("nth-of-type"))
+				else if (accept(LEFTSQ))
 				{
-					TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-					int n = 0;
-					try
-					{
-						n = Integer.parseInt(_sel.toString());
-					}
-					catch (Throwable t)
-					{
-						Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-					}
-					n = n-1;
-					if (n < 0)
-						n = 0;
-					return droidQuery.selectNthChildsOfType(n, split[0].toString());
+					matchers.add(attribute());
 				}
-				else if (sel.startsWith("nth-last-of-type"))
+				else if (next == COLON || next == DOUBLE_COLON)
 				{
-					TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-					int n = 0;
-					try
-					{
-						n = Integer.parseInt(_sel.toString());
-					}
-					catch (Throwable t)
-					{
-						Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-					}
-					n = n-1;
-					if (n < 0)
-						n = 0;
-					return droidQuery.selectNthChildsOfType(n, split[0].toString());
+					position++;
+					Selector.Matcher pseudo = pseudo(type);
+					if (pseudo != null)
+						matchers.add(pseudo);
 				}
-				else if (sel.equals("last-child"))
+				else
 				{
-					if (sel.contains(LEFTPAREN_TOKEN) && sel.contains(RIGHTPAREN_TOKEN))
-					{
-						TokenSequence _sel = sel.subSequence(sel.indexOf(LEFTPAREN_TOKEN), sel.indexOf(RIGHTPAREN_TOKEN));
-						int n = 0;
-						try
-						{
-							n = Integer.parseInt(_sel.toString());
-						}
-						catch (Throwable t)
-						{
-							Log.w("CSS", String.format(Locale.US, "Invalid selector %s (can't parse Integer \"%s\").", selector.toString(), _sel.toString()));
-						}
-						n = n-1;
-						if (n < 0)
-							n = 0;
-						droidQuery.selectLastChilds(n);
-						return makeSelection(droidQuery, split[0]);
-					}
-					else
-					{
-						//not a valid format.
-						Log.w("CSS", "Invalid selector " + selector.toString());
-					}
+					break;
 				}
-				//first handle first half
-				makeSelection(droidQuery, split[0]);
 			}
-			
-			
-			if (sel.equals("focus"))
-			{
-				droidQuery.selectFocused();
-			}
-			else if (sel.equals("selection"))
-			{
-				droidQuery.selectSelected();
-			}
-			else if (sel.equals("first-letter"))
-			{
-				//sets this droidQuery object's data Object to the first letter of every element in selection.
-				final StringBuilder builder = new StringBuilder();
-				droidQuery.each(new Function() {
-					
-					@Override
-					public void invoke($ droidQuery, Object... params) {
-						Object text = droidQuery.attr("text");
-						if (text != null)
-							builder.append(text.toString().charAt(0));
-					}
-				});
-				droidQuery.data(builder.toString());
-			}
-			else if (sel.equals("first-line"))
+			if (position == start)
+				throw new IllegalArgumentException(position < tokens.size() ? "unexpected " + tokens.get(position).toString() : "missing selector");
+			return new Selector.Compound(matchers.toArray(new Selector.Matcher[matchers.size()]));
+		}
+		
+		/**
+		 * Compile a class name, such as {@code TextView}, {@code .TextView} or {@code com.example.MyView}
+		 * @param matchers receives the matcher
+		 * @return the class, or {@code null} if it could not be resolved.
+		 */
+		private Class<?> type(List<Selector.Matcher> matchers)
+		{
+			accept(DOT);
+			StringBuilder name = new StringBuilder(expect(IDENTIFIER).attribute);
+			while (accept(DOT))
 			{
-				//sets this droidQuery object's data Object to the first line of every element in selection.
-				final StringBuilder builder = new StringBuilder();
-				droidQuery.each(new Function() {
-					
-					@Override
-					public void invoke($ droidQuery, Object... params) {
-						Object text = droidQuery.attr("text");
-						if (text != null)
-							builder.append(text.toString().split("\n")[0]);
-					}
-				});
-				droidQuery.data(builder.toString());
+				name.append('.').append(expect(IDENTIFIER).attribute);
 			}
-			else if (sel.equals("only-child"))
+			Class<?> clazz = resolveClass(name.toString());
+			matchers.add(clazz == null ? Selector.NONE : new Selector.TypeMatcher(clazz));
+			return clazz;
+		}
+		
+		/**
+		 * Compile an attribute selector, after its opening bracket
+		 * @return the matcher
+		 */
+		private Selector.Matcher attribute()
+		{
+			accept(SPACE);
+			String attribute = name();
+			accept(SPACE);
+			if (accept(RIGHTSQ))
+				return new Selector.AttributeMatcher(attribute, Selector.AttributeMatcher.EXISTS, null);
+			int operator;
+			switch (position < tokens.size() ? tokens.get(position++).tokenCode : -1)
 			{
-				droidQuery.selectOnlyChilds();
+				case EQUAL :
+					operator = Selector.AttributeMatcher.EQUALS;
+					break;
+				case OR_EQUAL :
+				case CARET_EQUAL :
+					operator = Selector.AttributeMatcher.STARTS_WITH;
+					break;
+				case DOLLAR_EQUAL :
+					operator = Selector.AttributeMatcher.ENDS_WITH;
+					break;
+				case TIMES_EQUAL :
+					operator = Selector.AttributeMatcher.CONTAINS;
+					break;
+				case NOT_EQUAL :
+					operator = Selector.AttributeMatcher.CONTAINS_WORD;
+					break;
+				default :
+					throw new IllegalArgumentException("invalid attribute selector");
 			}
-			
-			else if (sel.equals("root"))
+			accept(SPACE);
+			StringBuilder value = new StringBuilder();
+			while (!accept(RIGHTSQ))
 			{
-				droidQuery = $.with(droidQuery.context());
+				if (position >= tokens.size())
+					throw new IllegalArgumentException("missing ]");
+				value.append(tokens.get(position++).toString());
 			}
-			else if (sel.equals("empty"))
+			return new Selector.AttributeMatcher(attribute, operator, value.toString().trim());
+		}
+		
+		/**
+		 * Compile a pseudo-class or pseudo-element, after its colon
+		 * @param type the class of the compound selector, used by the {@code of-type} pseudo-classes
+		 * @return the matcher, or {@code null} for a pseudo-element
+		 */
+		private Selector.Matcher pseudo(Class<?> type)
+		{
+			String name = name();
+			if (name.equals("first-letter") || name.equals("first-line"))
 			{
-				droidQuery.selectEmpties();
+				pseudoElement = name;
+				return null;
 			}
-			else if (sel.equals("enabled"))
+			if (name.equals("not"))
 			{
-				final List<View> list = new ArrayList<View>();
-				droidQuery.each(new Function() {
-					
-					@Override
-					public void invoke($ droidQuery, Object... params) {
-						View view = droidQuery.view(0);
-						if (view.isEnabled())
-							list.add(view);
-					}
-				});
-				if (!list.isEmpty())
-				{
-					droidQuery = $.with(list);
-				}
-				else
-				{
-					Log.w("CSS", "null Selection not allowed");
-				}
+				expect(LEFTPAREN);
+				Selector selector = list();
+				expect(RIGHTPAREN);
+				return new Selector.NotMatcher(selector);
 			}
-			else if (sel.equals("disabled"))
+			Integer kind = pseudoClasses.get(name);
+			if (kind == null)
 			{
-				final List<View> list = new ArrayList<View>();
-				droidQuery.each(new Function() {
-					
-					@Override
-					public void invoke($ droidQuery, Object... params) {
-						View view = droidQuery.view(0);
-						if (!view.isEnabled())
-							list.add(view);
-					}
-				});
-				if (!list.isEmpty())
-				{
-					droidQuery = $.with(list);
-				}
-				else
-				{
-					Log.w("CSS", "null Selection not allowed");
-				}
+				Log.w("droidQuery", String.format(Locale.US, "Unsupported pseudo-class :%s", name));
+				return Selector.NONE;
 			}
-			else if (sel.equals("checked"))
+			int n = 1;
+			if (accept(LEFTPAREN))
 			{
-				final List<View> list = new ArrayList<View>();
-				droidQuery.each(new Function() {
-					
-					@Override
-					public void invoke($ droidQuery, Object... params) {
-						Object checked = droidQuery.attr("checked");
-						boolean isChecked = false;
-						if (checked != null)
-							isChecked = (Boolean) checked;
-						if (isChecked)
-							list.add(droidQuery.view(0));
-					}
-				});
-				if (!list.isEmpty())
+				StringBuilder argument = new StringBuilder();
+				while (!accept(RIGHTPAREN))
 				{
-					droidQuery = $.with(list);
+					if (position >= tokens.size())
+						throw new IllegalArgumentException("missing )");
+					if (!accept(SPACE))
+						argument.append(tokens.get(position++).toString());
 				}
-				else
+				try
 				{
-					Log.w("CSS", "null Selection not allowed");
+					n = Math.max(1, Integer.parseInt(argument.toString()));
 				}
-			}
-			else if (sel.startsWith("not"))
-			{
-				if (sel.contains(LEFTPAREN_TOKEN))
+				catch (NumberFormatException e)
 				{
-					if (sel.endsWith(RIGHTPAREN_TOKEN))
-					{
-						sel = sel.split(LEFTPAREN_TOKEN)[1];
-						sel = sel.subSequence(0, sel.length());
-						
-						Class<?> clazz = null;
-						if (sel.contains(DOT_TOKEN))
-						{
-							//expected that the full class is provided
-							try {
-								clazz = Class.forName(sel.toString());
-							}
-							catch (Throwable t)
-							{
-								
-							}
-						}
-						else
-						{
-							//check android.view
-							try {
-								clazz = Class.forName(String.format(Locale.US, "android.view.%s", sel.toString()));
-								
-							}
-							catch (Throwable t)
-							{
-								//check android.widget
-								try {
-									clazz = Class.forName(String.format(Locale.US, "android.widget.%s", sel.toString()));
-								}
-								catch (Throwable t2)
-								{
-									//check android.webkit
-									try {
-										clazz = Class.forName(String.format(Locale.US, "android.webkit.%s", sel.toString()));
-									}
-									catch (Throwable t3)
-									{
-										
-									}
-								}
-							}
-							
-						}
-						if (clazz != null)
-						{
-							final List<View> list = new ArrayList<View>();
-							final Class<?> _clazz = clazz;
-							droidQuery.each(new Function() {
-								
-								@Override
-								public void invoke($ droidQuery, Object... params) {
-									View view = droidQuery.view(0);
-									if (!_clazz.isInstance(view))
-									{
-										list.add(view);
-									}
-								}
-							});
-							if (!list.isEmpty())
-							{
-								droidQuery = $.with(list);
-							}
-							else
-							{
-								Log.w("CSS", "null Selection not allowed");
-							}
-						}
-						else
-						{
-							//could not select class
-							Log.w("droidQuery", String.format(Locale.US, "Could not 'not select' class %s.", sel.toString()));
-						}
-					}
+					Log.w("CSS", String.format(Locale.US, "Invalid selector :%s (can't parse Integer \"%s\").", name, argument.toString()));
 				}
 			}
+			return new Selector.PseudoMatcher(kind, n, type);
 		}
-		else if (selector.contains(LEFTSQ_TOKEN))
-		{
-			TokenSequence[] split = selector.split(LEFTSQ_TOKEN);
-			TokenSequence element = split[0];
-			TokenSequence brackets = split[1];
-			//first select the class
-			makeSelection(droidQuery, element);
-			//then handle the bracketed selection
-			TokenSequence seq = new TokenSequence.Builder().append(LEFTSQ_TOKEN).append(brackets).create();
-			makeSelection(droidQuery, seq);
-		}
-		else if (selector.contains(COMMA_TOKEN))
-		{
-			TokenSequence[] split = selector.split(COMMA_TOKEN);
-			$[] array = new $[split.length];
-			for (int i = 0; i < split.length; i++)
-			{
-				array[i] = makeSelection(new $(droidQuery), split[i]);
-			}
-			droidQuery = array[0];
-			for (int i = 1; i < array.length; i++)
-			{
-				droidQuery = droidQuery.union(array[i]);
-			}
-		}
-//		else if (selector.contains("+"))
-//		{
-//			//TODO elements
-//		}
-		else if (selector.contains(SPACE_TOKEN))
+		
+		/**
+		 * @return the code of the next token
+		 */
+		private int peek()
 		{
-			TokenSequence[] split = selector.split(SPACE_TOKEN);
-			for (TokenSequence sel : split)
-			{
-				makeSelection(droidQuery, sel);
-			}
+			return tokens.get(position).tokenCode;
 		}
-		else if (selector.contains(GT_TOKEN))
+		
+		/**
+		 * Consume the next token if it has the given code
+		 * @param code the token code
+		 * @return {@code true} if the token was consumed. Otherwise {@code false}.
+		 */
+		private boolean accept(int code)
 		{
-			TokenSequence[] split = selector.split(GT_TOKEN);
-			TokenSequence sel = split[0];
-			makeSelection(droidQuery, sel);
-			for (int i = 1; i < split.length; i++)
+			if (position < tokens.size() && tokens.get(position).tokenCode == code)
 			{
-				makeSelection(droidQuery.selectChildren(), split[i]);
+				position++;
+				return true;
 			}
+			return false;
 		}
-//		else if (selector.contains("~"))
-//		{
-//			//TODO elements
-//		}
-		//no special characters-> Select by Type.
-		else
+		
+		/**
+		 * Consume the next token, which must be an identifier. Words that the scanner reserves for
+		 * pseudo-classes, such as {@code checked}, are accepted too.
+		 * @return the identifier
+		 */
+		private String name()
 		{
-			//no special characters.
-			if (selector.contains(DOT_TOKEN))
-			{
-				//expected that the full class is provided
-				droidQuery.selectByType(selector.toString());
-			}
-			else
+			if (position < tokens.size())
 			{
-				//check android.view
-				try {
-					Class<?> clazz = Class.forName(String.format(Locale.US, "android.view.%s", selector.toString()));
-					droidQuery.selectByType(clazz);
-				}
-				catch (Throwable t)
+				Token token = tokens.get(position);
+				if ((token.tokenCode == IDENTIFIER || token.tokenCode < DOT) && token.attribute != null)
 				{
-					//check android.widget
-					try {
-						Class<?> clazz = Class.forName(String.format(Locale.US, "android.widget.%s", selector.toString()));
-						droidQuery.selectByType(clazz);
-					}
-					catch (Throwable t2)
-					{
-						//check android.webkit
-						try {
-							Class<?> clazz = Class.forName(String.format(Locale.US, "android.webkit.%s", selector.toString()));
-							droidQuery.selectByType(clazz);
-						}
-						catch (Throwable t3)
-						{
-							//could not select class
-							Log.w("droidQuery", String.format(Locale.US, "Could not select class %s.", selector.toString()));
-						}
-					}
+					position++;
+					return token.attribute;
 				}
-				
 			}
+			throw new IllegalArgumentException(position < tokens.size() ? "unexpected " + tokens.get(position).toString() : "unexpected end");
 		}
 		
-		return droidQuery;
-		
-	}
-	
-	
-	
-	/** 
-	 * Capitalizes the first letter of the given string.
-	 * @param string the string whose first letter should be capitalized
-	 * @return the given string with its first letter capitalized
-	 * @throws NullPointerException if the string is null or empty
-	 */
-	private static String capitalize(String string)
-	{
-		if (string == null || string.trim().length() == 0)
-			throw new NullPointerException("Cannot handle null or empty string");
-		
-		StringBuilder strBuilder = new StringBuilder(string);
-		strBuilder.setCharAt(0, Character.toUpperCase(strBuilder.charAt(0)));
-		return strBuilder.toString();
+		/**
+		 * Consume the next token, which must have the given code
+		 * @param code the token code
+		 * @return the token
+		 */
+		private Token expect(int code)
+		{
+			if (position >= tokens.size() || tokens.get(position).tokenCode != code)
+				throw new IllegalArgumentException(position < tokens.size() ? "unexpected " + tokens.get(position).toString() : "unexpected end");
+			return tokens.get(position++);
+		}
 	}
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.css;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import self.philbrown.cssparser.Declaration;
+import self.philbrown.cssparser.ParserConstants;
+import self.philbrown.cssparser.Token;
+import self.philbrown.cssparser.TokenSequence;
+import self.philbrown.droidQuery.$;
+import android.content.Context;
+import android.graphics.Color;
+import android.util.Log;
+
+/**
+ * A CSS declaration, compiled once into the handler that applies it. The handler method of the property
+ * is resolved when the declaration is compiled, and the values of common properties (such as colors and
+ * image sources) are parsed then too, so applying a declaration to views does no string or reflection work.
+ * @author Phil Brown
+ * @see StyleSheet#applyProperties($, java.util.List)
+ */
+abstract class CompiledDeclaration implements ParserConstants
+{
+	/** The handler method of each property name, or {@code null} if the property is not supported */
+	private static final Map<String, Method> handlers = new HashMap<String, Method>();
+
+	/** The declaration */
+	final Declaration declaration;
+
+	/**
+	 * Constructor
+	 * @param declaration the declaration
+	 */
+	CompiledDeclaration(Declaration declaration)
+	{
+		this.declaration = declaration;
+	}
+
+	/**
+	 * Apply the declaration
+	 * @param droidQuery the views to apply the declaration to. Must not be empty.
+	 */
+	abstract void apply($ droidQuery);
+
+	/**
+	 * Compile a declaration
+	 * @param declaration the declaration
+	 * @return the compiled declaration
+	 */
+	static CompiledDeclaration compile(Declaration declaration)
+	{
+		TokenSequence property = declaration.getProperty();
+		TokenSequence value = declaration.getValue();
+		String name = property.toString();
+		if (name.equals("background-color") || name.equals("backgroundColor"))
+			return new BackgroundColor(declaration, parseColor(value));
+		if (name.equals("background-image") || name.equals("backgroundImage"))
+		{
+			CompiledDeclaration image = backgroundImage(declaration, value);
+			if (image != null)
+				return image;
+		}
+		final Method handler = handler(name);
+		if (handler == null)
+		{
+			Log.w("CSS", String.format(Locale.US, "Could not set property named %s with value %s!", property, value));
+			return new CompiledDeclaration(declaration) {
+				@Override
+				void apply($ droidQuery) {
+					//unsupported property
+				}
+			};
+		}
+		return new CompiledDeclaration(declaration) {
+			@Override
+			void apply($ droidQuery) {
+				try
+				{
+					handler.invoke(null, droidQuery, this.declaration.getValue());
+				}
+				catch (Throwable t)
+				{
+					if (t instanceof InvocationTargetException)
+						t = t.getCause();
+					Log.w("CSS", String.format(Locale.US, "Could not set property named %s with value %s!", this.declaration.getProperty(), this.declaration.getValue()), t);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get the {@link StyleSheet} method that handles a property
+	 * @param property the property name
+	 * @return the method, which takes a {@link $} and a {@link TokenSequence} value, or {@code null} if
+	 * the property is not supported
+	 */
+	private static Method handler(String property)
+	{
+		synchronized (handlers)
+		{
+			if (handlers.containsKey(property))
+				return handlers.get(property);
+			String key = property.replace("-", "_");
+			if (key.equalsIgnoreCase("float"))
+				key = "_float";
+			Method method;
+			try
+			{
+				method = StyleSheet.class.getMethod(key, $.class, TokenSequence.class);
+			}
+			catch (NoSuchMethodException e)
+			{
+				method = null;
+			}
+			handlers.put(property, method);
+			return method;
+		}
+	}
+
+	/**
+	 * Parse a color value
+	 * @param value the value
+	 * @return the color, or {@link Color#BLACK} if it could not be parsed
+	 */
+	private static int parseColor(TokenSequence value)
+	{
+		try
+		{
+			return Color.parseColor(value.toString());
+		}
+		catch (IllegalArgumentException e)
+		{
+			Log.w("CSS", "Could not parse color \"" + value.toString() + "\". Defaulting to BLACK.");
+			return Color.BLACK;
+		}
+	}
+
+	/**
+	 * Compile a {@code background-image} declaration. Supports the same values as
+	 * {@link StyleSheet#background_image($, TokenSequence)}.
+	 * @param declaration the declaration
+	 * @param value its value
+	 * @return the compiled declaration, or {@code null} if the value could not be parsed
+	 */
+	private static CompiledDeclaration backgroundImage(Declaration declaration, TokenSequence value)
+	{
+		try
+		{
+			if (value.startsWith("R."))
+			{
+				TokenSequence[] split = value.split(new Token(DOT, null));
+				return new BackgroundResource(declaration, split[2].toString(), split[1].toString(), null);
+			}
+			else if (value.startsWith("asset("))
+			{
+				return new BackgroundImage(declaration, value.subSequence(6, value.length()-1).toString());
+			}
+			else if (value.startsWith("url("))
+			{
+				return new BackgroundImage(declaration, value.subSequence(4, value.length()-1).toString());
+			}
+			else if (value.startsWith("file("))
+			{
+				return new BackgroundImage(declaration, "file://" + value.subSequence(5, value.length()-1).toString());
+			}
+			else if (value.contains(TokenSequence.parse(":R")))
+			{
+				TokenSequence[] split = value.split(new Token(COLON, null));
+				String namespace = split[0].toString();
+				split = split[1].split(new Token(DOT, null));
+				return new BackgroundResource(declaration, split[2].toString(), split[1].toString(), namespace);
+			}
+			else
+			{
+				return new BackgroundResource(declaration, value.toString(), "drawable", null);
+			}
+		}
+		catch (Throwable t)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * {@code background-color}, with the color parsed
+	 */
+	private static class BackgroundColor extends CompiledDeclaration
+	{
+		private final int color;
+
+		BackgroundColor(Declaration declaration, int color)
+		{
+			super(declaration);
+			this.color = color;
+		}
+
+		@Override
+		void apply($ droidQuery)
+		{
+			for (int i = 0; i < droidQuery.size(); i++)
+				droidQuery.view(i).setBackgroundColor(color);
+		}
+	}
+
+	/**
+	 * {@code background-image} with an asset, url or file source
+	 */
+	private static class BackgroundImage extends CompiledDeclaration
+	{
+		private final String source;
+
+		BackgroundImage(Declaration declaration, String source)
+		{
+			super(declaration);
+			this.source = source;
+		}
+
+		@Override
+		void apply($ droidQuery)
+		{
+			droidQuery.image(source);
+		}
+	}
+
+	/**
+	 * {@code background-image} with a resource. The resource id is resolved the first time the
+	 * declaration is applied, and again only if it is applied in another package.
+	 */
+	private static class BackgroundResource extends CompiledDeclaration
+	{
+		private final String name;
+		private final String type;
+		private final String namespace;
+		/** The package {@link #id} was resolved for */
+		private String resolvedPackage;
+		/** The resolved resource id, or 0 if the resource does not exist */
+		private int id;
+
+		BackgroundResource(Declaration declaration, String name, String type, String namespace)
+		{
+			super(declaration);
+			this.name = name;
+			this.type = type;
+			this.namespace = namespace;
+		}
+
+		@Override
+		void apply($ droidQuery)
+		{
+			int id = resolve(droidQuery.view(0).getContext());
+			if (id == 0)
+			{
+				Log.w("CSS", "Could not find Resource " + declaration.getValue());
+				return;
+			}
+			for (int i = 0; i < droidQuery.size(); i++)
+				droidQuery.view(i).setBackgroundResource(id);
+		}
+
+		/**
+		 * Resolve the resource id
+		 * @param context used to resolve the id
+		 * @return the id, or 0 if the resource does not exist
+		 */
+		private synchronized int resolve(Context context)
+		{
+			String packageName = context.getPackageName();
+			if (!packageName.equals(resolvedPackage))
+			{
+				id = context.getResources().getIdentifier(name, type, namespace);
+				resolvedPackage = packageName;
+			}
+			return id;
+		}
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.css;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import self.philbrown.cssparser.Declaration;
+import self.philbrown.cssparser.RuleSet;
+import self.philbrown.droidQuery.ViewTraversal;
+import android.content.Context;
+import android.view.View;
+
+/**
+ * Index of the rules of a {@link StyleSheet} by the rightmost simple selector of each of their selectors:
+ * an id, a type, an attribute name, or none (universal). Styling a view hierarchy is a single traversal
+ * that only tests the rules that can match each view, instead of one traversal per rule.
+ * @author Phil Brown
+ */
+class RuleIndex
+{
+	/** Orders matched rules by specificity, then by their order in the style sheet */
+	private static final Comparator<Match> CASCADE = new Comparator<Match>() {
+		@Override
+		public int compare(Match lhs, Match rhs) {
+			if (lhs.specificity != rhs.specificity)
+				return lhs.specificity < rhs.specificity ? -1 : 1;
+			return lhs.rule.order < rhs.rule.order ? -1 : (lhs.rule.order == rhs.rule.order ? 0 : 1);
+		}
+	};
+
+	/** Entries whose subject has an id, by id name */
+	private final Map<String, List<Entry>> byIdName = new HashMap<String, List<Entry>>();
+	/** Entries whose subject has a type and no id, by type */
+	private final Map<Class<?>, List<Entry>> byType = new HashMap<Class<?>, List<Entry>>();
+	/** Entries whose subject has an attribute selector, and no id or type, by attribute name */
+	private final Map<String, List<Entry>> byAttribute = new HashMap<String, List<Entry>>();
+	/** Entries whose subject has no id, type or attribute selector */
+	private final List<Entry> universal = new ArrayList<Entry>();
+
+	/** Entries by resolved id, for the package they were last resolved for */
+	private Map<Integer, Entry[]> byId;
+	/** The package that {@link #byId} was resolved for */
+	private String idPackage;
+	/** The entries that can match instances of each view class, other than by id */
+	private final Map<Class<?>, Entry[]> byClass = new HashMap<Class<?>, Entry[]>();
+
+	/** The attributes that any selector tests, in lower case. States such as {@code :checked} are included. */
+	private final Set<String> attributes = new HashSet<String>();
+	/** {@code true} if any selector depends on the position of a view among its siblings, or on its subviews */
+	private boolean structural;
+
+	/**
+	 * Constructor
+	 * @param rules the rules, in style sheet order
+	 */
+	RuleIndex(List<RuleSet> rules)
+	{
+		for (int i = 0; i < rules.size(); i++)
+		{
+			RuleSet ruleSet = rules.get(i);
+			Rule rule = new Rule(i, ruleSet.getDeclarationBlock());
+			Selector selector = CSSSelector.compile(ruleSet.getSelector());
+			for (Selector.Complex complex : selector.complexes)
+			{
+				add(new Entry(rule, complex));
+				dependencies(complex);
+			}
+		}
+	}
+
+	/**
+	 * Record the attributes and structure that a selector depends on
+	 * @param complex the selector
+	 */
+	private void dependencies(Selector.Complex complex)
+	{
+		for (Selector.Compound compound : complex.compounds)
+		{
+			for (Selector.Matcher matcher : compound.matchers)
+			{
+				if (matcher instanceof Selector.AttributeMatcher)
+					attributes.add(((Selector.AttributeMatcher) matcher).attribute.toLowerCase(Locale.US));
+				else if (matcher instanceof Selector.IdMatcher)
+					attributes.add("id");
+				else if (matcher instanceof Selector.NotMatcher)
+				{
+					for (Selector.Complex argument : ((Selector.NotMatcher) matcher).selector.complexes)
+						dependencies(argument);
+				}
+				else if (matcher instanceof Selector.PseudoMatcher)
+				{
+					switch (((Selector.PseudoMatcher) matcher).kind)
+					{
+						case Selector.PseudoMatcher.ROOT :
+							break;
+						case Selector.PseudoMatcher.ENABLED :
+						case Selector.PseudoMatcher.DISABLED :
+							attributes.add("enabled");
+							break;
+						case Selector.PseudoMatcher.CHECKED :
+							attributes.add("checked");
+							break;
+						case Selector.PseudoMatcher.FOCUS :
+							attributes.add("focused");
+							break;
+						case Selector.PseudoMatcher.SELECTION :
+							attributes.add("selected");
+							break;
+						default :
+							//positional pseudo-classes and :empty
+							structural = true;
+							break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether setting an attribute can change which rules match a view
+	 * @param attribute the attribute name
+	 * @return {@code true} if any selector tests the attribute. Otherwise {@code false}.
+	 */
+	boolean dependsOn(String attribute)
+	{
+		return attributes.contains(attribute.toLowerCase(Locale.US));
+	}
+
+	/**
+	 * Checks whether adding a view can change which rules match its siblings and parent
+	 * @return {@code true} if any selector uses a positional pseudo-class or {@code :empty}. Otherwise {@code false}.
+	 */
+	boolean isStructural()
+	{
+		return structural;
+	}
+
+	/**
+	 * Add an entry to the bucket of its subject
+	 * @param entry the entry
+	 */
+	private void add(Entry entry)
+	{
+		String id = null, attribute = null;
+		Class<?> type = null;
+		for (Selector.Matcher matcher : entry.complex.subject().matchers)
+		{
+			if (matcher == Selector.NONE)
+				return;
+			if (matcher instanceof Selector.IdMatcher && id == null)
+				id = ((Selector.IdMatcher) matcher).name;
+			else if (matcher instanceof Selector.TypeMatcher && type == null)
+				type = ((Selector.TypeMatcher) matcher).type;
+			else if (matcher instanceof Selector.AttributeMatcher && attribute == null)
+				attribute = ((Selector.AttributeMatcher) matcher).attribute;
+		}
+		if (id != null)
+			bucket(byIdName, id).add(entry);
+		else if (type != null)
+			bucket(byType, type).add(entry);
+		else if (attribute != null)
+			bucket(byAttribute, attribute).add(entry);
+		else
+			universal.add(entry);
+	}
+
+	/**
+	 * Get a bucket, creating it if needed
+	 * @param map the buckets
+	 * @param key the key
+	 * @return the bucket
+	 */
+	private static <K> List<Entry> bucket(Map<K, List<Entry>> map, K key)
+	{
+		List<Entry> bucket = map.get(key);
+		if (bucket == null)
+		{
+			bucket = new ArrayList<Entry>();
+			map.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Apply the matching rules to each view in the hierarchies with the given roots
+	 * @param roots the roots. Each is the {@code :root} of its hierarchy.
+	 * @param applier applies the declarations of the matching rules to each view
+	 */
+	void apply(List<View> roots, Applier applier)
+	{
+		apply(roots, null, applier);
+	}
+
+	/**
+	 * Apply the matching rules to each view in the given subtrees of a hierarchy
+	 * @param subtrees the roots of the subtrees
+	 * @param root the view matched by {@code :root}, or {@code null} if each subtree is a whole hierarchy
+	 * @param applier applies the declarations of the matching rules to each view
+	 */
+	void apply(List<View> subtrees, final View root, Applier applier)
+	{
+		final Set<View> styled = subtrees.size() > 1 ? new HashSet<View>() : null;
+		final List<Match> matches = new ArrayList<Match>();
+		final List<View> views = new ArrayList<View>();
+		final List<Match[]> matched = new ArrayList<Match[]>();
+		final List<CompiledDeclaration> declarations = new ArrayList<CompiledDeclaration>();
+		for (int i = 0; i < subtrees.size(); i++)
+		{
+			final View top = root == null ? subtrees.get(i) : root;
+			ViewTraversal.traverse(subtrees.get(i), new ViewTraversal.Visitor() {
+				@Override
+				public int visit(View view) {
+					if (styled != null && !styled.add(view))
+						return ViewTraversal.CONTINUE;
+					match(view, top, matches);
+					if (!matches.isEmpty())
+					{
+						views.add(view);
+						matched.add(matches.toArray(new Match[matches.size()]));
+						matches.clear();
+					}
+					return ViewTraversal.CONTINUE;
+				}
+			});
+		}
+		//match everything before applying anything, since the declarations can change what matches
+		for (int i = 0; i < views.size(); i++)
+		{
+			Match[] rules = matched.get(i);
+			for (Match match : rules)
+				declarations.addAll(match.rule.normal);
+			for (Match match : rules)
+				declarations.addAll(match.rule.important);
+			if (!declarations.isEmpty())
+				applier.apply(views.get(i), declarations);
+			declarations.clear();
+		}
+	}
+
+	/**
+	 * Find the rules that match a view
+	 * @param view the view
+	 * @param root the view matched by {@code :root}
+	 * @param matches receives the matching rules, in cascade order
+	 */
+	private void match(View view, View root, List<Match> matches)
+	{
+		Entry[] byId = view.getId() == View.NO_ID ? null : idEntries(view.getContext()).get(view.getId());
+		if (byId != null)
+			match(byId, view, root, matches);
+		match(classEntries(view.getClass()), view, root, matches);
+		if (matches.size() > 1)
+			Collections.sort(matches, CASCADE);
+	}
+
+	/**
+	 * Test candidate entries against a view
+	 * @param entries the candidates
+	 * @param view the view
+	 * @param root the view matched by {@code :root}
+	 * @param matches receives the rules that match. A rule with several matching selectors is added
+	 * once, with the highest specificity.
+	 */
+	private static void match(Entry[] entries, View view, View root, List<Match> matches)
+	{
+		for (Entry entry : entries)
+		{
+			Selector.Complex complex = entry.complex;
+			if (!complex.matches(complex.compounds.length - 1, view, root))
+				continue;
+			Match existing = null;
+			for (int i = 0; i < matches.size(); i++)
+			{
+				if (matches.get(i).rule == entry.rule)
+				{
+					existing = matches.get(i);
+					break;
+				}
+			}
+			if (existing == null)
+				matches.add(new Match(entry.rule, complex.specificity));
+			else
+				existing.specificity = Math.max(existing.specificity, complex.specificity);
+		}
+	}
+
+	/**
+	 * Get the entries with an id, resolving the id names for the application's package
+	 * @param context used to resolve id names
+	 * @return the entries, by id
+	 */
+	private synchronized Map<Integer, Entry[]> idEntries(Context context)
+	{
+		String packageName = context.getPackageName();
+		if (byId != null && packageName.equals(idPackage))
+			return byId;
+		Map<Integer, List<Entry>> resolved = new HashMap<Integer, List<Entry>>();
+		for (Map.Entry<String, List<Entry>> bucket : byIdName.entrySet())
+		{
+			int id = context.getResources().getIdentifier(bucket.getKey(), "id", packageName);
+			if (id != 0)
+				bucket(resolved, id).addAll(bucket.getValue());
+		}
+		byId = new HashMap<Integer, Entry[]>();
+		for (Map.Entry<Integer, List<Entry>> bucket : resolved.entrySet())
+			byId.put(bucket.getKey(), bucket.getValue().toArray(new Entry[bucket.getValue().size()]));
+		idPackage = packageName;
+		return byId;
+	}
+
+	/**
+	 * Get the entries that can match instances of a view class: those for the class, its superclasses and
+	 * its interfaces, those for attributes the class has, and the universal entries. Results are cached.
+	 * @param type the view class
+	 * @return the entries, in style sheet order
+	 */
+	private synchronized Entry[] classEntries(Class<?> type)
+	{
+		Entry[] entries = byClass.get(type);
+		if (entries != null)
+			return entries;
+		List<Entry> candidates = new ArrayList<Entry>(universal);
+		for (Map.Entry<Class<?>, List<Entry>> bucket : byType.entrySet())
+		{
+			//includes interfaces, which a superclass walk would miss
+			if (bucket.getKey().isAssignableFrom(type))
+				candidates.addAll(bucket.getValue());
+		}
+		for (Map.Entry<String, List<Entry>> bucket : byAttribute.entrySet())
+		{
+			if (Selector.attributeGetter(type, bucket.getKey()) != null)
+				candidates.addAll(bucket.getValue());
+		}
+		entries = candidates.toArray(new Entry[candidates.size()]);
+		Arrays.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry lhs, Entry rhs) {
+				return lhs.rule.order < rhs.rule.order ? -1 : (lhs.rule.order == rhs.rule.order ? 0 : 1);
+			}
+		});
+		byClass.put(type, entries);
+		return entries;
+	}
+
+	/**
+	 * Applies declarations to a view
+	 */
+	interface Applier
+	{
+		/**
+		 * @param view the view
+		 * @param declarations the declarations of all the rules that matched the view, in cascade order.
+		 * The list is reused after this returns.
+		 */
+		public void apply(View view, List<CompiledDeclaration> declarations);
+	}
+
+	/**
+	 * A rule set, with its declarations compiled and split by importance
+	 */
+	private static class Rule
+	{
+		/** The position of the rule in the style sheet */
+		final int order;
+		/** The declarations without {@code !important} */
+		final List<CompiledDeclaration> normal = new ArrayList<CompiledDeclaration>();
+		/** The {@code !important} declarations, which are applied after all others */
+		final List<CompiledDeclaration> important = new ArrayList<CompiledDeclaration>();
+
+		Rule(int order, List<Declaration> declarations)
+		{
+			this.order = order;
+			if (declarations == null)
+				return;
+			for (Declaration declaration : declarations)
+			{
+				if (declaration.isImportant())
+					important.add(CompiledDeclaration.compile(declaration));
+				else
+					normal.add(CompiledDeclaration.compile(declaration));
+			}
+		}
+	}
+
+	/**
+	 * One comma-separated selector of a rule
+	 */
+	private static class Entry
+	{
+		final Rule rule;
+		final Selector.Complex complex;
+
+		Entry(Rule rule, Selector.Complex complex)
+		{
+			this.rule = rule;
+			this.complex = complex;
+		}
+	}
+
+	/**
+	 * A rule that matched a view
+	 */
+	private static class Match
+	{
+		final Rule rule;
+		/** The highest specificity of the rule's selectors that matched */
+		int specificity;
+
+		Match(Rule rule, int specificity)
+		{
+			this.rule = rule;
+			this.specificity = specificity;
+		}
+	}
+}
@@ -0,0 +1,746 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.css;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import self.philbrown.droidQuery.ViewAccessors;
+import self.philbrown.droidQuery.ViewIndex;
+import self.philbrown.droidQuery.ViewTraversal;
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.Checkable;
+
+/**
+ * A CSS selector compiled into a tree of matchers. Class names are resolved when the selector is compiled,
+ * and ids the first time they are matched, so matching a view only compares fields of the view. Selectors
+ * are created with {@link CSSSelector#compile(String)}, which caches them, and can be shared between threads.
+ * @author Phil Brown
+ * @see CSSSelector
+ */
+public class Selector
+{
+	/** Matches a view and its ancestors from right to left: the combinator between two compounds is a descendant */
+	static final int DESCENDANT = 0;
+	/** The combinator between two compounds is a direct child ({@code >}) */
+	static final int CHILD = 1;
+	/** Attribute accessors, by view class and attribute, shared by all attribute selectors */
+	private static final Map<Class<?>, Map<String, ViewAccessors.Getter>> attributeGetters = new HashMap<Class<?>, Map<String, ViewAccessors.Getter>>();
+
+	/** The comma-separated selectors. A view matches if it matches any of them. */
+	final Complex[] complexes;
+	/** The pseudo-element ({@code first-letter} or {@code first-line}) at the end of this selector, or {@code null} */
+	private final String pseudoElement;
+
+	/**
+	 * Constructor
+	 * @param complexes the comma-separated selectors. Empty for a selector that matches nothing.
+	 * @param pseudoElement the pseudo-element at the end of the selector, or {@code null}
+	 */
+	Selector(Complex[] complexes, String pseudoElement)
+	{
+		this.complexes = complexes;
+		this.pseudoElement = pseudoElement;
+	}
+
+	/**
+	 * @return the pseudo-element ({@code first-letter} or {@code first-line}) that ends this selector,
+	 * or {@code null} if there is none.
+	 */
+	public String pseudoElement()
+	{
+		return pseudoElement;
+	}
+
+	/**
+	 * Checks whether a view matches this selector
+	 * @param view the view
+	 * @param root the view matched by {@code :root}
+	 * @return {@code true} if the view matches. Otherwise {@code false}.
+	 */
+	public boolean matches(View view, View root)
+	{
+		for (Complex complex : complexes)
+		{
+			if (complex.matches(complex.compounds.length - 1, view, root))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Select the views that match this selector in the view hierarchy with the given root
+	 * @param root the root of the hierarchy, which may itself be selected
+	 * @return the matching views, in document order
+	 */
+	public List<View> select(View root)
+	{
+		List<View> selection = new ArrayList<View>();
+		if (complexes.length == 0)
+			return selection;
+		List<View> candidates = candidates(root);
+		if (candidates == null)
+			return ViewTraversal.collect(root, filter(root), selection);
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			if (matches(candidates.get(i), root))
+				selection.add(candidates.get(i));
+		}
+		return selection;
+	}
+
+	/**
+	 * Get the views that can match this selector from the {@link ViewIndex} that covers the hierarchy,
+	 * using the id or type of the rightmost compound selector
+	 * @param root the root of the hierarchy
+	 * @return the candidates in document order, or {@code null} if the hierarchy is not indexed or the
+	 * selector has no id or type to look up.
+	 */
+	private List<View> candidates(View root)
+	{
+		if (complexes.length != 1)
+			return null;
+		ViewIndex index = ViewIndex.find(root);
+		if (index == null)
+			return null;
+		Compound compound = complexes[0].subject();
+		for (Matcher matcher : compound.matchers)
+		{
+			if (matcher instanceof IdMatcher)
+			{
+				int id = ((IdMatcher) matcher).id(root.getContext());
+				if (id == 0)
+					return new ArrayList<View>(0);
+				return index.selectById(root, id);
+			}
+		}
+		for (Matcher matcher : compound.matchers)
+		{
+			if (matcher instanceof TypeMatcher)
+				return index.selectByType(root, ((TypeMatcher) matcher).type);
+		}
+		return null;
+	}
+
+	/**
+	 * Select the views that match this selector in the view hierarchies with the given roots
+	 * @param roots the roots of the hierarchies. Each is used as the {@code :root} of its hierarchy.
+	 * @return the matching views, in document order. A view in more than one hierarchy is only selected once.
+	 */
+	public List<View> select(List<View> roots)
+	{
+		List<View> selection = new ArrayList<View>();
+		if (complexes.length == 0)
+			return selection;
+		if (roots.size() == 1)
+			return ViewTraversal.collect(roots.get(0), filter(roots.get(0)), selection);
+		Set<View> selected = new HashSet<View>();
+		for (int i = 0; i < roots.size(); i++)
+		{
+			View root = roots.get(i);
+			int start = selection.size();
+			ViewTraversal.collect(root, filter(root), selection);
+			//drop views already selected in an earlier hierarchy
+			int end = start;
+			for (int j = start; j < selection.size(); j++)
+			{
+				View view = selection.get(j);
+				if (selected.add(view))
+					selection.set(end++, view);
+			}
+			selection.subList(end, selection.size()).clear();
+		}
+		return selection;
+	}
+
+	/**
+	 * Find the first view that matches this selector in a view hierarchy. The hierarchy is only traversed
+	 * up to that view.
+	 * @param root the root of the hierarchy, which may itself be selected
+	 * @return the first matching view in document order, or {@code null} if no view matches.
+	 */
+	public View first(View root)
+	{
+		if (complexes.length == 0)
+			return null;
+		return ViewTraversal.first(root, filter(root));
+	}
+
+	/**
+	 * Get a filter that selects the views matching this selector
+	 * @param root the view matched by {@code :root}
+	 * @return the filter
+	 */
+	private ViewTraversal.Filter filter(final View root)
+	{
+		return new ViewTraversal.Filter() {
+			@Override
+			public boolean matches(View view) {
+				return Selector.this.matches(view, root);
+			}
+		};
+	}
+
+	/**
+	 * Get the parent of a view
+	 * @param view the view
+	 * @return the parent, or {@code null} if the view is not in a view hierarchy
+	 */
+	static ViewGroup parentOf(View view)
+	{
+		ViewParent parent = view.getParent();
+		return parent instanceof ViewGroup ? (ViewGroup) parent : null;
+	}
+
+	/**
+	 * Selectors separated by combinators, such as {@code LinearLayout > Button}
+	 */
+	static class Complex
+	{
+		/** The compound selectors, from left to right */
+		final Compound[] compounds;
+		/** The combinator between each compound and the next */
+		final int[] combinators;
+		/** The CSS specificity, as {@code (ids << 16) | (attributes and pseudo-classes << 8) | types} */
+		final int specificity;
+
+		Complex(Compound[] compounds, int[] combinators)
+		{
+			this.compounds = compounds;
+			this.combinators = combinators;
+			int specificity = 0;
+			for (Compound compound : compounds)
+			{
+				for (Matcher matcher : compound.matchers)
+					specificity += specificity(matcher);
+			}
+			this.specificity = specificity;
+		}
+
+		/**
+		 * Get the specificity of a simple selector
+		 * @param matcher the simple selector
+		 * @return the specificity, in the format of {@link #specificity}
+		 */
+		private static int specificity(Matcher matcher)
+		{
+			if (matcher instanceof IdMatcher)
+				return 1 << 16;
+			if (matcher instanceof AttributeMatcher || matcher instanceof PseudoMatcher)
+				return 1 << 8;
+			if (matcher instanceof TypeMatcher)
+				return 1;
+			if (matcher instanceof NotMatcher)
+			{
+				//the most specific selector in the argument counts
+				int specificity = 0;
+				for (Complex complex : ((NotMatcher) matcher).selector.complexes)
+					specificity = Math.max(specificity, complex.specificity);
+				return specificity;
+			}
+			return 0;
+		}
+
+		/**
+		 * @return the rightmost compound selector, which must match the selected view itself
+		 */
+		Compound subject()
+		{
+			return compounds[compounds.length - 1];
+		}
+
+		/**
+		 * Match a view against the compound at {@code index}, and its ancestors against the compounds on its left
+		 * @param index the index of the compound
+		 * @param view the view
+		 * @param root the view matched by {@code :root}
+		 * @return {@code true} if the view matches. Otherwise {@code false}.
+		 */
+		boolean matches(int index, View view, View root)
+		{
+			if (!compounds[index].matches(view, root))
+				return false;
+			if (index == 0)
+				return true;
+			ViewGroup parent = parentOf(view);
+			if (combinators[index - 1] == CHILD)
+				return parent != null && matches(index - 1, parent, root);
+			for (; parent != null; parent = parentOf(parent))
+			{
+				if (matches(index - 1, parent, root))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Simple selectors that all apply to one view, such as {@code Button#submit:enabled}
+	 */
+	static class Compound
+	{
+		/** The conditions */
+		final Matcher[] matchers;
+
+		Compound(Matcher[] matchers)
+		{
+			this.matchers = matchers;
+		}
+
+		boolean matches(View view, View root)
+		{
+			for (Matcher matcher : matchers)
+			{
+				if (!matcher.matches(view, root))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A simple selector
+	 */
+	interface Matcher
+	{
+		/**
+		 * @param view the view
+		 * @param root the view matched by {@code :root}
+		 * @return {@code true} if the view matches. Otherwise {@code false}.
+		 */
+		public boolean matches(View view, View root);
+	}
+
+	/** Matches nothing. Used for class names that could not be resolved and unsupported pseudo-classes. */
+	static final Matcher NONE = new Matcher() {
+		@Override
+		public boolean matches(View view, View root) {
+			return false;
+		}
+	};
+
+	/**
+	 * Matches views of a class, such as {@code TextView} or {@code .TextView}
+	 */
+	static class TypeMatcher implements Matcher
+	{
+		final Class<?> type;
+
+		TypeMatcher(Class<?> type)
+		{
+			this.type = type;
+		}
+
+		@Override
+		public boolean matches(View view, View root)
+		{
+			return type.isInstance(view);
+		}
+	}
+
+	/**
+	 * Matches the view with an id, such as {@code #submit}
+	 */
+	static class IdMatcher implements Matcher
+	{
+		/** The name of the id, in {@code R.id} */
+		final String name;
+		/** The id, resolved for the last package matched */
+		private volatile ResolvedId resolved;
+
+		IdMatcher(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public boolean matches(View view, View root)
+		{
+			int id = id(view.getContext());
+			return id != 0 && view.getId() == id;
+		}
+
+		/**
+		 * Resolve the id
+		 * @param context used to find the application's package
+		 * @return the id, or {@code 0} if there is no id with this name
+		 */
+		int id(Context context)
+		{
+			String packageName = context.getPackageName();
+			ResolvedId id = resolved;
+			if (id == null || !id.packageName.equals(packageName))
+			{
+				id = new ResolvedId(packageName, context.getResources().getIdentifier(name, "id", packageName));
+				resolved = id;
+			}
+			return id.id;
+		}
+	}
+
+	/**
+	 * An id resolved for one package
+	 */
+	private static class ResolvedId
+	{
+		final String packageName;
+		final int id;
+
+		ResolvedId(String packageName, int id)
+		{
+			this.packageName = packageName;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Matches views with an attribute, such as {@code [text^=Hello]}. The attribute is read using its getter,
+	 * or a public field with its name. Accessors are resolved once for each view class and shared by all
+	 * selectors, and values are compared without copying or splitting them.
+	 */
+	static class AttributeMatcher implements Matcher
+	{
+		/** {@code [attribute]} */
+		static final int EXISTS = 0;
+		/** {@code [attribute=value]} */
+		static final int EQUALS = 1;
+		/** {@code [attribute^=value]} and {@code [attribute|=value]} */
+		static final int STARTS_WITH = 2;
+		/** {@code [attribute$=value]} */
+		static final int ENDS_WITH = 3;
+		/** {@code [attribute*=value]} */
+		static final int CONTAINS = 4;
+		/** {@code [attribute~=value]} */
+		static final int CONTAINS_WORD = 5;
+
+		final String attribute;
+		final int operator;
+		final String value;
+		/** The accessor for the last view class matched, which is usually the class of the next view too */
+		private volatile ResolvedAttribute resolved;
+
+		AttributeMatcher(String attribute, int operator, String value)
+		{
+			this.attribute = attribute;
+			//a word never contains white space, so such a value can never match
+			if (operator == CONTAINS_WORD && (value.length() == 0 || indexOfSpace(value, 0) >= 0))
+				operator = -1;
+			this.operator = operator;
+			this.value = value;
+		}
+
+		@Override
+		public boolean matches(View view, View root)
+		{
+			if (operator < 0)
+				return false;
+			Class<?> type = view.getClass();
+			ResolvedAttribute resolved = this.resolved;
+			if (resolved == null || resolved.type != type)
+			{
+				resolved = new ResolvedAttribute(type, attributeGetter(type, attribute));
+				this.resolved = resolved;
+			}
+			if (resolved.getter == null)
+				return false;
+			Object val;
+			try
+			{
+				val = resolved.getter.get(view);
+			}
+			catch (Exception e)
+			{
+				return false;
+			}
+			if (val == null)
+				return false;
+			if (operator == EXISTS)
+				return true;
+			CharSequence string = val instanceof CharSequence ? (CharSequence) val : val.toString();
+			int length = string.length(), valueLength = value.length();
+			switch (operator)
+			{
+				case EQUALS :
+					return length == valueLength && regionMatches(string, 0);
+				case STARTS_WITH :
+					return length >= valueLength && regionMatches(string, 0);
+				case ENDS_WITH :
+					return length >= valueLength && regionMatches(string, length - valueLength);
+				case CONTAINS :
+					return indexOf(string, 0) >= 0;
+				case CONTAINS_WORD :
+					for (int i = indexOf(string, 0); i >= 0; i = indexOf(string, i + 1))
+					{
+						int end = i + valueLength;
+						if ((i == 0 || Character.isWhitespace(string.charAt(i - 1)))
+							&& (end == length || Character.isWhitespace(string.charAt(end))))
+							return true;
+					}
+					return false;
+				default :
+					return true;
+			}
+		}
+
+		/**
+		 * Compare the value to a region of a string
+		 * @param string the string
+		 * @param offset the start of the region. The region must fit in the string.
+		 * @return {@code true} if the region equals the value
+		 */
+		private boolean regionMatches(CharSequence string, int offset)
+		{
+			if (string instanceof String)
+				return ((String) string).startsWith(value, offset);
+			for (int i = 0; i < value.length(); i++)
+			{
+				if (string.charAt(offset + i) != value.charAt(i))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Find the value in a string
+		 * @param string the string
+		 * @param from the index to start searching at
+		 * @return the index of the value, or {@code -1} if it was not found.
+		 */
+		private int indexOf(CharSequence string, int from)
+		{
+			if (string instanceof String)
+				return ((String) string).indexOf(value, from);
+			for (int i = from; i <= string.length() - value.length(); i++)
+			{
+				if (regionMatches(string, i))
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Find white space in a string
+		 * @param string the string
+		 * @param from the index to start searching at
+		 * @return the index of the first white space character, or {@code -1} if there is none.
+		 */
+		private static int indexOfSpace(String string, int from)
+		{
+			for (int i = from; i < string.length(); i++)
+			{
+				if (Character.isWhitespace(string.charAt(i)))
+					return i;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * An attribute accessor resolved for one view class
+	 */
+	private static class ResolvedAttribute
+	{
+		final Class<?> type;
+		final ViewAccessors.Getter getter;
+
+		ResolvedAttribute(Class<?> type, ViewAccessors.Getter getter)
+		{
+			this.type = type;
+			this.getter = getter;
+		}
+	}
+
+	/**
+	 * Get the accessor used to match an attribute of a view class. This is the attribute's getter, as found
+	 * by {@link ViewAccessors}, or else a public field with the attribute's name.
+	 * @param type the view class
+	 * @param attribute the attribute
+	 * @return the accessor, or {@code null} if the class has no such attribute.
+	 */
+	static ViewAccessors.Getter attributeGetter(Class<?> type, String attribute)
+	{
+		synchronized (attributeGetters)
+		{
+			Map<String, ViewAccessors.Getter> byAttribute = attributeGetters.get(type);
+			if (byAttribute == null)
+			{
+				byAttribute = new HashMap<String, ViewAccessors.Getter>();
+				attributeGetters.put(type, byAttribute);
+			}
+			//classes without the attribute are cached as null
+			if (byAttribute.containsKey(attribute))
+				return byAttribute.get(attribute);
+			ViewAccessors.Getter getter = ViewAccessors.getter(type, attribute);
+			if (getter == null)
+			{
+				try
+				{
+					final Field field = type.getField(attribute);
+					getter = new ViewAccessors.Getter() {
+						@Override
+						public Object get(View view) throws Exception {
+							return field.get(view);
+						}
+					};
+				}
+				catch (NoSuchFieldException e)
+				{
+					//no getter or field
+				}
+			}
+			byAttribute.put(attribute, getter);
+			return getter;
+		}
+	}
+
+	/**
+	 * Matches views that do not match a selector, such as {@code :not(Button)}
+	 */
+	static class NotMatcher implements Matcher
+	{
+		final Selector selector;
+
+		NotMatcher(Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		@Override
+		public boolean matches(View view, View root)
+		{
+			return !selector.matches(view, root);
+		}
+	}
+
+	/**
+	 * Matches views by state or position, such as {@code :enabled} or {@code :nth-child(2)}
+	 */
+	static class PseudoMatcher implements Matcher
+	{
+		static final int FIRST_CHILD = 0;
+		static final int LAST_CHILD = 1;
+		static final int NTH_CHILD = 2;
+		static final int NTH_LAST_CHILD = 3;
+		static final int ONLY_CHILD = 4;
+		static final int FIRST_OF_TYPE = 5;
+		static final int LAST_OF_TYPE = 6;
+		static final int NTH_OF_TYPE = 7;
+		static final int NTH_LAST_OF_TYPE = 8;
+		static final int ONLY_OF_TYPE = 9;
+		static final int ROOT = 10;
+		static final int EMPTY = 11;
+		static final int ENABLED = 12;
+		static final int DISABLED = 13;
+		static final int CHECKED = 14;
+		static final int FOCUS = 15;
+		static final int SELECTION = 16;
+
+		final int kind;
+		/** The one-based position, for the {@code nth-} pseudo-classes */
+		final int n;
+		/** The type counted by the {@code of-type} pseudo-classes, or {@code null} to use the class of the view */
+		final Class<?> type;
+
+		PseudoMatcher(int kind, int n, Class<?> type)
+		{
+			this.kind = kind;
+			this.n = n;
+			this.type = type;
+		}
+
+		@Override
+		public boolean matches(View view, View root)
+		{
+			switch (kind)
+			{
+				case ROOT :
+					return view == root;
+				case EMPTY :
+					return !(view instanceof ViewGroup) || ((ViewGroup) view).getChildCount() == 0;
+				case ENABLED :
+					return view.isEnabled();
+				case DISABLED :
+					return !view.isEnabled();
+				case CHECKED :
+					return view instanceof Checkable && ((Checkable) view).isChecked();
+				case FOCUS :
+					return view.isFocused();
+				case SELECTION :
+					return view.isSelected();
+				default :
+					break;
+			}
+			ViewGroup parent = parentOf(view);
+			if (parent == null)
+				return false;
+			switch (kind)
+			{
+				case FIRST_CHILD :
+					return parent.getChildAt(0) == view;
+				case LAST_CHILD :
+					return parent.getChildAt(parent.getChildCount() - 1) == view;
+				case NTH_CHILD :
+					return parent.getChildCount() >= n && parent.getChildAt(n - 1) == view;
+				case NTH_LAST_CHILD :
+					return parent.getChildCount() >= n && parent.getChildAt(parent.getChildCount() - n) == view;
+				case ONLY_CHILD :
+					return parent.getChildCount() == 1;
+				default :
+					break;
+			}
+			Class<?> ofType = type == null ? view.getClass() : type;
+			int before = 0, after = 0;
+			boolean found = false;
+			for (int i = 0; i < parent.getChildCount(); i++)
+			{
+				View child = parent.getChildAt(i);
+				if (child == view)
+					found = true;
+				else if (ofType.isInstance(child))
+				{
+					if (found)
+						after++;
+					else
+						before++;
+				}
+			}
+			switch (kind)
+			{
+				case FIRST_OF_TYPE :
+					return before == 0;
+				case LAST_OF_TYPE :
+					return after == 0;
+				case NTH_OF_TYPE :
+					return before == n - 1;
+				case NTH_LAST_OF_TYPE :
+					return after == n - 1;
+				case ONLY_OF_TYPE :
+					return before == 0 && after == 0;
+				default :
+					return false;
+			}
+		}
+	}
+}
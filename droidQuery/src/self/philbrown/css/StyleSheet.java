@@ -16,18 +16,16 @@
 
 package self.philbrown.css;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.WeakHashMap;
 
-import self.philbrown.cssparser.CSSHandler;
 import self.philbrown.cssparser.CSSParser;
 import self.philbrown.cssparser.Declaration;
 import self.philbrown.cssparser.DefaultCSSHandler;
@@ -38,8 +36,8 @@ import self.philbrown.cssparser.RuleSet;
 import self.philbrown.cssparser.Token;
 import self.philbrown.cssparser.TokenSequence;
 import self.philbrown.droidQuery.$;
-import self.philbrown.droidQuery.AnimationOptions;
 import self.philbrown.droidQuery.Function;
+import self.philbrown.droidQuery.ViewChanges;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -50,7 +48,6 @@ import android.graphics.Shader.TileMode;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
-import android.os.Handler;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
@@ -68,32 +65,60 @@ public class StyleSheet implements ParserConstants
 	/**
 	 * keeps track of styles by type
 	 */
-	private List<RuleSet> rules;
+	List<RuleSet> rules;
 	/**
 	 * Keeps track of the keyframes used for each animation.
 	 */
-	private Map<String, List<KeyFrame>> animationKeyFrames;
+	Map<String, List<KeyFrame>> animationKeyFrames;
 	
 	/**
 	 * Keeps track of fonts declared in css.
 	 */
-	private List<FontFace> fonts;
+	List<FontFace> fonts;
 	
-	/** All methods declared in this class. Used for reflection for handling CSS Property values. */
-	private static Map<String, Method> methods = new HashMap<String, Method>();
-	static
-	{
-		Method[] _methods = StyleSheet.class.getDeclaredMethods();
-		for (Method m : _methods)
-		{
-			methods.put(m.getName(), m);
+	/** The rules indexed by selector subject. Built the first time the rules are applied. */
+	private RuleIndex ruleIndex;
+	
+	/** Applies the declarations of the matching rules to a view */
+	private static final RuleIndex.Applier applier = new RuleIndex.Applier() {
+		
+		@Override
+		public void apply(View view, List<CompiledDeclaration> declarations) {
+			$ droidQuery = $.with(view);
+			for (int i = 0; i < declarations.size(); i++)
+			{
+				declarations.get(i).apply(droidQuery);
+			}
 		}
-	}
+	};
+	
+	/** The roots of the hierarchies that this style sheet is {@link #live(View) live} on */
+	private final Map<View, Boolean> liveRoots = new WeakHashMap<View, Boolean>();
+	
+	/** Restyles the views that change under the {@link #liveRoots} */
+	private final ViewChanges.Listener liveListener = new ViewChanges.Listener() {
+		
+		@Override
+		public void onViewAdded(View parent, View child) {
+			//a new view can change the position of its siblings, and whether its parent is empty
+			restyle(ruleIndex().isStructural() ? parent : child);
+		}
+		
+		@Override
+		public void onAttributeChanged(View view, String attribute) {
+			if (ruleIndex().dependsOn(attribute))
+				restyle(view);
+		}
+	};
+	
 	/**
-	 * Most efficient way to apply the CSS one time. This uses the css parser's stream parsing ability
-	 * to optimize performance
-	 * @param droidQuery
-	 * @param in
+	 * Most efficient way to apply the CSS one time. The CSS is parsed (or found in the {@link StyleSheetCache}) 
+	 * and its rules are compiled in a background thread. Then, in a single UI-thread pass, every view 
+	 * under the selection is matched against the rules before any property is set, and all of the
+	 * declarations are applied, so the hierarchy is laid out once for the whole style sheet.
+	 * Must be called from the UI thread.
+	 * @param droidQuery the roots of the view hierarchies to style
+	 * @param in the CSS. It is read and closed in the background.
 	 */
 	public static void applyCSS(final $ droidQuery, InputStream in)
 	{
@@ -102,15 +127,7 @@ public class StyleSheet implements ParserConstants
 		//This may be the best way to handle things like keyframe animation, since it would require keeping
 		//track of one animation at a time - so the current animation-name is only for the current element(s)
 		
-		//it is also more efficient.
-		//THIS COULD ALSO BE DONE IN A SEPARATE THREAD!!!!
-		
-		final Handler ui = new Handler();
-		CSSHandler handler = new AsyncCSSHandler(droidQuery, ui);
-		AsyncCSSParser parser = new AsyncCSSParser(in, handler);
-		parser.execute();
-		
-		
+		new AsyncStyleSheet(droidQuery, in).execute();
 	}
 	
 	public StyleSheet(List<RuleSet> rules)
@@ -125,7 +142,13 @@ public class StyleSheet implements ParserConstants
 		this.fonts = fonts;
 	}
 	
-	private static StyleSheet fromInputStream(InputStream in) throws Exception
+	/**
+	 * Parse a style sheet. This does not use the {@link StyleSheetCache}.
+	 * @param in the CSS
+	 * @return the style sheet
+	 * @throws Exception if the CSS cannot be parsed
+	 */
+	static StyleSheet parse(InputStream in) throws Exception
 	{
 		final List<RuleSet> rules = new ArrayList<RuleSet>();
 		final Map<String, List<KeyFrame>> animationKeyFrames = new HashMap<String, List<KeyFrame>>();
@@ -153,16 +176,31 @@ public class StyleSheet implements ParserConstants
         return new StyleSheet(rules, animationKeyFrames, fonts);
 	}
 	
+	/**
+	 * Get the style sheet of an asset. Style sheets are cached by asset path and content, so loading
+	 * the same asset again does not parse it again, and reuses its compiled rules.
+	 * @param context used to open the asset
+	 * @param assetPath the path of the CSS asset
+	 * @return the style sheet
+	 * @throws Exception if the asset cannot be read or parsed
+	 * @see StyleSheetCache
+	 */
 	public static StyleSheet fromAsset(Context context, String assetPath) throws Exception
 	{
-		InputStream in = context.getAssets().open(assetPath);
-		return fromInputStream(in);
-		
+		return StyleSheetCache.sharedCache().fromAsset(context, assetPath);
 	}
 	
+	/**
+	 * Get the style sheet of a CSS string. Style sheets are cached by content, so loading the same 
+	 * CSS again does not parse it again, and reuses its compiled rules.
+	 * @param css the CSS
+	 * @return the style sheet
+	 * @throws Exception if the CSS cannot be parsed
+	 * @see StyleSheetCache
+	 */
 	public static StyleSheet fromString(String css) throws Exception
 	{
-		return fromInputStream(new ByteArrayInputStream(css.getBytes()));
+		return StyleSheetCache.sharedCache().fromString(css);
 	}
 
 	/**
@@ -173,17 +211,7 @@ public class StyleSheet implements ParserConstants
 	 */
 	public void applyRules(View layout)
 	{
-		//clean approach using CSSSelector.java
-		
-		for (int i = 0; i < rules.size(); i++)
-		{
-			RuleSet rule = rules.get(i);
-			TokenSequence selector = rule.getSelector();
-			CSSSelector cssSelector = new CSSSelector();
-			$ d = cssSelector.makeSelection(layout, selector);
-			List<Declaration> declarations = rule.getDeclarationBlock();
-			applyProperties(d, declarations);
-		}
+		applyRules(Collections.singletonList(layout));
 	}
 //	
 	/**
@@ -194,58 +222,125 @@ public class StyleSheet implements ParserConstants
 	 */
 	public void applyRules($ droidQuery)
 	{
-		//clean approach using CSSSelector.java
-		
-		for (int i = 0; i < rules.size(); i++)
+		List<View> roots = new ArrayList<View>(droidQuery.size());
+		for (int i = 0; i < droidQuery.size(); i++)
 		{
-			RuleSet rule = rules.get(i);
-			TokenSequence selector = rule.getSelector();
-			CSSSelector cssSelector = new CSSSelector();
-			$ d = cssSelector.makeSelection(droidQuery, selector);
-			List<Declaration> declarations = rule.getDeclarationBlock();
-			applyProperties(d, declarations);
+			roots.add(droidQuery.view(i));
 		}
+		applyRules(roots);
+	}
+	
+	/**
+	 * Apply the rules to a view hierarchy, and keep the hierarchy styled as it changes: views added with 
+	 * {@link $#add(View)} are styled, and setting an attribute that a selector tests, using 
+	 * {@link $#attr(String, Object)} or {@link $#tag(Object)}, restyles the changed view and its subviews. 
+	 * Only the changed subtree is restyled, unless a selector depends on the position of views among 
+	 * their siblings, in which case the subtree of the parent of an added view is restyled. 
+	 * Other changes can be reported with {@link ViewChanges}.
+	 * <br>
+	 * Restyling applies the rules that match now. It does not undo declarations of rules that no longer match.
+	 * @param root the root of the hierarchy. The hierarchy is only referenced weakly.
+	 * @see #die(View)
+	 */
+	public void live(View root)
+	{
+		applyRules(root);
+		synchronized (liveRoots)
+		{
+			liveRoots.put(root, Boolean.TRUE);
+		}
+		ViewChanges.register(liveListener);
+	}
+	
+	/**
+	 * Apply the rules to the selected view hierarchies, and keep them styled as they change
+	 * @param droidQuery the roots of the hierarchies
+	 * @see #live(View)
+	 */
+	public void live($ droidQuery)
+	{
+		for (int i = 0; i < droidQuery.size(); i++)
+		{
+			live(droidQuery.view(i));
+		}
+	}
+	
+	/**
+	 * Stop keeping a view hierarchy styled. The styles that were applied are kept.
+	 * @param root the root of a hierarchy passed to {@link #live(View)}
+	 */
+	public void die(View root)
+	{
+		synchronized (liveRoots)
+		{
+			liveRoots.remove(root);
+			if (!liveRoots.isEmpty())
+				return;
+		}
+		ViewChanges.unregister(liveListener);
+	}
+	
+	/**
+	 * Restyle a view and its subviews, if it is in a {@link #live(View) live} hierarchy
+	 * @param view the view
+	 */
+	private void restyle(final View view)
+	{
+		View root = null;
+		synchronized (liveRoots)
+		{
+			if (liveRoots.isEmpty())
+			{
+				//every live hierarchy has been garbage collected
+				ViewChanges.unregister(liveListener);
+				return;
+			}
+			for (Object v = view; v instanceof View && root == null; v = ((View) v).getParent())
+			{
+				if (liveRoots.containsKey(v))
+					root = (View) v;
+			}
+		}
+		if (root == null)
+			return;
+		ruleIndex().apply(Collections.singletonList(view), root, applier);
+	}
+	
+	/**
+	 * Apply the rules to the view hierarchies with the given roots. The hierarchies are traversed once, 
+	 * testing each view only against the rules indexed under its id, type and attributes. Matched rules 
+	 * are applied in cascade order: by specificity, then by their order in this style sheet, with 
+	 * {@code !important} declarations last.
+	 * @param roots the roots of the hierarchies
+	 */
+	private void applyRules(List<View> roots)
+	{
+		ruleIndex().apply(roots, applier);
 	}
+
 	
 	/**
-	 * Apply selector to the given view. This is not recursive.
-	 * @param v
-	 * @param properties
+	 * @return the index of the rules, which is built the first time the rules are applied
+	 */
+	synchronized RuleIndex ruleIndex()
+	{
+		if (ruleIndex == null)
+			ruleIndex = new RuleIndex(rules);
+		return ruleIndex;
+	}
+	
+	/**
+	 * Apply declarations to the given views. This is not recursive.
+	 * @param droidQuery the views
+	 * @param declarations the declarations, which are compiled and then applied in order
 	 */
 	public static void applyProperties($ droidQuery, List<Declaration> declarations)
 	{
-		//apply actual css properties (big step here)
+		if (droidQuery.size() == 0)
+			return;
 		for (int i = 0; i < declarations.size(); i++)
 		{
-			Declaration prop = declarations.get(i);
-			final TokenSequence property = prop.getProperty();
-			final TokenSequence value = prop.getValue();
-			final AnimationOptions animation = new AnimationOptions();
-			//FIXME: this does not seem optimal!
-			droidQuery.each(new Function() {
-				
-				@Override
-				public void invoke($ droidQuery, Object... params) {
-					
-					try
-					{
-						//these methods must be propert($, value)
-						String key = property.toString().replace("-", "_");
-						if (key.equalsIgnoreCase("float"))
-							key = "_float";
-						Object result = methods.get(key).invoke(null, droidQuery, value);
-						if (property.startsWith("animation"))
-						{
-							//animation.
-							//result will be AnimationOptions method?
-						}
-					}
-					catch (Throwable t)
-					{
-						Log.w("CSS", String.format(Locale.US, "Could not set property named %s with value %s!", property, value), t);
-					}
-				}
-			});
+			CompiledDeclaration.compile(declarations.get(i)).apply(droidQuery);
 		}
 	}
 	
@@ -1723,114 +1818,42 @@ public class StyleSheet implements ParserConstants
 	/////////////////////////////////////////////////////////
 	
 	/**
-	 * CSS Handler used when asynchronously stream parsing
+	 * Loads and compiles a style sheet in a background thread, then applies it in one UI-thread pass
 	 * @author Phil Brown
-	 * @since 3:18:32 PM Jan 7, 2014
+	 * @since 3:12:17 PM Jan 7, 2014
 	 *
 	 */
-	private static class AsyncCSSHandler implements CSSHandler
+	private static class AsyncStyleSheet extends AsyncTask<Void, Void, StyleSheet>
 	{
-		private Handler ui;
+		private InputStream stream;
 		private $ droidQuery;
 		
-		public AsyncCSSHandler($ droidQuery, Handler ui)
+		public AsyncStyleSheet($ droidQuery, InputStream stream)
 		{
 			this.droidQuery = droidQuery;
-			this.ui = ui;
-		}
-		
-		@Override
-		public boolean supports(String logic) {
-			//no easy way to handle this yet.
-			return false;
+			this.stream = stream;
 		}
-		
-		@Override
-		public void handleRuleSet(final RuleSet rule) {
-			ui.post(new Runnable() {
 
-				@Override
-				public void run() {
-					
-					//TODO first, check if its an animation or something that can only be handled in stream
-					
-					//then do
-					TokenSequence selector = rule.getSelector();
-					CSSSelector cssSelector = new CSSSelector();
-					$ d = cssSelector.makeSelection(droidQuery, selector);
-					List<Declaration> declarations = rule.getDeclarationBlock();
-					applyProperties(d, declarations);
-					
-					
-				}
-				
-			});
-		}
-		
 		@Override
-		public void handleNewCharset(String arg0) {
-		}
-		
-		@Override
-		public void handleNamespace(String arg0) {
-		}
-		
-		@Override
-		public void handleKeyframes(String arg0, List<KeyFrame> arg1) {
-			// TODO Auto-generated method stub
-			
-		}
-		
-		@Override
-		public InputStream handleImport(String arg0) {
-			//TODO allow imports from raw and assets
-			return null;
-		}
-		
-		@Override
-		public void handleFontFace(FontFace arg0) {
-			// TODO Auto-generated method stub
-			
-		}
-		
-		@Override
-		public void handleError(String message, Throwable t) {
-		}
-	}
-	
-	/**
-	 * Stream parse the CSS in a background thread
-	 * @author Phil Brown
-	 * @since 3:12:17 PM Jan 7, 2014
-	 *
-	 */
-	private static class AsyncCSSParser extends AsyncTask<Void, Void, Void>
-	{
-		private CSSParser parser;
-		
-		public AsyncCSSParser(InputStream stream, CSSHandler handler)
-		{
+		protected StyleSheet doInBackground(Void... arg0) {
 			try
 			{
-				parser = new CSSParser(stream, handler);
+				StyleSheet styleSheet = StyleSheetCache.sharedCache().fromStream(stream);
+				//compile the selectors and declarations here, so the UI thread only matches and applies
+				styleSheet.ruleIndex();
+				return styleSheet;
 			}
 			catch (Throwable t)
 			{
-				t.printStackTrace();
+				Log.w("CSS", "Could not load style sheet", t);
+				return null;
 			}
 		}
-
+		
 		@Override
-		protected Void doInBackground(Void... arg0) {
-			try
-			{
-				parser.parse();
-			}
-			catch (Throwable t)
-			{
-				t.printStackTrace();
-			}
-			return null;
+		protected void onPostExecute(StyleSheet styleSheet) {
+			if (styleSheet != null)
+				styleSheet.applyRules(droidQuery);
 		}
 		
 	}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.css;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import self.philbrown.cssparser.Declaration;
+import self.philbrown.cssparser.KeyFrame;
+import self.philbrown.cssparser.RuleSet;
+import self.philbrown.cssparser.Token;
+import self.philbrown.cssparser.TokenSequence;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Cache of parsed style sheets, keyed by source (such as the asset path) and content hash. A cached
+ * {@link StyleSheet} keeps its compiled rules, so loading the same CSS again skips both parsing and
+ * compilation. This is used by {@link StyleSheet#fromAsset(Context, String)} and
+ * {@link StyleSheet#fromString(String)}.
+ * <br>
+ * Parsed rules can also be persisted in a compact binary form by setting a {@link #directory(File) directory},
+ * so that a new process does not need to parse CSS it has seen before. Style sheets with
+ * {@code @font-face} rules are only cached in memory.
+ * @author Phil Brown
+ */
+public class StyleSheetCache
+{
+	/** The maximum number of style sheets to keep in memory */
+	private static final int MAX_ENTRIES = 16;
+	/** Identifies the binary format. Change this whenever the format changes. */
+	private static final int MAGIC = 0x43535301;
+
+	/** singleton instance */
+	private static StyleSheetCache self;
+
+	/** Cached style sheets, by source and content hash, in access order */
+	private Map<String, StyleSheet> entries = new LinkedHashMap<String, StyleSheet>(0, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StyleSheet> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	/** The directory where parsed style sheets are persisted, or {@code null} to only cache in memory */
+	private File directory;
+
+	/**
+	 * Constructor
+	 */
+	private StyleSheetCache()
+	{
+
+	}
+
+	/**
+	 * Singleton accessor
+	 * @return the shared cache
+	 */
+	public static synchronized StyleSheetCache sharedCache()
+	{
+		if (self == null)
+			self = new StyleSheetCache();
+		return self;
+	}
+
+	/**
+	 * Persist parsed style sheets in the given directory. By default, style sheets are only cached in memory.
+	 * @param directory the directory, which is created if needed, or {@code null} to stop persisting.
+	 * @return this
+	 */
+	public synchronized StyleSheetCache directory(File directory)
+	{
+		this.directory = directory;
+		return this;
+	}
+
+	/**
+	 * Persist parsed style sheets in the application's cache directory
+	 * @param context used to get the cache directory
+	 * @return this
+	 * @see #directory(File)
+	 */
+	public StyleSheetCache persist(Context context)
+	{
+		return directory(new File(context.getCacheDir(), "droidQuery-css"));
+	}
+
+	/**
+	 * Remove all style sheets from memory. Persisted style sheets are kept.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Get the style sheet of an asset, parsing it only if its contents have not been seen before
+	 * @param context used to open the asset
+	 * @param assetPath the path of the asset
+	 * @return the style sheet
+	 * @throws Exception if the asset cannot be read or parsed
+	 */
+	public StyleSheet fromAsset(Context context, String assetPath) throws Exception
+	{
+		return get("asset:" + assetPath, read(context.getAssets().open(assetPath)));
+	}
+
+	/**
+	 * Get the style sheet of a CSS string, parsing it only if it has not been seen before
+	 * @param css the CSS
+	 * @return the style sheet
+	 * @throws Exception if the CSS cannot be parsed
+	 */
+	public StyleSheet fromString(String css) throws Exception
+	{
+		return get("string:", css.getBytes());
+	}
+
+	/**
+	 * Get the style sheet of a stream, parsing it only if its contents have not been seen before
+	 * @param in the CSS. The stream is closed.
+	 * @return the style sheet
+	 * @throws Exception if the stream cannot be read or parsed
+	 */
+	StyleSheet fromStream(InputStream in) throws Exception
+	{
+		return get("stream:", read(in));
+	}
+
+	/**
+	 * Get a style sheet from memory, then from the directory, and finally by parsing it
+	 * @param source identifies where the CSS came from
+	 * @param css the CSS
+	 * @return the style sheet
+	 * @throws Exception if the CSS cannot be parsed
+	 */
+	private StyleSheet get(String source, byte[] css) throws Exception
+	{
+		String hash = hash(css);
+		String key = source + "#" + hash;
+		File directory;
+		synchronized (this)
+		{
+			StyleSheet styleSheet = entries.get(key);
+			if (styleSheet != null)
+				return styleSheet;
+			directory = this.directory;
+		}
+		File file = directory == null ? null : new File(directory, hash);
+		StyleSheet styleSheet = file == null ? null : load(file);
+		if (styleSheet == null)
+		{
+			styleSheet = StyleSheet.parse(new ByteArrayInputStream(css));
+			if (file != null)
+				save(styleSheet, file);
+		}
+		synchronized (this)
+		{
+			//another thread may have loaded the same style sheet. Use one instance, so it is compiled once.
+			StyleSheet cached = entries.get(key);
+			if (cached != null)
+				return cached;
+			entries.put(key, styleSheet);
+			return styleSheet;
+		}
+	}
+
+	/**
+	 * Read a stream fully, then close it
+	 * @param in the stream
+	 * @return its contents
+	 * @throws IOException if the stream cannot be read
+	 */
+	private static byte[] read(InputStream in) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Hash CSS contents
+	 * @param css the contents
+	 * @return the SHA-1 hash, as hexadecimal
+	 */
+	private static String hash(byte[] css)
+	{
+		byte[] digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1").digest(css);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			//every Android device has SHA-1, but fall back to a weaker hash rather than fail
+			return Integer.toHexString(Arrays.hashCode(css)) + "-" + css.length;
+		}
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Load a persisted style sheet
+	 * @param file the file
+	 * @return the style sheet, or {@code null} if the file does not exist or cannot be read
+	 */
+	private static StyleSheet load(File file)
+	{
+		if (!file.exists())
+			return null;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC)
+				return null;
+			int count = in.readInt();
+			List<RuleSet> rules = new ArrayList<RuleSet>(count);
+			for (int i = 0; i < count; i++)
+			{
+				TokenSequence selector = readTokens(in);
+				rules.add(new RuleSet(selector, readDeclarations(in)));
+			}
+			count = in.readInt();
+			Map<String, List<KeyFrame>> animationKeyFrames = new HashMap<String, List<KeyFrame>>();
+			for (int i = 0; i < count; i++)
+			{
+				String identifier = in.readUTF();
+				int frames = in.readInt();
+				List<KeyFrame> keyFrames = new ArrayList<KeyFrame>(frames);
+				for (int j = 0; j < frames; j++)
+				{
+					double percent = in.readDouble();
+					keyFrames.add(new KeyFrame(percent, readDeclarations(in)));
+				}
+				animationKeyFrames.put(identifier, keyFrames);
+			}
+			return new StyleSheet(rules, animationKeyFrames, null);
+		}
+		catch (IOException e)
+		{
+			Log.w("CSS", "Could not load cached style sheet " + file, e);
+			file.delete();
+			return null;
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+	/**
+	 * Persist a style sheet. Failures are logged, since the style sheet can always be parsed again.
+	 * @param styleSheet the style sheet
+	 * @param file the file
+	 */
+	private static void save(StyleSheet styleSheet, File file)
+	{
+		if (styleSheet.fonts != null && !styleSheet.fonts.isEmpty())
+			return;
+		File parent = file.getParentFile();
+		if (!parent.exists() && !parent.mkdirs())
+			return;
+		//write to a temporary file, so that a reader never sees a partial file
+		File temp = new File(parent, file.getName() + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(styleSheet.rules.size());
+			for (RuleSet rule : styleSheet.rules)
+			{
+				writeTokens(out, rule.getSelector());
+				writeDeclarations(out, rule.getDeclarationBlock());
+			}
+			Map<String, List<KeyFrame>> animationKeyFrames = styleSheet.animationKeyFrames;
+			if (animationKeyFrames == null)
+			{
+				out.writeInt(0);
+			}
+			else
+			{
+				out.writeInt(animationKeyFrames.size());
+				for (Map.Entry<String, List<KeyFrame>> animation : animationKeyFrames.entrySet())
+				{
+					out.writeUTF(animation.getKey());
+					out.writeInt(animation.getValue().size());
+					for (KeyFrame keyFrame : animation.getValue())
+					{
+						out.writeDouble(keyFrame.getPercent());
+						writeDeclarations(out, keyFrame.getDeclarationBlock());
+					}
+				}
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file))
+				temp.delete();
+		}
+		catch (IOException e)
+		{
+			Log.w("CSS", "Could not cache style sheet " + file, e);
+			close(out);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Write a token sequence
+	 * @param out the output
+	 * @param tokens the token sequence
+	 * @throws IOException if the output cannot be written
+	 */
+	private static void writeTokens(DataOutputStream out, TokenSequence tokens) throws IOException
+	{
+		out.writeUTF(tokens.toString());
+		List<Token> list = tokens.getTokens();
+		out.writeInt(list.size());
+		for (Token token : list)
+		{
+			out.writeInt(token.tokenCode);
+			out.writeBoolean(token.attribute != null);
+			if (token.attribute != null)
+				out.writeUTF(token.attribute);
+		}
+	}
+
+	/**
+	 * Read a token sequence
+	 * @param in the input
+	 * @return the token sequence
+	 * @throws IOException if the input cannot be read
+	 */
+	private static TokenSequence readTokens(DataInputStream in) throws IOException
+	{
+		String string = in.readUTF();
+		int count = in.readInt();
+		List<Token> tokens = new ArrayList<Token>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int code = in.readInt();
+			tokens.add(new Token(code, in.readBoolean() ? in.readUTF() : null));
+		}
+		return new TokenSequence(tokens, string);
+	}
+
+	/**
+	 * Write a declaration block
+	 * @param out the output
+	 * @param declarations the declarations. May be {@code null}.
+	 * @throws IOException if the output cannot be written
+	 */
+	private static void writeDeclarations(DataOutputStream out, List<Declaration> declarations) throws IOException
+	{
+		if (declarations == null)
+		{
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(declarations.size());
+		for (Declaration declaration : declarations)
+		{
+			writeTokens(out, declaration.getProperty());
+			writeTokens(out, declaration.getValue());
+			out.writeBoolean(declaration.isImportant());
+		}
+	}
+
+	/**
+	 * Read a declaration block
+	 * @param in the input
+	 * @return the declarations
+	 * @throws IOException if the input cannot be read
+	 */
+	private static List<Declaration> readDeclarations(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		List<Declaration> declarations = new ArrayList<Declaration>(count);
+		for (int i = 0; i < count; i++)
+		{
+			TokenSequence property = readTokens(in);
+			TokenSequence value = readTokens(in);
+			declarations.add(new Declaration(property, value, in.readBoolean()));
+		}
+		return declarations;
+	}
+
+	/**
+	 * Close a stream, ignoring errors
+	 * @param stream the stream. May be {@code null}.
+	 */
+	private static void close(Closeable stream)
+	{
+		if (stream == null)
+			return;
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+			//ignore
+		}
+	}
+}
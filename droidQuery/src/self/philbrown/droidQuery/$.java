@@ -17,6 +17,7 @@
 package self.philbrown.droidQuery;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.StringReader;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -26,7 +27,6 @@ import java.lang.reflect.Proxy;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -37,17 +37,16 @@ import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.DocumentBuilder;
 
 import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
 
 import self.philbrown.css.CSSSelector;
-import self.philbrown.cssparser.TokenSequence;
-import self.philbrown.droidQuery.AjaxOptions.Redundancy;
 import self.philbrown.droidQuery.SwipeDetector.SwipeListener;
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -57,11 +56,12 @@ import android.content.DialogInterface.OnClickListener;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Color;
 import android.graphics.Point;
-import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.TransitionDrawable;
 import android.os.Environment;
 import android.os.FileObserver;
 import android.os.Handler;
@@ -87,7 +87,6 @@ import android.view.animation.DecelerateInterpolator;
 import android.view.animation.Interpolator;
 import android.view.animation.LinearInterpolator;
 import android.view.animation.OvershootInterpolator;
-import android.webkit.URLUtil;
 import android.widget.AdapterView;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
@@ -191,23 +190,6 @@ public class $
 		OVERSHOOT
 	}
 	
-	/** Used to correctly call methods that use simple type parameters via reflection */
-	private static final Map<Class<?>, Class<?>> PRIMITIVE_TYPE_MAP = buildPrimitiveTypeMap();
-
-	/** Inflates the mapping of data types to primitive types */
-	private static Map<Class<?>, Class<?>> buildPrimitiveTypeMap()
-	{
-	    Map<Class<?>, Class<?>> map = new HashMap<Class<?>, Class<?>>();
-	    map.put(Float.class, float.class);
-	    map.put(Double.class, double.class);
-	    map.put(Integer.class, int.class);
-	    map.put(Boolean.class, boolean.class);
-	    map.put(Long.class, long.class);
-	    map.put(Short.class, short.class);
-	    map.put(Byte.class, byte.class);
-	    return map;
-	}
-	
 	/** 
 	 * Keeps track of {@link LogFileObserver}s so they are not freed by garbage collection 
 	 * before they are used 
@@ -317,7 +299,10 @@ public class $
 	{
 		if (views == null)
 			views = new ArrayList<View>();
+		this.context = context;
 		this.views = views;
+		if (!views.isEmpty())
+			this.rootView = views.get(0);
 	}
 	
 	/**
@@ -372,7 +357,7 @@ public class $
 		this(parent);
 		try
 		{
-			$ query = new CSSSelector().makeSelection(parent, TokenSequence.parse(selector));
+			$ query = new CSSSelector().makeSelection(parent, selector);
 			this.rootView = query.rootView;
 			this.context = query.context;
 			this.views = query.views;
@@ -408,7 +393,7 @@ public class $
 		this(context);
 		try
 		{
-			$ query = new CSSSelector().makeSelection(this.rootView, TokenSequence.parse(selector));
+			$ query = new CSSSelector().makeSelection(this.rootView, selector);
 			this.rootView = query.rootView;
 			this.context = query.context;
 			this.views = query.views;
@@ -615,12 +600,13 @@ public class $
 	}
 	
 	/**
-	 * Used to privately and safely allow the creation of droidQuery instances using with empty lists
+	 * Create a droidQuery instance with the given selection, which, unlike {@link #with(List)}, may be empty.
+	 * This is used by selectors, which may not match any views.
 	 * @param context the current context
 	 * @param views the selection
 	 * @return a new instance of droidQuery with the selection set to the given views
 	 */
-	private static $ with(Context context, List<View> views)
+	public static $ with(Context context, List<View> views)
 	{
 		return new $(context, views);
 	}
@@ -739,7 +725,13 @@ public class $
 		
 		//if not found, check the current scope (rootView)
 		if (rootView != null)
-			v = rootView.findViewById(id);
+		{
+			ViewIndex index = ViewIndex.find(rootView);
+			if (index != null)
+				v = index.findViewById(rootView, id);
+			else
+				v = rootView.findViewById(id);
+		}
 		
 		//if not found, check the Activity's scope
 		if (v == null && context instanceof Activity)
@@ -1133,7 +1125,7 @@ public class $
 				{
 					final ViewGroup.LayoutParams params = view.getLayoutParams();
 					try {
-						final Field field = params.getClass().getField(key);
+						final Field field = params == null ? null : ViewAccessors.layoutField(params.getClass(), key);
 						if (field != null)
 						{
 							if (value instanceof Integer || value.getClass() == int.class)
@@ -1176,6 +1168,8 @@ public class $
 					{
 						if (value instanceof Integer || value.getClass() == int.class)
 							anim = ObjectAnimator.ofInt(view, key, (Integer) value);
+						else if ((value instanceof Float || value.getClass() == float.class) && ViewAccessors.property(key) != null)
+							anim = ObjectAnimator.ofFloat(view, ViewAccessors.property(key), (Float) value);
 						else if (value instanceof Float || value.getClass() == float.class)
 							anim = ObjectAnimator.ofFloat(view, key, (Float) value);
 						else if (value instanceof Long || value.getClass() == long.class)
@@ -1725,37 +1719,26 @@ public class $
 	/**
 	 * Gets the value for the given attribute of the first view in the current selection. 
 	 * This is done using reflection, and as such
-	 * expects a <em>get-</em> or <em>is-</em> prefixed method name for the view.
+	 * expects a <em>get-</em> or <em>is-</em> prefixed method name for the view. Accessors 
+	 * are looked up once for each view class, and cached in {@link ViewAccessors}.
 	 * @param s the name of the attribute to retrieve
 	 * @return the value of the given attribute name on the first view in the current selection
 	 */
 	public Object attr(String s)
 	{
+		ViewAccessors.Getter getter = ViewAccessors.getter(view(0).getClass(), s);
+		if (getter == null)
+		{
+			Log.w("droidQuery", view(0).getClass().getSimpleName() + "has no getter method for the variable " + s + ".");
+			return null;
+		}
 		try
 		{
-			Method m = view(0).getClass().getMethod("get" + capitalize(s));
-			return m.invoke(view(0));
+			return getter.get(view(0));
 		}
 		catch (Throwable t)
 		{
-			try
-			{
-				Method m = view(0).getClass().getMethod("is" + capitalize(s));
-				return m.invoke(view(0));
-			}
-			catch (Throwable t2)
-			{
-				//try using NineOldAndroids
-				try {
-					Method m = ViewHelper.class.getMethod("get" + capitalize(s), new Class<?>[]{View.class});
-					return m.invoke(null, view(0));
-				}
-				catch (Throwable t3) {
-					Log.w("droidQuery", view(0).getClass().getSimpleName() + "has no getter method for the variable " + s + ".");
-				}
-				
-				return null;
-			}
+			return null;
 		}
 	}
 	
@@ -1772,34 +1755,13 @@ public class $
 		for (int i = 0; i < this.views.size(); i++)
 		{
 			View view = this.views.get(i);
-			try
+			if (o == null || !ViewAccessors.set(view, s, o))
 			{
-				Class<?> objClass = o.getClass();
-				Class<?> simpleClass = PRIMITIVE_TYPE_MAP.get(objClass);
-				if (simpleClass != null)
-				{
-					objClass = simpleClass;
-				}
-				try {
-					Method m = view.getClass().getMethod("set" + capitalize(s), new Class<?>[]{objClass});
-					m.invoke(view, o);
-				}
-				catch (Throwable t) {
-					//try using NineOldAndroids
-					try {
-						Method m = ViewHelper.class.getMethod("set" + capitalize(s), new Class<?>[]{View.class, objClass});
-						m.invoke(null, view(0), o);
-					}
-					catch (Throwable t2)
-					{
-						Log.w("droidQuery", view.getClass().getSimpleName() + ".set" + capitalize(s) + "(" + o.getClass().getSimpleName() + ") is not a method!");
-					}
-				}
-				
+				Log.w("droidQuery", view.getClass().getSimpleName() + ".set" + capitalize(s) + "(" + (o == null ? null : o.getClass().getSimpleName()) + ") is not a method!");
 			}
-			catch (Throwable t)
+			else
 			{
-				Log.w("droidQuery", view.getClass().getSimpleName() + ".set" + capitalize(s) + "(" + o.getClass().getSimpleName() + ") is not a method!");
+				ViewChanges.attributeChanged(view, s);
 			}
 		}
 		return this;
@@ -1855,6 +1817,8 @@ public class $
 		if (view(0) instanceof ViewGroup)
 		{
 			((ViewGroup) view(0)).addView(v);
+			ViewIndex.invalidate(view(0));
+			ViewChanges.viewAdded(view(0), v);
 		}
 		return this;
 	}
@@ -1875,6 +1839,8 @@ public class $
 		if (view(0) instanceof ViewGroup)
 		{
 			((ViewGroup) view(0)).addView(v);
+			ViewIndex.invalidate(view(0));
+			ViewChanges.viewAdded(view(0), v);
 		}
 		return this;
 	}
@@ -1947,6 +1913,7 @@ public class $
 		if (view(0) instanceof ViewGroup)
 		{
 			((ViewGroup) view(0)).removeView(v);
+			ViewIndex.invalidate(view(0));
 		}
 		return null;
 	}
@@ -1967,6 +1934,7 @@ public class $
 		if (view(0) instanceof ViewGroup)
 		{
 			((ViewGroup) view(0)).removeView(v);
+			ViewIndex.invalidate(view(0));
 		}
 		return this;
 	}
@@ -2994,6 +2962,7 @@ public class $
 			if (parent != null && parent instanceof ViewGroup)
 			{
 				((ViewGroup) parent).removeView(view);
+				ViewIndex.invalidate((ViewGroup) parent);
 			}
 		}
 		
@@ -3002,59 +2971,61 @@ public class $
 	/////Selectors
 	
 	/**
-	 * Recursively selects all subviews of the given view
-	 * @param v the parent view of all the suclasses to select
-	 * @return a list of all views that are subviews in the 
-	 * view hierarchy with the given view as the root
+	 * Get the position of a view among the siblings of the same type
+	 * @param view the view
+	 * @param type the type
+	 * @param fromEnd {@code true} to count from the last sibling, otherwise from the first
+	 * @return the position, starting at 1, or 0 if the view has no parent view.
 	 */
-	private List<View> recursivelySelectAllSubViews(View v)
+	private static int indexOfType(View view, Class<?> type, boolean fromEnd)
 	{
-		List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
+		if (!(view.getParent() instanceof ViewGroup))
+			return 0;
+		ViewGroup parent = (ViewGroup) view.getParent();
+		int count = parent.getChildCount();
+		int index = 0;
+		for (int i = 0; i < count; i++)
 		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectAllSubViews(((ViewGroup) v).getChildAt(i)));
-			}
+			View sibling = parent.getChildAt(fromEnd ? count - 1 - i : i);
+			if (type.isInstance(sibling))
+				index++;
+			if (sibling == view)
+				return index;
 		}
-		list.add(v);
-		return list;
+		return 0;
 	}
 	
 	/**
-	 * Recursively selects all subviews of the given view that are subclasses of the given Object type
-	 * @param v the parent view of all the suclasses to select
-	 * @return a list of all views that are subviews in the 
-	 * view hierarchy with the given view as the root
+	 * Select all subviews of the currently-selected views
+	 * @return a droidQuery Object with all the views
 	 */
-	private List<View> recursivelySelectByType(View v, Class<?> clazz)
+	public $ selectAll()
 	{
-		List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectByType(((ViewGroup) v).getChildAt(i), clazz));
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return true;
 			}
-		}
-		if (clazz.isInstance(v))
-			list.add(v);
-		return list;
+		}, new ArrayList<View>());
+		return $.with(context, subviews);
 	}
 	
 	/**
-	 * Select all subviews of the currently-selected views
-	 * @return a droidQuery Object with all the views
+	 * Index the view hierarchies of the currently-selected views by id, type and tag, so that 
+	 * {@link #id(int)}, {@link #selectByType(Class)}, {@link #selectByTag(Object)} and CSS selectors 
+	 * do not need to search the whole hierarchy. This is worthwhile for large layouts that are 
+	 * queried often.
+	 * @return this
+	 * @see ViewIndex
 	 */
-	public $ selectAll()
+	public $ index()
 	{
-		List<View> subviews = new ArrayList<View>();
 		for (int i = 0; i < this.views.size(); i++)
 		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectAllSubViews(view));
+			ViewIndex.attach(this.views.get(i));
 		}
-		return $.with(context, subviews);
+		return this;
 	}
 	
 	/**
@@ -3097,14 +3068,45 @@ public class $
 	 * @param clazz class
 	 * @return all the selected views in a droidQuery wrapper
 	 */
-	public $ selectByType(Class<?> clazz)
+	public $ selectByType(final Class<?> clazz)
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
+		if (this.views.size() == 1)
 		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectByType(view, clazz));
+			ViewIndex index = ViewIndex.find(this.views.get(0));
+			if (index != null)
+				return $.with(context, index.selectByType(this.views.get(0), clazz));
 		}
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return clazz.isInstance(view);
+			}
+		}, new ArrayList<View>());
+		return $.with(context, subviews);
+	}
+	
+	/**
+	 * Select all subviews of the currently-selected views whose tag equals the given Object.
+	 * @param tag the tag. Must not be {@code null}.
+	 * @return all the selected views in a droidQuery wrapper
+	 * @see #tag(Object)
+	 */
+	public $ selectByTag(final Object tag)
+	{
+		if (this.views.size() == 1)
+		{
+			ViewIndex index = ViewIndex.find(this.views.get(0));
+			if (index != null)
+				return $.with(context, index.selectByTag(this.views.get(0), tag));
+		}
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return tag.equals(view.getTag());
+			}
+		}, new ArrayList<View>());
 		return $.with(context, subviews);
 	}
 	
@@ -3137,28 +3139,6 @@ public class $
 		return $.with(context, list);
 	}
 	
-	/**
-	 * Selects all subviews of the given view that do not contain subviews
-	 * @param v the view whose subviews will be retrieved
-	 * @return a list empty views
-	 */
-	private List<View> recursivelySelectEmpties(View v)
-	{
-		List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup && ((ViewGroup) v).getChildCount() > 0)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectEmpties(((ViewGroup) v).getChildAt(i)));
-			}
-		}
-		else if (!(v instanceof AdapterView && ((AdapterView<?>) v).getCount() > 0))
-		{
-			list.add(v);
-		}
-		return list;
-	}
-	
 	/**
 	 * Select all non-ViewGroups, or ViewGroups with no children, that lay within the view
 	 * hierarchy of the current selection
@@ -3166,38 +3146,16 @@ public class $
 	 */
 	public $ selectEmpties()
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectEmpties(view));
-		}
-		return $.with(context, subviews);
-	}
-	
-	/**
-	 * Searches the view hierarchy rooted at the given view in order to find the currently
-	 * focused view
-	 * @param view the view to search within
-	 * @return the selected view, or null if no view in the given hierarchy was focused.
-	 */
-	private View recursivelyFindFocusedSubView(View view)
-	{
-		if (view.isFocused())
-			return view;
-		else if (view instanceof ViewGroup)
-		{
-			View v = null;
-			for (int i = 0; i < ((ViewGroup) view).getChildCount(); i++)
-			{
-				v = recursivelyFindFocusedSubView(((ViewGroup) view).getChildAt(i));
-				if (v != null)
-					return v;
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				if (view instanceof ViewGroup && ((ViewGroup) view).getChildCount() > 0)
+					return false;
+				return !(view instanceof AdapterView && ((AdapterView<?>) view).getCount() > 0);
 			}
-			return null;
-		}
-		else
-			return null;
+		}, new ArrayList<View>());
+		return $.with(context, subviews);
 	}
 	
 	/**
@@ -3206,15 +3164,21 @@ public class $
 	 */
 	public $ selectFocused()
 	{
-		View focused = recursivelyFindFocusedSubView(rootView);
-		if (focused != null)
-			return $.with(focused);
+		ViewTraversal.Filter focused = new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return view.isFocused();
+			}
+		};
+		View view = ViewTraversal.first(rootView, focused);
+		if (view != null)
+			return $.with(view);
 		for (int i = 0; i < this.views.size(); i++)
 		{
-			View view = this.views.get(i);
-			focused = recursivelyFindFocusedSubView(view);
-			if (focused != null)
-				return $.with(focused);
+			view = ViewTraversal.first(this.views.get(i), focused);
+			if (view != null)
+				return $.with(view);
 		}
 		
 		return $.with(view(0).getContext());
@@ -3226,79 +3190,27 @@ public class $
 	 */
 	public $ selectSelected()
 	{
-		List<View> selected = recursivelyFindSelectedSubView(rootView);
-		if (selected != null)
-			return $.with(selected);
-		selected = new ArrayList<View>();
+		final List<View> selected = new ArrayList<View>();
+		//selected views are added without their subviews
+		ViewTraversal.Visitor visitor = new ViewTraversal.Visitor() {
+			
+			@Override
+			public int visit(View view) {
+				if (!view.isSelected())
+					return ViewTraversal.CONTINUE;
+				selected.add(view);
+				return ViewTraversal.SKIP_CHILDREN;
+			}
+		};
+		ViewTraversal.traverse(rootView, visitor);
+		if (!selected.isEmpty())
+			return $.with(context, selected);
 		for (int i = 0; i < this.views.size(); i++)
 		{
-			View view = this.views.get(i);
-			selected.addAll(recursivelyFindSelectedSubView(view));
+			ViewTraversal.traverse(this.views.get(i), visitor);
 		}
 		
-		return $.with(view(0).getContext());
-	}
-	
-	/**
-	 * Searches the view hierarchy rooted at the given view in order to find the currently
-	 * selected views
-	 * @param view the view to search within
-	 * @return the selected views, or null if no view in the given hierarchy was selected.
-	 */
-	private static List<View> recursivelyFindSelectedSubView(View view)
-	{
-		List<View> views = new ArrayList<View>();
-		if (view.isSelected())
-			views.add(view);
-		else if (view instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) view).getChildCount(); i++)
-			{
-				views.addAll(recursivelyFindSelectedSubView(((ViewGroup) view).getChildAt(i)));
-			}
-		}
-		return views;
-	}
-	
-	/**
-	 * Select all {@link View#INVISIBLE invisible}, {@link View#GONE gone}, and 0-alpha views within the 
-	 * view hierarchy rooted at the given view
-	 * @param v the view hierarchy in which to search
-	 * @return a list the found views
-	 */
-	private List<View> recursivelySelectHidden(View v)
-	{
-		List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectHidden(((ViewGroup) v).getChildAt(i)));
-			}
-		}
-		if (v.getVisibility() == View.INVISIBLE || v.getVisibility() == View.GONE || ViewHelper.getAlpha(v) == 0)
-			list.add(v);
-		return list;
-	}
-	
-	/**
-	 * Select all {@link View#VISIBLE visible} and 1-alpha views within the given view hierarchy
-	 * @param v the view to search in
-	 * @return a list the found views
-	 */
-	private List<View> recursivelySelectVisible(View v)
-	{
-		List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectVisible(((ViewGroup) v).getChildAt(i)));
-			}
-		}
-		if (v.getVisibility() == View.VISIBLE || ViewHelper.getAlpha(v) == 1)
-			list.add(v);
-		return list;
+		return $.with(context, selected);
 	}
 	
 	/**
@@ -3308,12 +3220,13 @@ public class $
 	 */
 	public $ selectHidden()
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectHidden(view));
-		}
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return view.getVisibility() == View.INVISIBLE || view.getVisibility() == View.GONE || ViewHelper.getAlpha(view) == 0;
+			}
+		}, new ArrayList<View>());
 		return $.with(context, subviews);
 	}
 	
@@ -3324,12 +3237,13 @@ public class $
 	 */
 	public $ selectVisible()
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectVisible(view));
-		}
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return view.getVisibility() == View.VISIBLE || ViewHelper.getAlpha(view) == 1;
+			}
+		}, new ArrayList<View>());
 		return $.with(context, subviews);
 	}
 	
@@ -3361,6 +3275,8 @@ public class $
 		for (int i = 0; i < views.size(); i++)
 		{
 			views.get(i).setTag(tag);
+			ViewIndex.invalidate(views.get(i));
+			ViewChanges.attributeChanged(views.get(i), "tag");
 		}
 		return this;
 	}
@@ -3398,36 +3314,9 @@ public class $
 	 */
 	public $ selectImages()
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectByType(view, ImageView.class));
-		}
-		return $.with(context, subviews);
+		return selectByType(ImageView.class);
 	}
 
-	/**
-	 * Selects all views within the given current selection that are the single 
-	 * children of their parent views
-	 * @param v the view whose hierarchy will be checked
-	 * @return a list of the found views.
-	 */
-	private List<View> recursivelySelectOnlyChilds(View v)
-	{
-		List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectOnlyChilds(((ViewGroup) v).getChildAt(i)));
-			}
-		}
-		if (v.getParent() instanceof ViewGroup && ((ViewGroup) v.getParent()).getChildCount() == 1)
-			list.add(v);
-		return list;
-	}
-	
 	/**
 	 * Selects all views within the current selection that are the single children of their 
 	 * parent views
@@ -3435,42 +3324,14 @@ public class $
 	 */
 	public $ selectOnlyChilds()
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectOnlyChilds(view));
-		}
-		return $.with(context, subviews);
-	}
-	
-	/**
-	 * Selects all views within the given current selection that are the nth 
-	 * child of their parent views
-	 * @param v the view whose hierarchy will be checked
-	 * @param n the index to search. Note that a value of 1 will search the 0th child.
-	 * @return a list of the found views.
-	 */
-	private List<View> recursivelySelectNthChilds(View v, final int n)
-	{
-		final List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectNthChilds(((ViewGroup) v).getChildAt(i), n));
-			}
-		}
-		$.with(v).siblings(new Function() {
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
 			
 			@Override
-			public void invoke($ droidQuery, Object... params) {
-				int index = (Integer) params[0];
-				if (index == n)
-					list.add(droidQuery.view(0));
+			public boolean matches(View view) {
+				return view.getParent() instanceof ViewGroup && ((ViewGroup) view.getParent()).getChildCount() == 1;
 			}
-		});
-		return list;
+		}, new ArrayList<View>());
+		return $.with(context, subviews);
 	}
 	
 	/**
@@ -3478,46 +3339,16 @@ public class $
 	 * @param n the index to search. Note that a value of 1 will search the 0th child.
 	 * @return a droidQuery Object containing the found views.
 	 */
-	public $ selectNthChilds(int n)
+	public $ selectNthChilds(final int n)
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectNthChilds(view, n));
-		}
-		return $.with(context, subviews);
-	}
-	
-	/**
-	 * Selects all views within the given current selection that are the nth-from-the-end 
-	 * child of their parent views
-	 * @param v the view whose hierarchy will be checked
-	 * @param n the index to search. Note that a value of 1 will search the 0th child.
-	 * @return a list of the found views.
-	 */
-	private List<View> recursivelySelectNthFromEndChilds(View v, final int n)
-	{
-		final List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectNthFromEndChilds(((ViewGroup) v).getChildAt(i), n));
-			}
-		}
-		final List<View> siblings = new ArrayList<View>();
-		$.with(v).siblings(new Function() {
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
 			
 			@Override
-			public void invoke($ droidQuery, Object... params) {
-				siblings.add(droidQuery.view(0));
+			public boolean matches(View view) {
+				return view.getParent() instanceof ViewGroup && ((ViewGroup) view.getParent()).indexOfChild(view) == n;
 			}
-		});
-		Collections.reverse(siblings);
-		if (siblings.size() >= n)
-			list.add(siblings.get(n));
-		return list;
+		}, new ArrayList<View>());
+		return $.with(context, subviews);
 	}
 	
 	/**
@@ -3526,47 +3357,19 @@ public class $
 	 * @param n the index to search. Note that a value of 1 will search the 0th child.
 	 * @return a droidQuery Object containing the found views.
 	 */
-	public $ selectNthFromEndChilds(int n)
-	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectNthFromEndChilds(view, n));
-		}
-		return $.with(context, subviews);
-	}
-	
-	/**
-	 * Selects all views within the given current selection that are the nth 
-	 * child of type {@code type} of their parent views
-	 * @param v the view whose hierarchy will be checked
-	 * @param n the index to search. Note that a value of 1 will search the 0th child.
-	 * @param type the type of view to select
-	 * @return a list of the found views.
-	 */
-	private List<View> recursivelySelectNthChildsOfType(View v, final int n, final Class<?> type)
+	public $ selectNthFromEndChilds(final int n)
 	{
-		final List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectNthChildsOfType(((ViewGroup) v).getChildAt(i), n, type));
-			}
-		}
-		final Count count = new Count();
-		$.with(v).siblings(new Function() {
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
 			
 			@Override
-			public void invoke($ droidQuery, Object... params) {
-				if (type.isInstance(droidQuery.view(0)))
-					count.index++;
-				if (count.index == n)
-					list.add(droidQuery.view(0));
+			public boolean matches(View view) {
+				if (!(view.getParent() instanceof ViewGroup))
+					return false;
+				ViewGroup parent = (ViewGroup) view.getParent();
+				return parent.getChildCount() - 1 - parent.indexOfChild(view) == n;
 			}
-		});
-		return list;
+		}, new ArrayList<View>());
+		return $.with(context, subviews);
 	}
 	
 	/**
@@ -3576,14 +3379,15 @@ public class $
 	 * @param type the type of view to select
 	 * @return a droidQuery Object containing the found views.
 	 */
-	public $ selectNthChildsOfType(int n, Class<?> type)
+	public $ selectNthChildsOfType(final int n, final Class<?> type)
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectNthChildsOfType(view, n, type));
-		}
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				return type.isInstance(view) && indexOfType(view, type, false) == n;
+			}
+		}, new ArrayList<View>());
 		return $.with(context, subviews);
 	}
 	
@@ -3624,62 +3428,21 @@ public class $
 	}
 	
 	/**
-	 * Selects all views within the given current selection that are the nth-from-the-end 
+	 * Selects all views within the current selection that are the nth-from-the-end 
 	 * child of type {@code type} of their parent views
-	 * @param v the view whose hierarchy will be checked
 	 * @param n the index to search. 
 	 * @param type the type of view to select
-	 * @return a list of the found views.
+	 * @return a droidQuery Object containing the found views.
 	 */
-	private List<View> recursivelySelectNthFromEndChildsOfType(View v, final int n, final Class<?> type)
+	public $ selectNthFromEndChildsOfType(final int n, final Class<?> type)
 	{
-		final List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectNthFromEndChildsOfType(((ViewGroup) v).getChildAt(i), n, type));
-			}
-		}
-		final List<View> siblings = new ArrayList<View>();
-		$.with(v).siblings(new Function() {
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
 			
 			@Override
-			public void invoke($ droidQuery, Object... params) {
-				siblings.add(droidQuery.view(0));
-			}
-		});
-		Collections.reverse(siblings);
-		int count = 0;
-		for (int i = 0; i < siblings.size(); i++)
-		{
-			if (type.isInstance(siblings.get(i)))
-				count++;
-			if (count == n)
-			{
-				list.add(siblings.get(i));
-				break;
+			public boolean matches(View view) {
+				return type.isInstance(view) && indexOfType(view, type, true) == n;
 			}
-			
-		}
-		return list;
-	}
-	
-	/**
-	 * Selects all views within the current selection that are the nth-from-the-end 
-	 * child of type {@code type} of their parent views
-	 * @param n the index to search. 
-	 * @param type the type of view to select
-	 * @return a droidQuery Object containing the found views.
-	 */
-	public $ selectNthFromEndChildsOfType(int n, Class<?> type)
-	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectNthFromEndChildsOfType(view, n, type));
-		}
+		}, new ArrayList<View>());
 		return $.with(context, subviews);
 	}
 	
@@ -3719,48 +3482,22 @@ public class $
 		return selectNthFromEndChildsOfType(n, clazz);
 	}
 	
-	/**
-	 * Selects all views within the given current selection that are the last 
-	 * child of their parent views
-	 * @param v the view whose hierarchy will be checked
-	 * @return a list of the found views.
-	 */
-	private List<View> recursivelySelectLastChilds(View v, final int n)
-	{
-		final List<View> list = new ArrayList<View>();
-		if (v instanceof ViewGroup)
-		{
-			for (int i = 0; i < ((ViewGroup) v).getChildCount(); i++)
-			{
-				list.addAll(recursivelySelectLastChilds(((ViewGroup) v).getChildAt(i), n));
-			}
-		}
-		
-		final List<View> siblings = new ArrayList<View>();
-		$.with(v).siblings(new Function() {
-			
-			@Override
-			public void invoke($ droidQuery, Object... params) {
-				siblings.add(droidQuery.view(0));
-			}
-		});
-		if (siblings.size() > 0)
-			list.add(siblings.get(siblings.size()-1));
-		return list;
-	}
-	
 	/**
 	 * Selects all views within the current selection that are the last child of their parent views
 	 * @return a droidQuery Object containing the found views.
 	 */
 	public $ selectLastChilds(int n)
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectLastChilds(view, n));
-		}
+		List<View> subviews = ViewTraversal.collect(this.views, new ViewTraversal.Filter() {
+			
+			@Override
+			public boolean matches(View view) {
+				if (!(view.getParent() instanceof ViewGroup))
+					return false;
+				ViewGroup parent = (ViewGroup) view.getParent();
+				return parent.getChildAt(parent.getChildCount() - 1) == view;
+			}
+		}, new ArrayList<View>());
 		return $.with(context, subviews);
 	}
 	
@@ -3770,13 +3507,7 @@ public class $
 	 */
 	public $ selectParents()
 	{
-		List<View> subviews = new ArrayList<View>();
-		for (int i = 0; i < this.views.size(); i++)
-		{
-			View view = this.views.get(i);
-			subviews.addAll(recursivelySelectByType(view, ViewGroup.class));
-		}
-		return $.with(context, subviews);
+		return selectByType(ViewGroup.class);
 	}
 	
 	/**
@@ -4429,11 +4160,14 @@ public class $
 	 */
 	public static Document parseXML(String xml)
 	{
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder builder = null;
 		try {
-			return factory.newDocumentBuilder().parse(xml);
+			builder = XMLParsers.documentBuilder();
+			return builder.parse(new InputSource(new StringReader(xml)));
 		} catch (Throwable t) {
 			return null;
+		} finally {
+			XMLParsers.release(builder);
 		}
 	}
 	
@@ -4453,60 +4187,116 @@ public class $
 	/**
 	 * Perform a new Ajax Task using the AjaxOptions set in the given Key-Value Map
 	 * @param options {@link AjaxOptions} options
+	 * @return a promise for the result of the task
 	 */
-	public static void ajax(Map<String, Object> options)
+	public static AjaxPromise ajax(Map<String, Object> options)
 	{
-		ajax(new JSONObject(options));
+		return ajax(new JSONObject(options));
 	}
 	
 	/**
 	 * Perform a new Ajax Task using the given JSON string to configure the {@link AjaxOptions}
 	 * @param options {@link AjaxOptions} as a JSON String
+	 * @return a promise for the result of the task
 	 */
-	public static void ajax(String options)
+	public static AjaxPromise ajax(String options)
 	{
+		JSONObject json;
 		try
 		{
-			ajax(new JSONObject(options));
+			json = new JSONObject(options);
 		}
 		catch (Throwable t)
 		{
-			throw new NullPointerException("Could not parse JSON!");
+			Log.e("droidQuery", "Could not parse JSON!", t);
+			return badConfiguration(null);
 		}
+		return ajax(json);
 	}
 	
 	/**
 	 * Perform a new Ajax Task using the given JSONObject to configure the {@link AjaxOptions}
 	 * @param options {@link AjaxOptions} as a JSONObject Object
+	 * @return a promise for the result of the task
 	 */
-	public static void ajax(JSONObject options)
+	public static AjaxPromise ajax(JSONObject options)
 	{
 		try
 		{
-			ajax(new AjaxOptions(options));
+			return ajax(new AjaxOptions(options));
 		}
 		catch (Throwable t)
 		{
 			Log.e("droidQuery", "Could not complete ajax task!", t);
+			return badConfiguration(null);
 		}
 	}
 	
+	/**
+	 * Create a promise that is rejected because a request could not be started
+	 * @param options the options of the request, or {@code null} if they could not be created
+	 * @return the rejected promise. Its error arguments are an {@link AjaxTask.AjaxError}, the status 0, 
+	 * and the reason "Bad Configuration".
+	 */
+	private static AjaxPromise badConfiguration(AjaxOptions options)
+	{
+		AjaxTask.AjaxError error = new AjaxTask.AjaxError();
+		error.options = options;
+		error.status = 0;
+		error.reason = "Bad Configuration";
+		return AjaxPromise.rejected(error, error.status, error.reason, null);
+	}
+	
 	/**
 	 * Perform an Ajax Task using the given {@code AjaxOptions}
 	 * @param options the options to set for the Ajax Task
+	 * @return a promise for the result of the task
+	 * @see AjaxPromise
 	 */
-	public static void ajax(AjaxOptions options)
+	public static AjaxPromise ajax(final AjaxOptions options)
 	{
 		try
 		{
+			final AjaxPromise prefetch = Prefetcher.join(options);
+			if (prefetch != null)
+			{
+				//wait for the running prefetch, then answer this request from the cache.
+				final AjaxPromise joined = new AjaxPromise(options.context() == null ? null : $.with(options.context()));
+				prefetch.always(new Function() {
+					@Override
+					public void invoke($ droidQuery, Object... params) {
+						if (!joined.isPending())
+							return;
+						if (prefetch.state() == AjaxPromise.State.RESOLVED)
+							joined.follow(ajax(((AjaxOptions) options.clone()).cache(true)));
+						else
+							joined.follow(ajax(options));
+					}
+				});
+				return joined;
+			}
+			
+			AjaxPromise promise;
 			if (options.usesNewAPI())
-				new Ajax(options).execute();
+			{
+				Ajax ajax = new Ajax(options);
+				promise = ajax.promise();
+				Prefetcher.foreground(promise);
+				ajax.execute();
+			}
 			else
-				new AjaxTask(options).execute();
+			{
+				AjaxTask task = new AjaxTask(options);
+				promise = task.promise();
+				Prefetcher.foreground(promise);
+				task.execute();
+			}
+			return promise;
 		}
 		catch (Throwable t)
 		{
 			Log.e("droidQuery", "Could not complete ajax task!", t);
+			return badConfiguration(options);
 		}
 	}
 	
@@ -4517,10 +4307,13 @@ public class $
 	 * @see AjaxTask.AjaxError
 	 * @deprecated This will make a request using the legacy AjaxTask, which is no longer supported. 
 	 * Using {@link #ajax(HttpURLConnection, AjaxOptions)} is recommended.
+	 * @return a promise for the result of the task
 	 */
-	public static void ajax(HttpUriRequest request, AjaxOptions options)
+	public static AjaxPromise ajax(HttpUriRequest request, AjaxOptions options)
 	{
-		new AjaxTask(request, options).execute();
+		AjaxTask task = new AjaxTask(request, options);
+		task.execute();
+		return task.promise();
 	}
 	
 	/**
@@ -4528,9 +4321,62 @@ public class $
 	 * @param request the request
 	 * @param options the configuration
 	 * @see AjaxTask.AjaxError
+	 * @return a promise for the result of the task
+	 */
+	public static AjaxPromise ajax(HttpURLConnection request, AjaxOptions options) {
+		Ajax ajax = new Ajax(request, options);
+		ajax.execute();
+		return ajax.promise();
+	}
+	
+	/**
+	 * Warm the {@link AjaxCache} with low-priority background requests. Prefetches only run while no
+	 * other Ajax Task is in progress, never invoke the callbacks of the given options, and are joined
+	 * by later requests for the same data.
+	 * @param options the requests to prefetch
+	 * @return one promise per prefetch. Cancelling a promise cancels its prefetch.
+	 * @see Prefetcher
+	 */
+	public static AjaxPromise[] prefetch(AjaxOptions... options)
+	{
+		AjaxPromise[] promises = new AjaxPromise[options.length];
+		for (int i = 0; i < options.length; i++)
+		{
+			promises[i] = Prefetcher.prefetch(options[i]);
+		}
+		return promises;
+	}
+	
+	/**
+	 * Cancel all queued and running prefetches
+	 * @see #prefetch(AjaxOptions...)
+	 */
+	public static void cancelPrefetch()
+	{
+		Prefetcher.cancelAll();
+	}
+	
+	/**
+	 * Resolve the given host ahead of time, and park a warm connection to it in the connection pool,
+	 * so that the first request to it skips DNS, TCP and TLS setup. This is typically called during
+	 * application start for the hosts the app talks to.
+	 * @param host a host name, which will be connected to over HTTPS, or a URL such as {@code http://example.com}
+	 * @return a promise that is resolved once the connection is warm
+	 */
+	public static AjaxPromise preconnect(String host)
+	{
+		return Ajax.preconnect(host);
+	}
+	
+	/**
+	 * Join several Ajax Tasks. Shortcut for {@link AjaxPromise#all(AjaxPromise...)}.
+	 * @param promises the promises returned by {@link #ajax(AjaxOptions)} or its shortcut methods
+	 * @return a promise that is resolved once all of the given promises have been resolved, or
+	 * rejected as soon as one of them is rejected.
 	 */
-	public static void ajax(HttpURLConnection request, AjaxOptions options) {
-		new Ajax(request, options).execute();
+	public static AjaxPromise when(AjaxPromise... promises)
+	{
+		return AjaxPromise.all(promises);
 	}
 	
 	///////ajax shortcut methods
@@ -4542,10 +4388,11 @@ public class $
 	 * @param success the Function to invoke once the task completes successfully.
 	 * @param dataType the type of data to expect as a response from the URL. See 
 	 * {@link AjaxOptions#dataType()} for a list of available data types
+	 * @return a promise for the result of the task
 	 */
-	public static void get(String url, Object data, Function success, String dataType)
+	public static AjaxPromise get(String url, Object data, Function success, String dataType)
 	{
-		$.ajax(new AjaxOptions().url(url).data(data).success(success).dataType(dataType));
+		return $.ajax(new AjaxOptions().url(url).data(data).success(success).dataType(dataType));
 	}
 	
 	/**
@@ -4554,10 +4401,11 @@ public class $
 	 * @param url the URL to access
 	 * @param data the data to send, if any
 	 * @param success Function to invoke once the task completes successfully.
+	 * @return a promise for the result of the task
 	 */
-	public static void getJSON(String url, Object data, Function success)
+	public static AjaxPromise getJSON(String url, Object data, Function success)
 	{
-		get(url, data, success, "JSON");
+		return get(url, data, success, "JSON");
 	}
 	
 	/**
@@ -4567,10 +4415,11 @@ public class $
 	 * @param data the data to send, if any
 	 * @param success Function to invoke once the task completes successfully.
 	 * @see {@link ScriptResponse}
+	 * @return a promise for the result of the task
 	 */
-	public static void getScript(String url, Function success)
+	public static AjaxPromise getScript(String url, Function success)
 	{
-		$.ajax(new AjaxOptions().url(url).success(success).dataType("SCRIPT"));
+		return $.ajax(new AjaxOptions().url(url).success(success).dataType("SCRIPT"));
 	}
 	
 	/**
@@ -4580,10 +4429,11 @@ public class $
 	 * @param success Function to invoke once the task completes successfully.
 	 * @param dataType the type of data to expect as a response from the URL. See 
 	 * {@link AjaxOptions#dataType()} for a list of available data types
+	 * @return a promise for the result of the task
 	 */
-	public static void post(String url, Object data, Function success, String dataType)
+	public static AjaxPromise post(String url, Object data, Function success, String dataType)
 	{
-		$.ajax(new AjaxOptions().type("POST")
+		return $.ajax(new AjaxOptions().type("POST")
 				                .url(url)
 				                .data(data)
 				                .success(success)
@@ -4735,6 +4585,7 @@ public class $
 	{
 		AjaxTask.killTasks();
 		Ajax.killTasks();
+		Prefetcher.cancelAll();
 	}
 	
 	/**
@@ -4868,6 +4719,8 @@ public class $
 						tv.setBackgroundColor(context.getResources().getColor(android.R.color.transparent));
 						tv.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
 						((ViewGroup) view).addView(tv);
+						ViewIndex.invalidate(view);
+						ViewChanges.viewAdded(view, tv);
 						tv.setText(Html.fromHtml(html, new AsyncImageGetter(tv), null));
 					}
 					catch (Throwable t2)
@@ -4924,6 +4777,8 @@ public class $
 						tv.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
 						tv.setText(text);
 						((ViewGroup) view).addView(tv);
+						ViewIndex.invalidate(view);
+						ViewChanges.viewAdded(view, tv);
 					}
 					catch (Throwable t2)
 					{
@@ -4950,8 +4805,11 @@ public class $
 	 */
 	public $ image(int resourceId)
 	{
+		//replaces any image still loading for these views
+		ImageLoader.bind(views);
 		for (View v : views)
 		{
+			BitmapPool.sharedPool().display(v, null);
 			if (v instanceof ImageView)
 			{
 				((ImageView) v).setImageResource(resourceId);
@@ -4966,17 +4824,20 @@ public class $
 	
 	/**
 	 * Includes the given image inside of the selected views. If a view is an `ImageView`, its image
-	 * is set. Otherwise, the background image of the view is set.
+	 * is set. Otherwise, the background image of the view is set. The same bitmap is shared by all of
+	 * the selected views, so it must not be recycled or modified while they display it.
 	 * @param image the bitmap image to include
 	 * @return this
 	 */
 	public $ image(Bitmap image)
 	{
+		ImageLoader.bind(views);
 		for (View v : views)
 		{
+			BitmapPool.sharedPool().display(v, image);
 			if (v instanceof ImageView)
 			{
-				((ImageView) v).setImageBitmap(Bitmap.createBitmap(image));
+				((ImageView) v).setImageBitmap(image);
 			}
 			else
 			{
@@ -4994,8 +4855,10 @@ public class $
 	 */
 	public $ image(Drawable image)
 	{
+		ImageLoader.bind(views);
 		for (View v : views)
 		{
+			BitmapPool.sharedPool().display(v, null);
 			if (v instanceof ImageView)
 			{
 				((ImageView) v).setImageDrawable(image);
@@ -5021,142 +4884,144 @@ public class $
 	
 	/**
 	 * For `ImageView`s, this will set the image to the given asset or url. Otherwise, it will set the
-	 * background image for the selected views.
+	 * background image for the selected views. Images are downloaded and decoded on a background thread,
+	 * so the image is set asynchronously. One decoded bitmap is shared by all of the selected views, and
+	 * by the {@link BitmapCache}. Downloaded and sampled images are also kept in the {@link ImageDiskCache}.
+	 * @param source asset path, file path (starting with "file://") or URL to image
+	 * @param width specifies the output bitmap width. The image is sampled down to the closest power-of-two
+	 * size that is at least this large. If both dimensions are -1, the size of the largest selected view is used.
+	 * @param height specifies the output bitmap height
+	 * @param error if the given source is a file or asset, this receives a droidQuery wrapping the 
+	 * current context and the {@code Throwable} error. Otherwise, this will receive an
+	 * Ajax error.
+	 * @return this
+	 * @see AjaxOptions#error(Function)
+	 */
+	public $ image(String source, int width, int height, Function error)
+	{
+		return image(source, width, height, 0, 0, error);
+	}
+	
+	/**
+	 * For `ImageView`s, this will set the image to the given asset or url. Otherwise, it will set the
+	 * background image for the selected views. This is meant for views that are reused, such as the rows
+	 * of an {@code AdapterView}: setting another image on a view cancels this request for that view, and
+	 * a result that arrives after that is dropped instead of replacing the newer image. The download and
+	 * decode are stopped once none of the selected views still want this image.
 	 * @param source asset path, file path (starting with "file://") or URL to image
-	 * @param width specifies the output bitmap width
+	 * @param width specifies the output bitmap width. The image is sampled down to the closest power-of-two
+	 * size that is at least this large. If both dimensions are -1, the size of the largest selected view is used.
 	 * @param height specifies the output bitmap height
+	 * @param placeholder the resource ID of a drawable to show until the image has loaded, or {@code 0}
+	 * to leave the current image. Not shown if the image is already in the {@link BitmapCache}.
+	 * @param fade the duration, in milliseconds, of the cross-fade from the placeholder (or fade-in, if there
+	 * is no placeholder) to the loaded image, or {@code 0} to not fade. Images already in the {@link BitmapCache}
+	 * are shown without fading.
 	 * @param error if the given source is a file or asset, this receives a droidQuery wrapping the 
 	 * current context and the {@code Throwable} error. Otherwise, this will receive an
 	 * Ajax error.
 	 * @return this
 	 * @see AjaxOptions#error(Function)
 	 */
-	public $ image(final String source, int width, int height, final Function error)
+	public $ image(String source, int width, int height, final int placeholder, final long fade, final Function error)
 	{
-		if (source.startsWith("file://"))
+		int[] size = imageSize(width, height);
+		final String key = BitmapCache.keyFor(source, size[0], size[1]);
+		Bitmap cached = BitmapCache.sharedCache().lookup(key);
+		if (cached == null && placeholder != 0)
+			image(placeholder);
+		final ImageLoader.Request request = ImageLoader.bind(views);
+		if (cached != null)
 		{
-			try {
-				BitmapFactory.Options opt = new BitmapFactory.Options();
-				opt.inPreferredConfig = Bitmap.Config.ARGB_8888;
-				if (width >= 0)
-					opt.outWidth = width;
-				if (height >= 0)
-					opt.outHeight = height;
-				Bitmap bitmap = BitmapFactory.decodeFile(source.substring(6), opt);
-				for (View v : views)
-				{
-					if (v instanceof ImageView)
-					{
-						try
-						{
-							((ImageView) v).setImageBitmap(Bitmap.createBitmap(bitmap));
-						}
-						catch (Throwable t)
-						{
-							if (error != null)
-								error.invoke($.with(context), t);
-						}
-					}
-					else
-					{
-						v.setBackgroundDrawable(new BitmapDrawable(Bitmap.createBitmap(bitmap)));
-					}
-				}
-			}
-			catch(Throwable t) {
-				if (error != null) {
-					error.invoke($.with(context), t);
-				}
-			}
+			showImage(cached, request, 0, 0, error);
 		}
-		else if (URLUtil.isValidUrl(source))
+		else
 		{
-			AjaxOptions options = new AjaxOptions().url(source)
-				                                   .type("GET")
-				                                   .dataType("image")
-				                                   .context(context)
-				                                   .global(false)
-				                                   .redundancy(Redundancy.RESPOND_TO_ALL_LISTENERS)
-				                                   .success(new Function() {
+			//checks the disk cache before downloading or decoding
+			ImageLoader.load(context, source, size[0], size[1], request, new Function() {
 				@Override
 				public void invoke($ droidQuery, Object... params) {
 					Bitmap bitmap = (Bitmap) params[0];
-					for (View v : views)
-					{
-						if (v instanceof ImageView)
-						{
-							try {
-								((ImageView) v).setImageBitmap(Bitmap.createBitmap(bitmap));
-							}
-							catch (Throwable t)
-							{
-								if (error != null)
-									error.invoke($.with(context), t);
-							}
-						}
-						else
-						{
-							v.setBackgroundDrawable(new BitmapDrawable(Bitmap.createBitmap(bitmap)));
-						}
-					}
+					BitmapCache.sharedCache().put(key, bitmap);
+					showImage(bitmap, request, placeholder, fade, error);
 				}
-			});
-			
-			if (error != null) {
-				options.error(error);
-			}
-			if (width >= 0)
+			}, error, true);
+		}
+		return this;
+	}
+	
+	/**
+	 * Show a loaded image in the selected views that are still bound to the request that loaded it
+	 * @param bitmap the image
+	 * @param request the request
+	 * @param placeholder the resource ID of the placeholder shown while loading, or {@code 0}
+	 * @param fade the duration of the fade, in milliseconds, or {@code 0}
+	 * @param error receives errors thrown while setting the image. May be {@code null}.
+	 */
+	private void showImage(Bitmap bitmap, ImageLoader.Request request, int placeholder, long fade, Function error)
+	{
+		for (View v : views)
+		{
+			if (!ImageLoader.isBound(v, request))
+				continue;
+			BitmapPool.sharedPool().display(v, bitmap);
+			Drawable drawable = new BitmapDrawable(bitmap);
+			TransitionDrawable transition = null;
+			if (fade > 0)
 			{
-				options.imageWidth(width);
+				//an earlier droidQuery image may already be pooled, so only the placeholder is faded out
+				Drawable previous = null;
+				if (placeholder != 0)
+					previous = v instanceof ImageView ? ((ImageView) v).getDrawable() : v.getBackground();
+				if (previous == null)
+					previous = new ColorDrawable(Color.TRANSPARENT);
+				transition = new TransitionDrawable(new Drawable[]{previous, drawable});
+				transition.setCrossFadeEnabled(true);
+				drawable = transition;
 			}
-			if (height >= 0)
+			if (v instanceof ImageView)
 			{
-				options.imageHeight(height);
-			}
-			$.ajax(options);
-		}
-		else
-		{
-			try {
-				BitmapFactory.Options opt = new BitmapFactory.Options();
-				opt.inSampleSize = 1;
-				opt.inPurgeable = true;
-				opt.inInputShareable = false;
-				if (width >= 0)
-					opt.outWidth = width;
-				if (height >= 0)
-					opt.outHeight = height;
-				Bitmap bitmap = BitmapFactory.decodeStream(context.getAssets().open(source), new Rect(0,0,0,0), opt);
-				for (View v : views)
+				try
 				{
-					if (v instanceof ImageView)
-					{
-						try
-						{
-							((ImageView) v).setImageBitmap(Bitmap.createBitmap(bitmap));
-						}
-						catch (Throwable t)
-						{
-							if (error != null)
-								error.invoke($.with(context), t);
-						}
-					}
-					else
-					{
-						v.setBackgroundDrawable(new BitmapDrawable(Bitmap.createBitmap(bitmap)));
-					}
+					((ImageView) v).setImageDrawable(drawable);
 				}
-				
-			}
-			catch(Throwable t) {
-				if (error != null) {
-					error.invoke($.with(context), t);
+				catch (Throwable t)
+				{
+					if (error != null)
+						error.invoke($.with(context), t);
 				}
 			}
-			
-			
+			else
+			{
+				v.setBackgroundDrawable(drawable);
+			}
+			if (transition != null)
+				transition.startTransition((int) fade);
 		}
-		return this;
+	}
+	
+	/**
+	 * Get the size that an image shown in the selected views should be sampled down to
+	 * @param width the requested width, or -1
+	 * @param height the requested height, or -1
+	 * @return the requested size. If neither dimension was requested, this is the size of the largest 
+	 * selected view, or the screen size if the views have not been laid out yet.
+	 */
+	private int[] imageSize(int width, int height)
+	{
+		if (width >= 0 || height >= 0)
+			return new int[]{width, height};
+		for (View v : views)
+		{
+			width = Math.max(width, v.getWidth());
+			height = Math.max(height, v.getHeight());
+		}
+		if (width <= 0 || height <= 0)
+		{
+			width = context.getResources().getDisplayMetrics().widthPixels;
+			height = context.getResources().getDisplayMetrics().heightPixels;
+		}
+		return new int[]{width, height};
 	}
 	
 	/**
@@ -5218,11 +5083,15 @@ public class $
 			{
 				image.setLayoutParams(v.getLayoutParams());
 				((ViewGroup) parent).addView(image);
+				ViewIndex.invalidate((ViewGroup) parent);
+				ViewChanges.viewAdded((ViewGroup) parent, image);
 			}
 			else if (v instanceof ViewGroup)
 			{
 				image.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
 				((ViewGroup) v).addView(image);
+				ViewIndex.invalidate(v);
+				ViewChanges.viewAdded(v, image);
 			}
 		}
 		return this;
@@ -5249,11 +5118,15 @@ public class $
 			{
 				image.setLayoutParams(v.getLayoutParams());
 				((ViewGroup) parent).addView(image);
+				ViewIndex.invalidate((ViewGroup) parent);
+				ViewChanges.viewAdded((ViewGroup) parent, image);
 			}
 			else if (v instanceof ViewGroup)
 			{
 				image.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
 				((ViewGroup) v).addView(image);
+				ViewIndex.invalidate(v);
+				ViewChanges.viewAdded(v, image);
 			}
 		}
 		return this;
@@ -5280,11 +5153,15 @@ public class $
 			{
 				image.setLayoutParams(v.getLayoutParams());
 				((ViewGroup) parent).addView(image);
+				ViewIndex.invalidate((ViewGroup) parent);
+				ViewChanges.viewAdded((ViewGroup) parent, image);
 			}
 			else if (v instanceof ViewGroup)
 			{
 				image.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
 				((ViewGroup) v).addView(image);
+				ViewIndex.invalidate(v);
+				ViewChanges.viewAdded(v, image);
 			}
 		}
 		return this;
@@ -5311,7 +5188,8 @@ public class $
 	 * ImageView mask = (ImageView) $.with(myView).parent().selectChildren().selectImages().view(0);
 	 * </pre>
 	 * @param source asset path, file path (starting with "file://") or URL to image
-	 * @param width specifies the output bitmap width
+	 * @param width specifies the output bitmap width. The image is sampled down to the closest power-of-two
+	 * size that is at least this large. If both dimensions are -1, the size of the largest selected view is used.
 	 * @param height specifies the output bitmap height
 	 * @param error if the given source is a file or asset, this receives a droidQuery wrapping the 
 	 * current context and the {@code Throwable} error. Otherwise, this will receive an
@@ -5321,122 +5199,49 @@ public class $
 	 */
 	public $ mask(String source, int width, int height, Function error)
 	{
-		if (source.startsWith("file://"))
-		{
-			try {
-				BitmapFactory.Options opt = new BitmapFactory.Options();
-				opt.inPreferredConfig = Bitmap.Config.ARGB_8888;
-				if (width >= 0)
-					opt.outWidth = width;
-				if (height >= 0)
-					opt.outHeight = height;
-				Bitmap bitmap = BitmapFactory.decodeFile(source.substring(6), opt);
+		int[] size = imageSize(width, height);
+		final String key = BitmapCache.keyFor(source, size[0], size[1]);
+		final ImageLoader.Request request = ImageLoader.bindMask(views);
+		Function success = new Function() {
+			@Override
+			public void invoke($ droidQuery, Object... params) {
+				Bitmap bitmap = (Bitmap) params[0];
+				BitmapCache.sharedCache().put(key, bitmap);
 				for (View v : views)
 				{
+					if (!ImageLoader.isMaskBound(v, request))
+						continue;
 					ImageView image = new ImageView(context);
-					image.setImageBitmap(Bitmap.createBitmap(bitmap));
+					image.setImageBitmap(bitmap);
+					BitmapPool.sharedPool().display(image, bitmap);
 					image.setScaleType(ScaleType.FIT_XY);
 					ViewParent parent = v.getParent();
 					if (parent != null && parent instanceof ViewGroup)
 					{
 						image.setLayoutParams(v.getLayoutParams());
 						((ViewGroup) parent).addView(image);
+						ViewIndex.invalidate((ViewGroup) parent);
+						ViewChanges.viewAdded((ViewGroup) parent, image);
 					}
 					else if (v instanceof ViewGroup)
 					{
 						image.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
 						((ViewGroup) v).addView(image);
+						ViewIndex.invalidate(v);
+						ViewChanges.viewAdded(v, image);
 					}
 				}
 			}
-			catch(Throwable t) {
-				if (error != null) {
-					error.invoke($.with(context), t);
-				}
-			}
-		}
-		else if (URLUtil.isValidUrl(source))
+		};
+		Bitmap cached = BitmapCache.sharedCache().lookup(key);
+		if (cached != null)
 		{
-			AjaxOptions options = new AjaxOptions().url(source)
-					                               .type("GET")
-					                               .dataType("image")
-					                               .context(context)
-					                               .global(false)
-					                               .success(new Function() {
-				@Override
-				public void invoke($ droidQuery, Object... params) {
-					Bitmap bitmap = (Bitmap) params[0];
-					for (View v : views)
-					{
-						ImageView image = new ImageView(context);
-						image.setImageBitmap(Bitmap.createBitmap(bitmap));
-						image.setScaleType(ScaleType.FIT_XY);
-						ViewParent parent = v.getParent();
-						if (parent != null && parent instanceof ViewGroup)
-						{
-							image.setLayoutParams(v.getLayoutParams());
-							((ViewGroup) parent).addView(image);
-						}
-						else if (v instanceof ViewGroup)
-						{
-							image.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
-							((ViewGroup) v).addView(image);
-						}
-					}
-				}
-			});
-			
-			if (error != null) {
-				options.error(error);
-			}
-			if (width >= 0)
-			{
-				options.imageWidth(width);
-			}
-			if (height >= 0)
-			{
-				options.imageHeight(height);
-			}
-			$.ajax(options);
+			success.invoke($.with(context), cached);
 		}
 		else
 		{
-			try {
-				BitmapFactory.Options opt = new BitmapFactory.Options();
-				opt.inSampleSize = 1;
-				opt.inPurgeable = true;
-				opt.inInputShareable = false;
-				if (width >= 0)
-					opt.outWidth = width;
-				if (height >= 0)
-					opt.outHeight = height;
-				Bitmap bitmap = BitmapFactory.decodeStream(context.getAssets().open(source), new Rect(0,0,0,0), opt);
-				for (View v : views)
-				{
-					ImageView image = new ImageView(context);
-					image.setImageBitmap(Bitmap.createBitmap(bitmap));
-					image.setScaleType(ScaleType.FIT_XY);
-					ViewParent parent = v.getParent();
-					if (parent != null && parent instanceof ViewGroup)
-					{
-						image.setLayoutParams(v.getLayoutParams());
-						((ViewGroup) parent).addView(image);
-					}
-					else if (v instanceof ViewGroup)
-					{
-						image.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
-						((ViewGroup) v).addView(image);
-					}
-				}
-				
-			}
-			catch(Throwable t) {
-				if (error != null) {
-					error.invoke($.with(context), t);
-				}
-			}
-			
-			
+			//checks the disk cache before downloading or decoding
+			ImageLoader.load(context, source, size[0], size[1], request, success, error, true);
 		}
 		return this;
 	}
@@ -5933,18 +5738,4 @@ public class $
 		
 	}
 
-	/**
-	 * Simple class for allowing final access to an int
-	 * @author Phil Brown
-	 * @since 3:24:53 PM Dec 5, 2013
-	 *
-	 */
-	private class Count
-	{
-		public int index;
-		public Count()
-		{
-			index = 0;
-		}
-	}
 }
@@ -16,12 +16,9 @@
 
 package self.philbrown.droidQuery;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.lang.ref.WeakReference;
 import java.net.CookieManager;
 import java.net.CookieStore;
 import java.net.HttpCookie;
@@ -51,25 +48,19 @@ import java.util.concurrent.locks.LockSupport;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.http.client.ClientProtocolException;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
 
 import self.philbrown.droidQuery.AjaxOptions.Redundancy;
 import self.philbrown.droidQuery.AjaxTask.AjaxError;
 import self.philbrown.droidQuery.AjaxTask.Error;
 import self.philbrown.droidQuery.AjaxTask.Success;
 import self.philbrown.droidQuery.AjaxTask.TaskResponse;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Rect;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -122,6 +113,20 @@ public class Ajax {
 	/** Contains the current global tasks */
 	private static volatile List<Ajax> globalTasks = new ArrayList<Ajax>();
 	
+	/** Settled once this task completes. */
+	private AjaxPromise promise;
+	
+	/** Runs {@link #preconnect(String)} requests in the background. */
+	private static ExecutorService preconnectExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread t = new Thread(runnable);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
 	/**
 	 * Constructor
 	 * @param options JSON representation of the Ajax Options
@@ -163,6 +168,22 @@ public class Ajax {
 				return t;
 			}
 		});
+		this.promise = new AjaxPromise(options.context() == null ? null : $.with(options.context()));
+		this.promise.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				cancel(true);
+			}
+		});
+	}
+	
+	/**
+	 * Get the promise for the result of this task
+	 * @return the promise
+	 */
+	public AjaxPromise promise()
+	{
+		return promise;
 	}
 	
 	/**
@@ -201,6 +222,12 @@ public class Ajax {
 		else
 			executor.shutdown();
 		isCancelled = true;
+		AjaxError error = new AjaxError();
+		error.connection = connection;
+		error.options = options;
+		error.status = 0;
+		error.reason = AjaxPromise.CANCELLED;
+		promise.reject(error, 0, AjaxPromise.CANCELLED, null);
 	}
 	
 	/**
@@ -219,6 +246,69 @@ public class Ajax {
 		localTasks.clear();
 		$.ajaxStop();
 	}
+	
+	/**
+	 * Open a connection to the given host and leave it idle in the platform's keep-alive pool. The next
+	 * request to the same host can reuse that connection, and skip DNS, TCP and TLS setup.
+	 * @param host a host name, which will be connected to over HTTPS, or a URL such as {@code http://example.com}
+	 * @return a promise that is resolved with the host and the response status code once the connection is warm.
+	 */
+	public static AjaxPromise preconnect(final String host)
+	{
+		final AjaxPromise promise = new AjaxPromise();
+		Looper looper = Looper.myLooper();
+		final Handler handler = new Handler(looper != null ? looper : Looper.getMainLooper());
+		preconnectExecutor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				InputStream stream = null;
+				try
+				{
+					URL url = new URL(host.contains("://") ? host : "https://" + host);
+					HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+					connection.setRequestMethod("HEAD");
+					connection.connect();
+					final int statusCode = connection.getResponseCode();
+					//consume the (empty) body so the socket is returned to the pool. disconnect() would close it.
+					stream = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+					if (stream != null)
+					{
+						byte[] buffer = new byte[256];
+						while (stream.read(buffer) != -1);
+					}
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							promise.resolve(host, statusCode);
+						}
+					});
+				}
+				catch (final Throwable t)
+				{
+					//includes a ClassCastException if the URL is not http or https
+					Log.w("Ajax", "Could not preconnect to " + host, t);
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							AjaxError error = new AjaxError();
+							error.status = 0;
+							error.reason = t.getMessage();
+							promise.reject(error, 0, t.getMessage(), null);
+						}
+					});
+				}
+				finally
+				{
+					try {
+						if (stream != null)
+							stream.close();
+					} catch (IOException e) {}
+				}
+			}
+		});
+		return promise;
+	}
 
 	protected void onPreExecute()
 	{
@@ -511,8 +601,9 @@ public class Ajax {
 				
 		if (options.timeout() != 0)
 		{
-			connection.setConnectTimeout(options.timeout());
-			connection.setReadTimeout(options.timeout());
+			int timeout = NetworkQuality.timeout(options.timeout());
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
 		}
 		
 		if (options.trustedCertificate() != null) {
@@ -581,9 +672,11 @@ public class Ajax {
 				connection.setRequestProperty("Cookie", TextUtils.join(",",  cookies.getCookies()));
 			}
 			
+			long requestStart = SystemClock.elapsedRealtime();
 			connection.connect();
 			final int statusCode = connection.getResponseCode();
 			final String message = connection.getResponseMessage();
+			long responseStart = SystemClock.elapsedRealtime();
 			
 			if (options.dataFilter() != null)
 			{
@@ -611,80 +704,18 @@ public class Ajax {
 			}
 			
 			//handle dataType
-			String dataType = options.dataType();
-			if (dataType == null)
-				dataType = "text";
+			String contentType = connection.getContentType();
+			ResponseDecoder decoder = ResponseDecoders.resolve(options.dataType(), contentType);
 			if (options.debug())
-				Log.i("Ajax", "dataType = " + dataType);
+				Log.i("Ajax", "dataType = " + options.dataType() + ", Content-Type = " + contentType);
 			Object parsedResponse = null;
 			InputStream stream = null;
 			try
 			{
-				if (dataType.equalsIgnoreCase("text") || dataType.equalsIgnoreCase("html"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing text");
-					stream = AjaxUtil.getInputStream(connection);
-					parsedResponse = parseText(stream);
-				}
-				else if (dataType.equalsIgnoreCase("xml"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing xml");
-					if (options.customXMLParser() != null)
-					{
-						stream = AjaxUtil.getInputStream(connection);
-						if (options.SAXContentHandler() != null)
-							options.customXMLParser().parse(stream, options.SAXContentHandler());
-						else
-							options.customXMLParser().parse(stream, new DefaultHandler());
-						parsedResponse = "Response handled by custom SAX parser";
-					}
-					else if (options.SAXContentHandler() != null)
-					{				
-						stream = AjaxUtil.getInputStream(connection);		
-						SAXParserFactory factory = SAXParserFactory.newInstance();
-						
-						factory.setFeature("http://xml.org/sax/features/namespaces", false);
-						factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-						
-						SAXParser parser = factory.newSAXParser();
-						
-						XMLReader reader = parser.getXMLReader();
-						reader.setContentHandler(options.SAXContentHandler());
-						reader.parse(new InputSource(stream));
-						parsedResponse = "Response handled by custom SAX content handler";
-					}
-					else
-					{
-						parsedResponse = parseXML(connection);
-					}
-				}
-				else if (dataType.equalsIgnoreCase("json"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing json");
-					parsedResponse = parseJSON(connection);
-				}
-				else if (dataType.equalsIgnoreCase("script"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing script");
-					parsedResponse = parseScript(connection);
-				}
-				else if (dataType.equalsIgnoreCase("image"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing image");
-					stream = AjaxUtil.getInputStream(connection);
-					parsedResponse = parseImage(stream);
-				}
-				else if (dataType.equalsIgnoreCase("raw"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing raw data");
-					parsedResponse = parseRawContent(connection);
-				}
+				boolean gzip = AjaxUtil.isGzip(connection);
+				stream = AjaxUtil.sampledBody(connection.getInputStream(), gzip, responseStart - requestStart);
+				//the Content-Length of a gzip body is the compressed length
+				parsedResponse = decoder.decode(stream, contentType, gzip ? -1 : connection.getContentLength(), options);
 			}
 			catch (ClientProtocolException cpe)
 			{
@@ -722,12 +753,12 @@ public class Ajax {
 			}
 			finally
 			{
-				connection.disconnect();
 				try {
 					if (stream != null) {
 						stream.close();
 					}
 				} catch (IOException e) {}
+				connection.disconnect();
 			}
 			
 			if (statusCode >= 300)
@@ -976,6 +1007,38 @@ public class Ajax {
 					break;
 			}
 		}
+		
+		settlePromise(response);
+	}
+	
+	/**
+	 * Resolves or rejects {@link #promise} using the same arguments passed to the success or error callbacks.
+	 * @param response the task response
+	 */
+	private void settlePromise(TaskResponse response)
+	{
+		if (response instanceof Success)
+		{
+			Success s = (Success) response;
+			promise.resolve(s.response, s.reason, s.allHeaders);
+			return;
+		}
+		AjaxError error = new AjaxError();
+		error.connection = connection;
+		error.options = options;
+		if (response == null)
+		{
+			error.status = 0;
+			error.reason = "null response";
+			promise.reject(error, 0, error.reason, null);
+		}
+		else
+		{
+			error.status = response.status;
+			error.reason = response.reason;
+			error.response = response.response;
+			promise.reject(error, response.status, response.reason, response.allHeaders);
+		}
 	}
 	
 	/**
@@ -1001,71 +1064,23 @@ public class Ajax {
 	}
 	
 	/**
-	 * Parses the HTTP response as Text
-	 * @param stream the current connection to parse
+	 * Parses the HTTP response as UTF-8 Text
+	 * @param stream the current connection to parse. This is closed once read.
 	 * @return a String response
+	 * @see AjaxUtil#toString(InputStream, String, long)
 	 */
 	public static String parseText(InputStream stream) throws ClientProtocolException, IOException
 	{		
-		BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line).append("\n");
-        }
-        br.close();
-		return sb.toString();
-	}
-	
-	/**
-	 * Parses the HTTP response as a Script, then runs it.
-	 * @param connection the response to parse
-	 * @return a ScriptResponse Object containing the output String, if any, as well as the original
-	 * Script
-	 */
-	private ScriptResponse parseScript(HttpURLConnection connection) throws ClientProtocolException, IOException
-	{
-		if (options.context() != null)
+		try
 		{
-			ScriptResponseHandler handler = new ScriptResponseHandler(options.context());
-			return handler.handleResponse(connection);
+			return AjaxUtil.toString(stream, null, -1);
 		}
-		else
+		finally
 		{
-			throw new NullPointerException("No context provided.");
+			stream.close();
 		}
 	}
 	
-	/**
-	 * Parses the HTTP response as a Bitmap
-	 * @param stream the response to parse
-	 * @return a Bitmap response
-	 */
-	private Bitmap parseImage(InputStream stream) throws IllegalStateException, IOException
-	{
-    	BitmapFactory.Options opt = new BitmapFactory.Options();
-		opt.inSampleSize = 1;
-		opt.inPurgeable = true;
-		opt.inInputShareable = false;
-		if (options.imageWidth() >= 0)
-			opt.outWidth = options.imageWidth();
-		if (options.imageHeight() >= 0)
-			opt.outHeight = options.imageHeight();
-		WeakReference<Bitmap> bitmap = new WeakReference<Bitmap>(BitmapFactory.decodeStream(stream, new Rect(0,0,0,0), opt));
-		
-		if (bitmap == null || bitmap.get() == null)
-		{
-			return null;
-		}
-		
-		if (bitmap.get().isRecycled())
-		{
-			return null;
-		}
-        
-        return bitmap.get();
-	}
-	
 	/**
 	 * Parses the HTTP response as a raw byte[]
 	 * @param response the response to parse
@@ -1073,16 +1088,13 @@ public class Ajax {
 	 */
 	public static byte[] parseRawContent(HttpURLConnection connection) throws IOException
 	{
-		InputStream is = connection.getInputStream();
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line).append("\n");
-        }
-        br.close();
-        is.close();
-		return sb.toString().getBytes();
+		InputStream is = AjaxUtil.getInputStream(connection);
+		try {
+			//the Content-Length of a gzip body is the compressed length
+			return AjaxUtil.toByteArray(is, AjaxUtil.isGzip(connection) ? -1 : connection.getContentLength());
+		} finally {
+			is.close();
+		}
 	}
 	
 	/**
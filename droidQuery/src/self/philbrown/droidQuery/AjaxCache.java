@@ -121,6 +121,17 @@ public class AjaxCache
 		return this;
 	}
 	
+	/**
+	 * Get the key used to cache the response for the given options
+	 * @param options the request options
+	 * @return a key made of the data type (and response type, if set), type, url, and data of the request
+	 */
+	public static String keyFor(AjaxOptions options)
+	{
+		String dataType = options.responseType() == null ? options.dataType() : options.dataType() + "<" + options.responseType().getName() + ">";
+		return String.format(Locale.US, "%s::%s::%s::%s", dataType, (options.type() == null ? "GET" : options.type()), options.url(), (options.data() == null ? "" : options.data().toString()));
+	}
+	
 	/**
 	 * Get the cached response for the given options
 	 * @param options the options used to store the cache entry, or an options with the same data type, type, url, and data.
@@ -128,7 +139,7 @@ public class AjaxCache
 	 */
 	public Object getCachedResponse(AjaxOptions options)
 	{
-		String key = String.format(Locale.US, "%s::%s::%s::%s", options.dataType(), (options.type() == null ? "GET" : options.type()), options.url(), (options.data() == null ? "" : options.data().toString()));
+		String key = keyFor(options);
 
 		Object response = null;
 		Date date = null;
@@ -205,7 +216,7 @@ public class AjaxCache
 	 */
 	public String cacheResponse(Object response, AjaxOptions options)
 	{
-		String key = String.format(Locale.US, "%s::%s::%s::%s", options.dataType(), (options.type() == null ? "GET" : options.type()), options.url(), (options.data() == null ? "" : options.data().toString()));
+		String key = keyFor(options);
 		if (verbose)
 		{
 			Log.i("cacheResponse", "Key = " + key);
@@ -382,8 +382,8 @@ public class AjaxOptions implements Cloneable
 	
 	/**
 	 * Sets the type of the data that the request expects from the server. Can be one of:
-	 * "xml": Returns a XML document that can be processed via droidQuery. Note that if {@link #customXMLParser()}
-	 * or {@link #SAXContentHandler()} have been set, no Document will be returned. Instead, it will 
+	 * "xml": Returns a XML document that can be processed via droidQuery. Note that if {@link #customXMLParser()},
+	 * {@link #SAXContentHandler()} or {@link #xmlPullHandler()} have been set, no Document will be returned. Instead, it will 
 	 * pass a descriptive String.
 	 * "html": Returns HTML as plain text.
 	 * "script": Evaluates the response as bourne (NOT bash) script and returns it as plain text. 
@@ -391,6 +391,9 @@ public class AjaxOptions implements Cloneable
 	 * "text": A plain text string.
 	 * "image" : returns a bitmap object
 	 * "raw" : a byte[]
+	 * Other data types can be supported by registering a {@link ResponseDecoder} with {@link ResponseDecoders}.
+	 * If {@code null}, or if no decoder is registered for the given type, the decoder is chosen from 
+	 * the response's Content-Type.
 	 * @note if Script is used, {@link context} MUST be set.
 	 * @param dataType
 	 * @return this
@@ -454,6 +457,66 @@ public class AjaxOptions implements Cloneable
 		return customXMLParser;
 	}
 	
+	/**
+	 * Receives the elements of an XML response as it is streamed, instead of converting it to a Document
+	 */
+	private XMLParsers.XMLPullHandler xmlPullHandler;
+	
+	/**
+	 * Set the handler that should receive each element of an XML response as it is streamed. No
+	 * Document is built, so this is the fastest way to read large feeds. The handler is called on the
+	 * request's background thread. This will cause {@link #success()} to NOT pass a XML Document variable
+	 * as a parameter. Instead, it will pass a descriptive String. This is ignored if {@link #customXMLParser()}
+	 * or {@link #SAXContentHandler()} is set.
+	 * @param xmlPullHandler
+	 * @return this
+	 */
+	public AjaxOptions xmlPullHandler(XMLParsers.XMLPullHandler xmlPullHandler)
+	{
+		this.xmlPullHandler = xmlPullHandler;
+		return this;
+	}
+	
+	/**
+	 * Get the handler that receives each element of an XML response as it is streamed
+	 * @return the handler
+	 */
+	public XMLParsers.XMLPullHandler xmlPullHandler()
+	{
+		return xmlPullHandler;
+	}
+	
+	/**
+	 * The class that a JSON response is bound to, instead of a JSONObject or JSONArray
+	 */
+	private Class<?> responseType;
+	
+	/**
+	 * Set the class that a JSON response should be bound to. The response is read directly into an
+	 * instance of this class, which is then passed to {@link #success()} instead of a JSONObject or
+	 * JSONArray. Use an array class, such as {@code Post[].class}, to bind a JSON array. This also sets 
+	 * the {@link #dataType(String) dataType} to "json".
+	 * @param responseType the class, or {@code null} to receive a JSONObject or JSONArray.
+	 * @return this
+	 * @see JSONBinder
+	 */
+	public AjaxOptions responseType(Class<?> responseType)
+	{
+		this.responseType = responseType;
+		if (responseType != null)
+			this.dataType = "json";
+		return this;
+	}
+	
+	/**
+	 * Get the class that a JSON response is bound to
+	 * @return the class, or {@code null} if the response is parsed as a JSONObject or JSONArray.
+	 */
+	public Class<?> responseType()
+	{
+		return responseType;
+	}
+	
 	/**
 	 * A function to be called if the request fails. Receives original Request, 
 	 * the integer Status, and the String Error
@@ -888,6 +951,7 @@ public class AjaxOptions implements Cloneable
 	
 	/**
 	 * Used to configure the output bitmap width for requests that set the type attribute to "IMAGE". 
+	 * The image is sampled down by the largest power of two that keeps it at least this wide.
 	 * If not set, no width scaling will be done of the raw image.
 	 */
 	private int imageWidth = -1;
@@ -911,6 +975,7 @@ public class AjaxOptions implements Cloneable
 	
 	/**
 	 * Used to configure the output bitmap height for requests that set the type attribute to "IMAGE". 
+	 * The image is sampled down by the largest power of two that keeps it at least this tall.
 	 * If not set, no height scaling will be done of the raw image.
 	 */
 	private int imageHeight = -1;
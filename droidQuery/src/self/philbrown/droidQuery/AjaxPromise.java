@@ -0,0 +1,555 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import self.philbrown.droidQuery.AjaxTask.AjaxError;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Handle to the eventual result of an Ajax request, similar to jQuery's <em>Deferred</em>. It is
+ * returned from {@link $#ajax(AjaxOptions)} and its shortcut methods, and allows dependent requests
+ * to be chained, and independent requests to be joined, without nesting callbacks or blocking threads:
+ * <pre>
+ * AjaxPromise.all($.ajax(user), $.ajax(friends))
+ *            .then(new AjaxPromise.Pipe() {
+ *                public AjaxPromise pipe($ droidQuery, Object... params) {
+ *                    return $.ajax(new AjaxOptions().url(...));
+ *                }
+ *            })
+ *            .done(success)
+ *            .fail(error)
+ *            .timeout(10000);
+ * </pre>
+ * Resolved promises pass the same arguments as {@link AjaxOptions#success()}. Rejected promises pass
+ * the same arguments as {@link AjaxOptions#error()}. Callbacks are invoked on the thread that settles
+ * the promise, which for Ajax requests is the thread that started the request.
+ * @author Phil Brown
+ */
+public class AjaxPromise
+{
+	/**
+	 * The current state of a promise
+	 */
+	public static enum State
+	{
+		/** The request has not yet completed */
+		PENDING,
+		/** The request completed successfully */
+		RESOLVED,
+		/** The request failed, timed out, or was cancelled */
+		REJECTED
+	}
+
+	/**
+	 * Used by {@link AjaxPromise#then(Pipe)} to start a dependent request once this one resolves.
+	 */
+	public interface Pipe
+	{
+		/**
+		 * Called with the arguments of the resolved promise.
+		 * @param droidQuery the <em>droidQuery</em> instance of the resolved promise. May be {@code null}.
+		 * @param params the success arguments of the resolved promise
+		 * @return the promise of the next request, or {@code null} to pass the given arguments along unchanged.
+		 */
+		public AjaxPromise pipe($ droidQuery, Object... params);
+	}
+
+	/** Reason passed to error callbacks when a promise is cancelled. */
+	public static final String CANCELLED = "cancelled";
+	/** Reason passed to error callbacks when a promise times out. */
+	public static final String TIMEOUT = "timeout";
+
+	/** The current state */
+	private State state = State.PENDING;
+	/** {@code true} if {@link #cancel()} was called, or the promise timed out. */
+	private boolean cancelled = false;
+	/** The arguments passed to callbacks once this promise is settled. */
+	private Object[] args;
+	/** The <em>droidQuery</em> instance passed to callbacks. May be {@code null}. */
+	private $ droidQuery;
+	/** Callbacks to invoke once resolved */
+	private List<Function> doneCallbacks = new ArrayList<Function>();
+	/** Callbacks to invoke once rejected */
+	private List<Function> failCallbacks = new ArrayList<Function>();
+	/** Called when this promise is cancelled, in order to stop the underlying work. */
+	private List<Runnable> cancellers = new ArrayList<Runnable>();
+	/** Used for timeouts */
+	private Handler mHandler;
+
+	/**
+	 * Constructor
+	 */
+	public AjaxPromise()
+	{
+
+	}
+
+	/**
+	 * Constructor
+	 * @param droidQuery the <em>droidQuery</em> instance to pass to callbacks. May be {@code null}.
+	 */
+	public AjaxPromise($ droidQuery)
+	{
+		this.droidQuery = droidQuery;
+	}
+
+	/**
+	 * Creates a promise that is already resolved with the given arguments
+	 * @param params the success arguments
+	 * @return the resolved promise
+	 */
+	public static AjaxPromise resolved(Object... params)
+	{
+		AjaxPromise promise = new AjaxPromise();
+		promise.resolve(params);
+		return promise;
+	}
+
+	/**
+	 * Creates a promise that is already rejected with the given arguments
+	 * @param params the error arguments
+	 * @return the rejected promise
+	 */
+	public static AjaxPromise rejected(Object... params)
+	{
+		AjaxPromise promise = new AjaxPromise();
+		promise.reject(params);
+		return promise;
+	}
+
+	/**
+	 * Get the current state
+	 * @return the state
+	 */
+	public synchronized State state()
+	{
+		return state;
+	}
+
+	/**
+	 * @return {@code true} if the request has not yet completed. Otherwise {@code false}.
+	 */
+	public synchronized boolean isPending()
+	{
+		return state == State.PENDING;
+	}
+
+	/**
+	 * @return {@code true} if this promise was cancelled or timed out. Otherwise {@code false}.
+	 */
+	public synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Get the arguments this promise was settled with
+	 * @return the success or error arguments, or {@code null} if this promise is still pending.
+	 */
+	public synchronized Object[] args()
+	{
+		return args;
+	}
+
+	/**
+	 * Register a Function to invoke once this promise is resolved. If it has already been resolved,
+	 * {@code done} is invoked immediately.
+	 * @param done receives the same arguments as {@link AjaxOptions#success()}
+	 * @return this
+	 */
+	public AjaxPromise done(Function done)
+	{
+		boolean invoke;
+		synchronized(this)
+		{
+			invoke = state == State.RESOLVED;
+			if (state == State.PENDING)
+				doneCallbacks.add(done);
+		}
+		if (invoke)
+			done.invoke(droidQuery, args);
+		return this;
+	}
+
+	/**
+	 * Register a Function to invoke once this promise is rejected. If it has already been rejected,
+	 * {@code fail} is invoked immediately.
+	 * @param fail receives the same arguments as {@link AjaxOptions#error()}
+	 * @return this
+	 */
+	public AjaxPromise fail(Function fail)
+	{
+		boolean invoke;
+		synchronized(this)
+		{
+			invoke = state == State.REJECTED;
+			if (state == State.PENDING)
+				failCallbacks.add(fail);
+		}
+		if (invoke)
+			fail.invoke(droidQuery, args);
+		return this;
+	}
+
+	/**
+	 * Register a Function to invoke once this promise is either resolved or rejected.
+	 * @param always receives the success or error arguments
+	 * @return this
+	 */
+	public AjaxPromise always(Function always)
+	{
+		return done(always).fail(always);
+	}
+
+	/**
+	 * Chain a dependent request. The returned promise follows the promise returned by {@code pipe},
+	 * or is resolved with this promise's arguments if {@code pipe} returns {@code null}. If this
+	 * promise is rejected, the returned promise is rejected with the same arguments. Cancelling the
+	 * returned promise cancels whichever request in the chain is currently running.
+	 * @param pipe starts the next request
+	 * @return a new promise for the result of the chain
+	 */
+	public AjaxPromise then(final Pipe pipe)
+	{
+		final AjaxPromise next = new AjaxPromise(droidQuery);
+		next.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				cancel();
+			}
+		});
+		done(new Function() {
+			@Override
+			public void invoke($ droidQuery, Object... params) {
+				AjaxPromise piped = pipe.pipe(droidQuery, params);
+				if (piped == null)
+				{
+					next.resolve(params);
+				}
+				else
+				{
+					next.follow(piped);
+				}
+			}
+		});
+		fail(new Function() {
+			@Override
+			public void invoke($ droidQuery, Object... params) {
+				next.reject(params);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Reject this promise, and cancel the underlying request, if it has not completed within the given time.
+	 * @param millis the number of milliseconds to wait
+	 * @return this
+	 */
+	public AjaxPromise timeout(long millis)
+	{
+		handler().postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				abort(TIMEOUT);
+			}
+		}, millis);
+		return this;
+	}
+
+	/**
+	 * Cancel the underlying request (or requests, for promises created by {@link #all(AjaxPromise...)},
+	 * {@link #any(AjaxPromise...)}, {@link #race(AjaxPromise...)} or {@link #then(Pipe)}), and reject
+	 * this promise. Has no effect if this promise has already been settled.
+	 */
+	public void cancel()
+	{
+		abort(CANCELLED);
+	}
+
+	/**
+	 * Resolve this promise. Has no effect if it has already been settled.
+	 * @param params the success arguments
+	 */
+	public void resolve(Object... params)
+	{
+		settle(State.RESOLVED, params);
+	}
+
+	/**
+	 * Reject this promise. Has no effect if it has already been settled.
+	 * @param params the error arguments
+	 */
+	public void reject(Object... params)
+	{
+		settle(State.REJECTED, params);
+	}
+
+	/**
+	 * Creates a promise that is resolved once all of the given promises are resolved, or rejected
+	 * as soon as any of them is rejected (in which case the others are cancelled).
+	 * @param promises the promises to join
+	 * @return a promise that is resolved with one {@code Object[]} argument per given promise, in order,
+	 * containing that promise's success arguments.
+	 */
+	public static AjaxPromise all(final AjaxPromise... promises)
+	{
+		final AjaxPromise joined = new AjaxPromise();
+		joined.onCancel(cancelAll(promises));
+		if (promises.length == 0)
+		{
+			joined.resolve();
+			return joined;
+		}
+		final Object[] results = new Object[promises.length];
+		final int[] remaining = { promises.length };
+		for (int i = 0; i < promises.length; i++)
+		{
+			final int index = i;
+			promises[i].done(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					boolean complete;
+					synchronized(results)
+					{
+						results[index] = params;
+						complete = --remaining[0] == 0;
+					}
+					if (complete)
+						joined.resolve(results);
+				}
+			});
+			promises[i].fail(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					if (joined.isPending())
+					{
+						joined.reject(params);
+						cancelAll(promises).run();
+					}
+				}
+			});
+		}
+		return joined;
+	}
+
+	/**
+	 * Creates a promise that is resolved as soon as any of the given promises is resolved (in which
+	 * case the others are cancelled), or rejected once all of them are rejected.
+	 * @param promises the promises to join
+	 * @return a promise that is resolved with the success arguments of the first resolved promise, or
+	 * rejected with one {@code Object[]} argument per given promise, containing its error arguments.
+	 */
+	public static AjaxPromise any(final AjaxPromise... promises)
+	{
+		final AjaxPromise joined = new AjaxPromise();
+		joined.onCancel(cancelAll(promises));
+		if (promises.length == 0)
+		{
+			joined.reject();
+			return joined;
+		}
+		final Object[] errors = new Object[promises.length];
+		final int[] remaining = { promises.length };
+		for (int i = 0; i < promises.length; i++)
+		{
+			final int index = i;
+			promises[i].done(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					if (joined.isPending())
+					{
+						joined.resolve(params);
+						cancelAll(promises).run();
+					}
+				}
+			});
+			promises[i].fail(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					boolean complete;
+					synchronized(errors)
+					{
+						errors[index] = params;
+						complete = --remaining[0] == 0;
+					}
+					if (complete)
+						joined.reject(errors);
+				}
+			});
+		}
+		return joined;
+	}
+
+	/**
+	 * Creates a promise that is settled the same way as the first of the given promises to be settled.
+	 * The remaining promises are then cancelled.
+	 * @param promises the promises to race
+	 * @return a promise with the arguments of the first settled promise
+	 */
+	public static AjaxPromise race(final AjaxPromise... promises)
+	{
+		final AjaxPromise joined = new AjaxPromise();
+		joined.onCancel(cancelAll(promises));
+		for (AjaxPromise promise : promises)
+		{
+			promise.done(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					if (joined.isPending())
+					{
+						joined.resolve(params);
+						cancelAll(promises).run();
+					}
+				}
+			});
+			promise.fail(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					if (joined.isPending())
+					{
+						joined.reject(params);
+						cancelAll(promises).run();
+					}
+				}
+			});
+		}
+		return joined;
+	}
+
+	/**
+	 * Register work to stop when this promise is cancelled or times out.
+	 * @param canceller stops the underlying work
+	 */
+	synchronized void onCancel(Runnable canceller)
+	{
+		if (state == State.PENDING)
+			cancellers.add(canceller);
+	}
+
+	/**
+	 * Settle this promise the same way as the given promise, and cancel the given promise if this one is cancelled.
+	 * @param other the promise to follow
+	 */
+	void follow(final AjaxPromise other)
+	{
+		onCancel(new Runnable() {
+			@Override
+			public void run() {
+				other.cancel();
+			}
+		});
+		other.done(new Function() {
+			@Override
+			public void invoke($ droidQuery, Object... params) {
+				resolve(params);
+			}
+		});
+		other.fail(new Function() {
+			@Override
+			public void invoke($ droidQuery, Object... params) {
+				reject(params);
+			}
+		});
+	}
+
+	/**
+	 * Reject this promise with an {@link AjaxError} using the given reason, and stop the underlying work.
+	 * @param reason {@link #CANCELLED} or {@link #TIMEOUT}
+	 */
+	private void abort(String reason)
+	{
+		AjaxError error = new AjaxError();
+		error.status = 0;
+		error.reason = reason;
+		List<Runnable> toCancel;
+		synchronized(this)
+		{
+			if (state != State.PENDING)
+				return;
+			cancelled = true;
+			toCancel = new ArrayList<Runnable>(cancellers);
+		}
+		//reject first, so that the cancellers cannot settle this promise with a different reason.
+		reject(error, 0, reason, null);
+		for (Runnable canceller : toCancel)
+		{
+			canceller.run();
+		}
+	}
+
+	/**
+	 * Settle this promise and invoke the matching callbacks
+	 * @param newState {@link State#RESOLVED} or {@link State#REJECTED}
+	 * @param params the arguments to pass to callbacks
+	 */
+	private void settle(State newState, Object[] params)
+	{
+		List<Function> callbacks;
+		synchronized(this)
+		{
+			if (state != State.PENDING)
+				return;
+			state = newState;
+			args = params;
+			callbacks = (newState == State.RESOLVED) ? doneCallbacks : failCallbacks;
+			doneCallbacks = new ArrayList<Function>();
+			failCallbacks = new ArrayList<Function>();
+			cancellers.clear();
+		}
+		for (Function f : callbacks)
+		{
+			f.invoke(droidQuery, params);
+		}
+	}
+
+	/**
+	 * Lazily creates the Handler used for timeouts.
+	 * @return the Handler
+	 */
+	private synchronized Handler handler()
+	{
+		if (mHandler == null)
+		{
+			Looper looper = Looper.myLooper();
+			mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+		}
+		return mHandler;
+	}
+
+	/**
+	 * Creates a Runnable that cancels each of the given promises
+	 * @param promises the promises to cancel
+	 * @return the Runnable
+	 */
+	private static Runnable cancelAll(final AjaxPromise... promises)
+	{
+		return new Runnable() {
+			@Override
+			public void run() {
+				for (AjaxPromise promise : promises)
+				{
+					promise.cancel();
+				}
+			}
+		};
+	}
+}
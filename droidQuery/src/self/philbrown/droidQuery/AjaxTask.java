@@ -18,7 +18,6 @@ package self.philbrown.droidQuery;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
@@ -40,9 +39,6 @@ import java.util.Map.Entry;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.LockSupport;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -74,20 +70,14 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
 
 import self.philbrown.droidQuery.AjaxOptions.Redundancy;
 import self.philbrown.droidQuery.AjaxTask.TaskResponse;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -128,6 +118,8 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	private static volatile Map<String, AjaxOptions> redundancyHelper = new HashMap<String, AjaxOptions>();
 	/** Used to keep track of the last modified dates for specific URLs */
 	private static volatile Map<String, Date> lastModifiedUrls = new HashMap<String, Date>();
+	/** Settled once this task completes. */
+	private AjaxPromise promise;
 	
 	/**
 	 * Constructor
@@ -162,6 +154,22 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			throw new NullPointerException("Cannot call Ajax with null URL!");
 		}
 		mHandler = new Handler();
+		promise = new AjaxPromise(options.context() == null ? null : $.with(options.context()));
+		promise.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				cancel(true);
+			}
+		});
+	}
+	
+	/**
+	 * Get the promise for the result of this task
+	 * @return the promise
+	 */
+	public AjaxPromise promise()
+	{
+		return promise;
 	}
 	
 	/**
@@ -490,8 +498,9 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		
 		if (options.timeout() != 0)
 		{
-			HttpConnectionParams.setConnectionTimeout(params, options.timeout());
-			HttpConnectionParams.setSoTimeout(params, options.timeout());
+			int timeout = NetworkQuality.timeout(options.timeout());
+			HttpConnectionParams.setConnectionTimeout(params, timeout);
+			HttpConnectionParams.setSoTimeout(params, timeout);
 		}
 		
 		SchemeRegistry schemeRegistry = new SchemeRegistry();
@@ -561,6 +570,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		HttpResponse response = null;
 		try {
 			
+			long requestStart = SystemClock.elapsedRealtime();
 			if (options.cookies() != null)
 			{
 				CookieStore cookies = new BasicCookieStore();
@@ -576,6 +586,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			{
 				response = client.execute(request);
 			}
+			long responseStart = SystemClock.elapsedRealtime();
 			
 			
 			if (options.dataFilter() != null)
@@ -606,78 +617,21 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			}
 			
 			//handle dataType
-			String dataType = options.dataType();
-			if (dataType == null)
-				dataType = "text";
+			HttpEntity entity = response.getEntity();
+			String contentType = (entity == null || entity.getContentType() == null) ? null : entity.getContentType().getValue();
+			ResponseDecoder decoder = ResponseDecoders.resolve(options.dataType(), contentType);
 			if (options.debug())
-				Log.i("Ajax", "dataType = " + dataType);
+				Log.i("Ajax", "dataType = " + options.dataType() + ", Content-Type = " + contentType);
 			Object parsedResponse = null;
 			InputStream stream = null;
 			try
 			{
-				if (dataType.equalsIgnoreCase("text") || dataType.equalsIgnoreCase("html"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing text");
-					parsedResponse = parseText(response);
-				}
-				else if (dataType.equalsIgnoreCase("xml"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing xml");
-					if (options.customXMLParser() != null)
-					{
-						stream = AjaxUtil.getInputStream(response);
-						if (options.SAXContentHandler() != null)
-							options.customXMLParser().parse(stream, options.SAXContentHandler());
-						else
-							options.customXMLParser().parse(stream, new DefaultHandler());
-						parsedResponse = "Response handled by custom SAX parser";
-					}
-					else if (options.SAXContentHandler() != null)
-					{
-						stream = AjaxUtil.getInputStream(response);
-						
-						SAXParserFactory factory = SAXParserFactory.newInstance();
-						
-						factory.setFeature("http://xml.org/sax/features/namespaces", false);
-						factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-						
-						SAXParser parser = factory.newSAXParser();
-						
-						XMLReader reader = parser.getXMLReader();
-						reader.setContentHandler(options.SAXContentHandler());
-						reader.parse(new InputSource(stream));
-						parsedResponse = "Response handled by custom SAX content handler";
-					}
-					else
-					{
-						parsedResponse = parseXML(response);
-					}
-				}
-				else if (dataType.equalsIgnoreCase("json"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing json");
-					parsedResponse = parseJSON(response);
-				}
-				else if (dataType.equalsIgnoreCase("script"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing script");
-					parsedResponse = parseScript(response);
-				}
-				else if (dataType.equalsIgnoreCase("image"))
-				{
-					if (options.debug())
-						Log.i("Ajax", "parsing image");
-					parsedResponse = parseImage(stream);
-				}
-				else if (dataType.equalsIgnoreCase("raw"))
+				if (entity != null)
 				{
-					if (options.debug())
-						Log.i("Ajax", "parsing raw data");
-					parsedResponse = parseRawContent(response);
+					boolean gzip = AjaxUtil.isGzip(entity);
+					stream = AjaxUtil.sampledBody(entity.getContent(), gzip, responseStart - requestStart);
+					//the Content-Length of a gzip body is the compressed length
+					parsedResponse = decoder.decode(stream, contentType, gzip ? -1 : entity.getContentLength(), options);
 				}
 			}
 			catch (ClientProtocolException cpe)
@@ -985,6 +939,49 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 					break;
 			}
 		}
+		
+		settlePromise(response);
+	}
+	
+	@Override
+	protected void onCancelled()
+	{
+		AjaxError error = new AjaxError();
+		error.request = request;
+		error.options = options;
+		error.status = 0;
+		error.reason = AjaxPromise.CANCELLED;
+		promise.reject(error, 0, AjaxPromise.CANCELLED, null);
+	}
+	
+	/**
+	 * Resolves or rejects {@link #promise} using the same arguments passed to the success or error callbacks.
+	 * @param response the task response
+	 */
+	private void settlePromise(TaskResponse response)
+	{
+		if (response instanceof Success)
+		{
+			Success s = (Success) response;
+			promise.resolve(s.response, s.reason, s.headers);
+			return;
+		}
+		AjaxError error = new AjaxError();
+		error.request = request;
+		error.options = options;
+		if (response == null)
+		{
+			error.status = 0;
+			error.reason = "null response";
+			promise.reject(error, 0, error.reason, null);
+		}
+		else
+		{
+			error.status = response.status;
+			error.reason = response.reason;
+			error.response = response.response;
+			promise.reject(error, response.status, response.reason, response.headers);
+		}
 	}
 	
 	/**
@@ -1019,55 +1016,6 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		return AjaxUtil.toString(response.getEntity());
 	}
 	
-	/**
-	 * Parses the HTTP response as a Script, then runs it.
-	 * @param response the response to parse
-	 * @return a ScriptResponse Object containing the output String, if any, as well as the original
-	 * Script
-	 */
-	private ScriptResponse parseScript(HttpResponse response) throws ClientProtocolException, IOException
-	{
-		if (options.context() != null)
-		{
-			ScriptResponseHandler handler = new ScriptResponseHandler(options.context());
-			return handler.handleResponse(response);
-		}
-		else
-		{
-			throw new NullPointerException("No context provided.");
-		}
-	}
-	
-	/**
-	 * Parses the HTTP response as a Bitmap
-	 * @param stream the response to parse
-	 * @return a Bitmap response
-	 */
-	private Bitmap parseImage(InputStream stream) throws IllegalStateException, IOException
-	{
-    	BitmapFactory.Options opt = new BitmapFactory.Options();
-		opt.inSampleSize = 1;
-		opt.inPurgeable = true;
-		opt.inInputShareable = false;
-		if (options.imageWidth() >= 0)
-			opt.outWidth = options.imageWidth();
-		if (options.imageHeight() >= 0)
-			opt.outHeight = options.imageHeight();
-		WeakReference<Bitmap> bitmap = new WeakReference<Bitmap>(BitmapFactory.decodeStream(stream, new Rect(0,0,0,0), opt));
-		
-		if (bitmap == null || bitmap.get() == null)
-		{
-			return null;
-		}
-		
-		if (bitmap.get().isRecycled())
-		{
-			return null;
-		}
-        
-        return bitmap.get();
-	}
-	
 	/**
 	 * Parses the HTTP response as a raw byte[]
 	 * @param response the response to parse
@@ -1075,7 +1023,16 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	 */
 	public static byte[] parseRawContent(HttpResponse response) throws IOException
 	{
-		return EntityUtils.toByteArray(response.getEntity());
+		HttpEntity entity = response.getEntity();
+		if (entity == null)
+			return null;
+		InputStream is = AjaxUtil.getInputStream(entity);
+		try {
+			//the Content-Length of a gzip body is the compressed length
+			return AjaxUtil.toByteArray(is, AjaxUtil.isGzip(entity) ? -1 : entity.getContentLength());
+		} finally {
+			is.close();
+		}
 	}
 	
 	/**
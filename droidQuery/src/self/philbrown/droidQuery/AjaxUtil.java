@@ -1,10 +1,12 @@
 package self.philbrown.droidQuery;
 
-import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
@@ -22,8 +24,7 @@ import org.apache.http.util.EntityUtils;
 public class AjaxUtil {
 
 	public static InputStream getInputStream(HttpURLConnection connection) throws IOException {
-		String encoding = connection.getHeaderField("Content-Encoding");
-		if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
+		if (isGzip(connection)) {
 			return new GZIPInputStream(connection.getInputStream());
 		}
 		else {
@@ -37,35 +38,290 @@ public class AjaxUtil {
 	}
 	
 	public static InputStream getInputStream(HttpEntity entity) throws IOException {
+		if (isGzip(entity)) {
+			return new GZIPInputStream(entity.getContent());
+		}
+		return entity.getContent();
+	}
+	
+	/**
+	 * @param connection the connection
+	 * @return {@code true} if the response body is gzip encoded. Otherwise {@code false}.
+	 */
+	static boolean isGzip(HttpURLConnection connection) {
+		String encoding = connection.getHeaderField("Content-Encoding");
+		return encoding != null && encoding.equalsIgnoreCase("gzip");
+	}
+	
+	/**
+	 * @param entity the response entity
+	 * @return {@code true} if the entity is gzip encoded. Otherwise {@code false}.
+	 */
+	static boolean isGzip(HttpEntity entity) {
 		Header encoding = entity.getContentEncoding();
 		if (encoding != null) {
 			HeaderElement[] codecs = encoding.getElements();
 			for (HeaderElement codec : codecs) {
 				if (codec.getName().equalsIgnoreCase("gzip")) {
-					return new GZIPInputStream(entity.getContent());
+					return true;
 				}
 			}
 		}
-		return entity.getContent();
+		return false;
 	}
 	
+	/**
+	 * Wraps a response body so that its transfer is recorded with {@link NetworkQuality}. The body is
+	 * still streamed to the decoder. Only the time spent waiting for the network is counted, not the time
+	 * spent decoding, and the bytes counted are those received, before decompression. The sample is
+	 * recorded when the end of the body is reached, or when the stream is closed.
+	 * @param raw the body, as received
+	 * @param gzip {@code true} if the body is gzip encoded
+	 * @param rttMillis the time from sending the request until the response headers were received
+	 * @return the decoded body. This must be closed.
+	 * @throws IOException if the gzip header cannot be read
+	 */
+	static InputStream sampledBody(InputStream raw, boolean gzip, long rttMillis) throws IOException {
+		SampledInputStream sampled = new SampledInputStream(raw, rttMillis);
+		if (gzip) {
+			try {
+				return new GZIPInputStream(sampled);
+			}
+			catch (IOException e) {
+				sampled.close();
+				throw e;
+			}
+		}
+		return sampled;
+	}
+	
+	/**
+	 * Counts the bytes read from a response body, and the time spent waiting for them
+	 */
+	private static class SampledInputStream extends FilterInputStream {
+		/** The time from sending the request until the response headers were received */
+		private final long rttMillis;
+		/** The number of bytes read */
+		private long count;
+		/** The time spent in reads, in nanoseconds */
+		private long readNanos;
+		/** Whether the sample has been recorded */
+		private boolean recorded;
+		
+		SampledInputStream(InputStream in, long rttMillis) {
+			super(in);
+			this.rttMillis = rttMillis;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = super.read();
+			readNanos += System.nanoTime() - start;
+			if (b == -1)
+				record();
+			else
+				count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			long start = System.nanoTime();
+			int read = super.read(buffer, offset, length);
+			readNanos += System.nanoTime() - start;
+			if (read == -1)
+				record();
+			else
+				count += read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long start = System.nanoTime();
+			long skipped = super.skip(n);
+			readNanos += System.nanoTime() - start;
+			count += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			record();
+			super.close();
+		}
+		
+		/**
+		 * Record the transfer, once
+		 */
+		private void record() {
+			if (recorded)
+				return;
+			recorded = true;
+			NetworkQuality.addSample(rttMillis, count, readNanos / 1000000);
+		}
+	}
+	
+	/** The charset used when a response does not declare one */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+	/** The buffer size used when the length of a response is unknown */
+	private static final int DEFAULT_BUFFER_SIZE = 4096;
+	
 	/**
 	 * Converts the Entity to a String using the correct encoding.
 	 * @param entity
 	 * @return
 	 * @throws IOException 
-	 * @see EntityUtils
+	 * @see #toString(InputStream, String, long)
 	 */
 	public static String toString(HttpEntity entity) throws IOException {
 		InputStream input = getInputStream(entity);
-		BufferedReader br = new BufferedReader(new InputStreamReader(input));
-		StringBuilder builder = new StringBuilder();
-		String line;
-		while ((line = br.readLine()) != null) {
-			builder.append(line).append("\n");
-		}
-		br.close();
-		input.close();
-		return builder.toString();
+		try {
+			Header contentType = entity.getContentType();
+			return toString(input, contentType == null ? null : contentType.getValue(), isGzip(entity) ? -1 : entity.getContentLength());
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Reads the given stream and decodes it as text in a single pass. Line endings are left unchanged.
+	 * The stream is not closed.
+	 * @param input the stream to read
+	 * @param contentType the Content-Type header, used to find the charset. May be {@code null}.
+	 * @param contentLength the Content-Length header, used to size the buffer, or a negative number if unknown.
+	 * @return the decoded text
+	 * @throws IOException
+	 * @see #charset(String)
+	 */
+	public static String toString(InputStream input, String contentType, long contentLength) throws IOException {
+		ByteBuffer bytes = read(input, contentLength, true);
+		byte[] array = bytes.array();
+		int length = bytes.limit();
+		
+		//a byte order mark takes precedence over the declared charset
+		Charset charset;
+		int bom = 0;
+		if (length >= 3 && (array[0] & 0xFF) == 0xEF && (array[1] & 0xFF) == 0xBB && (array[2] & 0xFF) == 0xBF) {
+			charset = DEFAULT_CHARSET;
+			bom = 3;
+		}
+		else if (length >= 2 && (array[0] & 0xFF) == 0xFE && (array[1] & 0xFF) == 0xFF) {
+			charset = Charset.forName("UTF-16BE");
+			bom = 2;
+		}
+		else if (length >= 2 && (array[0] & 0xFF) == 0xFF && (array[1] & 0xFF) == 0xFE) {
+			charset = Charset.forName("UTF-16LE");
+			bom = 2;
+		}
+		else {
+			charset = charset(contentType);
+		}
+		String text = new String(array, bom, length - bom, charset);
+		BufferPool.sharedPool().release(array);
+		return text;
+	}
+	
+	/**
+	 * Gets the charset declared by a Content-Type header
+	 * @param contentType the Content-Type header, such as {@code text/html; charset=ISO-8859-1}. May be {@code null}.
+	 * @return the declared charset, or {@link #DEFAULT_CHARSET} if none is declared or it is not supported.
+	 */
+	public static Charset charset(String contentType) {
+		if (contentType == null)
+			return DEFAULT_CHARSET;
+		String[] params = contentType.split(";");
+		for (int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+				String name = param.substring(8).trim();
+				if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+					name = name.substring(1, name.length() - 1);
+				try {
+					return Charset.forName(name);
+				}
+				catch (IllegalArgumentException e) {
+					//illegal or unsupported charset
+					return DEFAULT_CHARSET;
+				}
+			}
+		}
+		return DEFAULT_CHARSET;
+	}
+	
+	/**
+	 * Reads the given stream into a byte[]. The stream is not closed.
+	 * @param input the stream to read
+	 * @return the bytes read
+	 * @throws IOException
+	 */
+	public static byte[] toByteArray(InputStream input) throws IOException {
+		return toByteArray(input, -1);
+	}
+	
+	/**
+	 * Reads the given stream into a byte[]. The stream is not closed. If the length is known, the
+	 * result is read directly into an array of that size. Otherwise the stream is read into pooled
+	 * buffers, and copied once into the result.
+	 * @param input the stream to read
+	 * @param contentLength the Content-Length header, used to size the buffer, or a negative number if unknown.
+	 * @return the bytes read
+	 * @throws IOException
+	 */
+	public static byte[] toByteArray(InputStream input, long contentLength) throws IOException {
+		ByteBuffer bytes = read(input, contentLength, false);
+		if (bytes.limit() == bytes.capacity())
+			return bytes.array();
+		byte[] result = Arrays.copyOf(bytes.array(), bytes.limit());
+		BufferPool.sharedPool().release(bytes.array());
+		return result;
+	}
+	
+	/**
+	 * Reads the given stream into a single buffer. When the length is known, the buffer is allocated once
+	 * and never copied. Buffers outgrown while reading are returned to the {@link BufferPool}.
+	 * @param input the stream to read
+	 * @param contentLength the expected number of bytes, or a negative number if unknown.
+	 * @param pooled {@code true} if the first buffer may be taken from the {@link BufferPool}. If {@code false},
+	 * and {@code contentLength} is known, the first buffer is allocated with exactly that size.
+	 * @return a buffer wrapping the bytes read. Its limit is the number of bytes read. Its array may be
+	 * given to {@link BufferPool#release(byte[])} once it is no longer used.
+	 * @throws IOException
+	 */
+	private static ByteBuffer read(InputStream input, long contentLength, boolean pooled) throws IOException {
+		BufferPool pool = BufferPool.sharedPool();
+		boolean known = contentLength > 0 && contentLength < Integer.MAX_VALUE - 8;
+		byte[] buffer;
+		if (known && !pooled)
+			buffer = new byte[(int) contentLength];
+		else
+			buffer = pool.acquire(known ? (int) contentLength : DEFAULT_BUFFER_SIZE);
+		int count = 0;
+		try {
+			while (true) {
+				if (count == buffer.length) {
+					//check for the end of the stream before growing, so an exact Content-Length never copies
+					int next = input.read();
+					if (next == -1)
+						break;
+					byte[] larger = pool.acquire(buffer.length * 2);
+					System.arraycopy(buffer, 0, larger, 0, count);
+					pool.release(buffer);
+					buffer = larger;
+					buffer[count++] = (byte) next;
+				}
+				int read = input.read(buffer, count, buffer.length - count);
+				if (read == -1)
+					break;
+				count += read;
+			}
+		}
+		catch (IOException e) {
+			pool.release(buffer);
+			throw e;
+		}
+		return ByteBuffer.wrap(buffer, 0, count);
 	}
 }
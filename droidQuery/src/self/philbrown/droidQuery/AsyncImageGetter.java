@@ -25,6 +25,9 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.text.Html.ImageGetter;
@@ -59,6 +62,14 @@ public class AsyncImageGetter implements ImageGetter {
     	
     	if (URLUtil.isValidUrl(source))
 		{
+    		Bitmap cached = BitmapCache.sharedCache().get(BitmapCache.keyFor(source, -1, -1));
+    		if (cached != null)
+    		{
+    			Drawable drawable = new BitmapDrawable(cached);
+    			drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+    			return drawable;
+    		}
+    		
 			//need to download image
     		URLDrawable urlDrawable = new URLDrawable();
 
@@ -129,7 +140,16 @@ public class AsyncImageGetter implements ImageGetter {
         public Drawable fetchDrawable(String urlString) {
             try {
                 InputStream is = fetch(urlString);
-                Drawable drawable = Drawable.createFromStream(is, "src");
+                Bitmap bitmap;
+                try {
+                	bitmap = BitmapFactory.decodeStream(is);
+                } finally {
+                	is.close();
+                }
+                if (bitmap == null)
+                	return null;
+                BitmapCache.sharedCache().put(BitmapCache.keyFor(urlString, -1, -1), bitmap);
+                Drawable drawable = new BitmapDrawable(bitmap);
                 drawable.setBounds(0, 0, 0 + drawable.getIntrinsicWidth(), 0 
                         + drawable.getIntrinsicHeight()); 
                 return drawable;
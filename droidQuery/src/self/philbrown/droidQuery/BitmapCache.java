@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * LRU memory cache of decoded Bitmaps, bounded by the number of bytes of pixel data it holds. Entries
+ * are keyed by image source and target size, so the same image sampled to two sizes is cached twice.
+ * This is shared by {@link $#image(String, int, int, Function)}, {@link $#mask(String, int, int, Function)},
+ * CSS {@code background-image} and {@link AsyncImageGetter}.
+ * @author Phil Brown
+ */
+public class BitmapCache
+{
+	/** singleton instance */
+	private static BitmapCache self;
+
+	/** Cached Bitmaps, in access order */
+	private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+	/** The number of bytes of all cached Bitmaps */
+	private int size;
+	/** The maximum number of bytes to cache. Defaults to one eighth of the maximum heap size. */
+	private int maxSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+	/** The number of lookups that found a Bitmap */
+	private long hits;
+	/** The number of lookups that did not find a Bitmap */
+	private long misses;
+
+	/**
+	 * Constructor
+	 */
+	private BitmapCache()
+	{
+
+	}
+
+	/**
+	 * Singleton accessor
+	 * @return the shared cache
+	 */
+	public static synchronized BitmapCache sharedCache()
+	{
+		if (self == null)
+			self = new BitmapCache();
+		return self;
+	}
+
+	/**
+	 * Get the key for an image
+	 * @param source the image asset path, file path or URL
+	 * @param width the width the image was sampled to, or {@code -1}
+	 * @param height the height the image was sampled to, or {@code -1}
+	 * @return the key
+	 */
+	public static String keyFor(String source, int width, int height)
+	{
+		return String.format(Locale.US, "%s@%dx%d", source, width, height);
+	}
+
+	/**
+	 * Get the number of bytes used by a Bitmap's pixels
+	 * @param bitmap the Bitmap
+	 * @return the size, in bytes
+	 */
+	public static int sizeOf(Bitmap bitmap)
+	{
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * Get a cached Bitmap. Since the caller is not counted as a user of the Bitmap, it is never
+	 * {@link BitmapPool pooled} afterwards, so it stays valid after it is removed from the cache.
+	 * @param key the key
+	 * @return the Bitmap, or {@code null} if it is not cached.
+	 * @see #keyFor(String, int, int)
+	 */
+	public synchronized Bitmap get(String key)
+	{
+		Bitmap bitmap = lookup(key);
+		BitmapPool.sharedPool().disown(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Get a cached Bitmap for droidQuery's own use. The caller must {@link BitmapPool#retain(Bitmap) retain}
+	 * or {@link BitmapPool#display(android.view.View, Bitmap) display} the Bitmap before it can be removed
+	 * from the cache, so that it is not pooled while it is still used.
+	 * @param key the key
+	 * @return the Bitmap, or {@code null} if it is not cached.
+	 */
+	synchronized Bitmap lookup(String key)
+	{
+		Entry entry = entries.get(key);
+		if (entry != null && entry.bitmap.isRecycled())
+		{
+			//recycled elsewhere. The size is kept in the entry, since it cannot be read from a recycled Bitmap.
+			entries.remove(key);
+			size -= entry.size;
+			entry = null;
+		}
+		if (entry == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.bitmap;
+	}
+
+	/**
+	 * Cache a Bitmap. Least recently used Bitmaps are removed until the cache fits in {@link #maxSize()}.
+	 * Bitmaps larger than the cache are not cached.
+	 * @param key the key
+	 * @param bitmap the Bitmap. It must not be recycled while it is cached.
+	 * @see #keyFor(String, int, int)
+	 */
+	public synchronized void put(String key, Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled())
+			return;
+		int bitmapSize = sizeOf(bitmap);
+		if (bitmapSize > maxSize)
+			return;
+		Entry previous = entries.put(key, new Entry(bitmap, bitmapSize));
+		BitmapPool.sharedPool().retain(bitmap);
+		if (previous != null)
+		{
+			size -= previous.size;
+			BitmapPool.sharedPool().release(previous.bitmap);
+		}
+		size += bitmapSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Remove a cached Bitmap. It is {@link BitmapPool#release(Bitmap) released} to the {@link BitmapPool},
+	 * so it must not be used afterwards unless it has been {@link BitmapPool#retain(Bitmap) retained}.
+	 * @param key the key
+	 * @return the removed Bitmap, or {@code null} if it was not cached.
+	 */
+	public synchronized Bitmap remove(String key)
+	{
+		Entry entry = entries.remove(key);
+		if (entry == null)
+			return null;
+		size -= entry.size;
+		BitmapPool.sharedPool().release(entry.bitmap);
+		return entry.bitmap;
+	}
+
+	/**
+	 * Remove all cached Bitmaps
+	 */
+	public synchronized void clear()
+	{
+		for (Entry entry : entries.values())
+			BitmapPool.sharedPool().release(entry.bitmap);
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Set the maximum number of bytes to cache
+	 * @param maxSize the size, in bytes
+	 * @return this
+	 */
+	public synchronized BitmapCache maxSize(int maxSize)
+	{
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of bytes to cache
+	 */
+	public synchronized int maxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of bytes currently cached
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of lookups that found a Bitmap
+	 */
+	public synchronized long hits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that did not find a Bitmap
+	 */
+	public synchronized long misses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Remove least recently used Bitmaps until the cache is no larger than the given size
+	 * @param maxSize the size, in bytes
+	 */
+	private void trimToSize(int maxSize)
+	{
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > maxSize && it.hasNext())
+		{
+			Entry entry = it.next();
+			it.remove();
+			size -= entry.size;
+			//evicted Bitmaps can be reused once no view shows them
+			BitmapPool.sharedPool().release(entry.bitmap);
+		}
+	}
+
+	/**
+	 * A cached Bitmap
+	 */
+	private static class Entry
+	{
+		/** The Bitmap */
+		public final Bitmap bitmap;
+		/** The size of the Bitmap, in bytes */
+		public final int size;
+
+		public Entry(Bitmap bitmap, int size)
+		{
+			this.bitmap = bitmap;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.view.View;
+
+/**
+ * Pool of Bitmaps whose pixel memory can be reused by {@link BitmapFactory.Options#inBitmap}, so that
+ * decoding images into recycled list rows does not allocate new pixel buffers.
+ * <br>
+ * A Bitmap is only pooled once nothing uses it anymore. Users are counted with {@link #retain(Bitmap)}
+ * and {@link #release(Bitmap)}: the {@link BitmapCache} retains the Bitmaps it holds, and
+ * {@link #display(View, Bitmap)} retains the Bitmap each view shows. Only Bitmaps that droidQuery's
+ * {@link ImageLoader} decodes for its own views are pooled. Bitmaps created by the application, returned
+ * by the public decode methods, or handed to application callbacks are never pooled.
+ * @author Phil Brown
+ */
+public class BitmapPool
+{
+	/** First API level where a reused Bitmap can be larger than, or a different size to, the decoded image */
+	private static final int KITKAT = 19;
+
+	/** singleton instance */
+	private static BitmapPool self;
+
+	/** Free Bitmaps, least recently added first */
+	private LinkedList<Bitmap> free = new LinkedList<Bitmap>();
+	/** The number of bytes of all free Bitmaps */
+	private int size;
+	/** The maximum number of bytes of free Bitmaps. Defaults to one sixteenth of the maximum heap size. */
+	private int maxSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+	/** Bitmaps decoded by droidQuery. Only these are counted and pooled. */
+	private Map<Bitmap, Boolean> owned = new WeakHashMap<Bitmap, Boolean>();
+	/** The number of users of each owned Bitmap. Weak, so that Bitmaps that are never released can still be collected. */
+	private Map<Bitmap, int[]> references = new WeakHashMap<Bitmap, int[]>();
+	/** The droidQuery-decoded Bitmap shown by each view */
+	private Map<View, Bitmap> displayed = new WeakHashMap<View, Bitmap>();
+	/** The number of decodes that reused a pooled Bitmap */
+	private long hits;
+	/** The number of decodes that had to allocate a new Bitmap */
+	private long misses;
+
+	/**
+	 * Constructor
+	 */
+	private BitmapPool()
+	{
+
+	}
+
+	/**
+	 * Singleton accessor
+	 * @return the shared pool
+	 */
+	public static synchronized BitmapPool sharedPool()
+	{
+		if (self == null)
+			self = new BitmapPool();
+		return self;
+	}
+
+	/**
+	 * Prepare decode options to reuse a pooled Bitmap. This must be called after a bounds-only pass, once
+	 * {@code inSampleSize} has been set. If a suitable Bitmap is found, it is removed from the pool and
+	 * set as {@code inBitmap}. The options are always made mutable, so that the decoded Bitmap can be
+	 * pooled later.
+	 * @param opt the decode options
+	 */
+	public synchronized void prepare(BitmapFactory.Options opt)
+	{
+		opt.inMutable = true;
+		if (opt.outWidth <= 0 || opt.outHeight <= 0)
+			return;
+		int sampleSize = Math.max(1, opt.inSampleSize);
+		int width = (opt.outWidth + sampleSize - 1) / sampleSize;
+		int height = (opt.outHeight + sampleSize - 1) / sampleSize;
+		Bitmap.Config config = opt.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : opt.inPreferredConfig;
+		for (Iterator<Bitmap> it = free.iterator(); it.hasNext();)
+		{
+			Bitmap bitmap = it.next();
+			if (bitmap.isRecycled())
+			{
+				it.remove();
+				size -= BitmapCache.sizeOf(bitmap);
+				continue;
+			}
+			if (canReuse(bitmap, width, height, sampleSize, config))
+			{
+				it.remove();
+				size -= BitmapCache.sizeOf(bitmap);
+				opt.inBitmap = bitmap;
+				hits++;
+				return;
+			}
+		}
+		misses++;
+	}
+
+	/**
+	 * Checks whether a Bitmap can be used as {@code inBitmap} for an image
+	 * @param bitmap the candidate
+	 * @param width the decoded width
+	 * @param height the decoded height
+	 * @param sampleSize the sample size
+	 * @param config the decoded config
+	 * @return {@code true} if the Bitmap can be reused. Otherwise {@code false}.
+	 */
+	private boolean canReuse(Bitmap bitmap, int width, int height, int sampleSize, Bitmap.Config config)
+	{
+		if (Build.VERSION.SDK_INT >= KITKAT)
+		{
+			//any Bitmap with a large enough allocation can be reconfigured
+			return BitmapCache.sizeOf(bitmap) >= width * height * bytesPerPixel(config);
+		}
+		return sampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+	}
+
+	/**
+	 * Get the number of bytes per pixel of a config
+	 * @param config the config
+	 * @return the number of bytes
+	 */
+	private static int bytesPerPixel(Bitmap.Config config)
+	{
+		switch (config)
+		{
+			case ALPHA_8 :
+				return 1;
+			case RGB_565 :
+			case ARGB_4444 :
+				return 2;
+			default :
+				return 4;
+		}
+	}
+
+	/**
+	 * Mark a Bitmap as decoded by droidQuery, so that it can be pooled once it has no users
+	 * @param bitmap the Bitmap
+	 */
+	synchronized void adopt(Bitmap bitmap)
+	{
+		if (bitmap != null && bitmap.isMutable())
+			owned.put(bitmap, Boolean.TRUE);
+	}
+
+	/**
+	 * Stop counting the users of a Bitmap, so that it is never pooled. Used for Bitmaps that are handed to
+	 * code that cannot release them, such as callers of {@link BitmapCache#get(String)}.
+	 * @param bitmap the Bitmap
+	 */
+	synchronized void disown(Bitmap bitmap)
+	{
+		if (bitmap == null)
+			return;
+		owned.remove(bitmap);
+		references.remove(bitmap);
+	}
+
+	/**
+	 * Add a user of a Bitmap, so that it is not pooled until that user releases it. Bitmaps that were not
+	 * decoded by droidQuery are ignored.
+	 * @param bitmap the Bitmap
+	 */
+	public synchronized void retain(Bitmap bitmap)
+	{
+		if (bitmap == null || !owned.containsKey(bitmap))
+			return;
+		int[] count = references.get(bitmap);
+		if (count == null)
+			references.put(bitmap, new int[]{1});
+		else
+			count[0]++;
+	}
+
+	/**
+	 * Remove a user of a Bitmap. Once a Bitmap that was {@link #retain(Bitmap) retained} has no users, it
+	 * is added to the pool.
+	 * @param bitmap the Bitmap
+	 */
+	public synchronized void release(Bitmap bitmap)
+	{
+		if (bitmap == null)
+			return;
+		int[] count = references.get(bitmap);
+		if (count == null)
+			return;
+		count[0]--;
+		if (count[0] <= 0)
+		{
+			references.remove(bitmap);
+			put(bitmap);
+		}
+	}
+
+	/**
+	 * Record the droidQuery-decoded Bitmap that a view shows. The Bitmap the view showed before is released.
+	 * @param view the view
+	 * @param bitmap the Bitmap now shown, or {@code null} if the view now shows an image that was not
+	 * decoded by droidQuery.
+	 */
+	public synchronized void display(View view, Bitmap bitmap)
+	{
+		Bitmap previous = bitmap == null ? displayed.remove(view) : displayed.put(view, bitmap);
+		if (previous == bitmap)
+			return;
+		retain(bitmap);
+		release(previous);
+	}
+
+	/**
+	 * Add an unused Bitmap to the pool. The least recently added Bitmaps are dropped if the pool is full.
+	 * @param bitmap the Bitmap. Must be mutable, and must not be used anywhere else.
+	 */
+	private void put(Bitmap bitmap)
+	{
+		if (bitmap.isRecycled() || !bitmap.isMutable())
+			return;
+		int bitmapSize = BitmapCache.sizeOf(bitmap);
+		if (bitmapSize > maxSize)
+			return;
+		free.addLast(bitmap);
+		size += bitmapSize;
+		while (size > maxSize && !free.isEmpty())
+		{
+			size -= BitmapCache.sizeOf(free.removeFirst());
+		}
+	}
+
+	/**
+	 * Set the maximum number of bytes of free Bitmaps to keep
+	 * @param maxSize the size, in bytes. {@code 0} disables reuse.
+	 * @return this
+	 */
+	public synchronized BitmapPool maxSize(int maxSize)
+	{
+		this.maxSize = Math.max(0, maxSize);
+		while (size > this.maxSize && !free.isEmpty())
+		{
+			size -= BitmapCache.sizeOf(free.removeFirst());
+		}
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of bytes of free Bitmaps to keep
+	 */
+	public synchronized int maxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of bytes of free Bitmaps in the pool
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of decodes that reused a pooled Bitmap
+	 */
+	public synchronized long hits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of decodes that had to allocate a new Bitmap
+	 */
+	public synchronized long misses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Drop all free Bitmaps
+	 */
+	public synchronized void clear()
+	{
+		free.clear();
+		size = 0;
+	}
+}
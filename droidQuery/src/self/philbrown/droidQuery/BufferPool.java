@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.LinkedList;
+
+/**
+ * Shared pool of {@code byte[]} buffers, used to read response bodies and decode images without
+ * allocating new buffers for each request. Buffers are grouped into power-of-two size classes from
+ * {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. Larger buffers are never pooled.
+ * <br>
+ * Every buffer taken with {@link #acquire(int)} should be given back with {@link #release(byte[])}
+ * once it is no longer used, and must not be used afterwards.
+ * @author Phil Brown
+ */
+public class BufferPool
+{
+	/** The smallest buffer size class, in bytes */
+	public static final int MIN_BUFFER_SIZE = 4096;
+	/** The largest buffer size class, in bytes */
+	public static final int MAX_BUFFER_SIZE = 256 * 1024;
+	/** Default for {@link #maxPooledBytes(int)}. One megabyte. */
+	public static final int DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+
+	/** singleton instance */
+	private static BufferPool self;
+
+	/** Free buffers, by size class. Index 0 holds {@link #MIN_BUFFER_SIZE} buffers. */
+	private LinkedList<byte[]>[] free;
+	/** The total size of all free buffers */
+	private int pooledBytes;
+	/** The maximum total size of free buffers */
+	private int maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+	/** The number of acquired buffers that were taken from the pool */
+	private long hits;
+	/** The number of acquired buffers that had to be allocated */
+	private long misses;
+	/** The number of released buffers that were dropped because the pool was full or they could not be pooled */
+	private long discards;
+
+	/**
+	 * Constructor
+	 */
+	@SuppressWarnings("unchecked")
+	private BufferPool()
+	{
+		int classes = 1;
+		for (int size = MIN_BUFFER_SIZE; size < MAX_BUFFER_SIZE; size <<= 1)
+			classes++;
+		free = new LinkedList[classes];
+		for (int i = 0; i < classes; i++)
+			free[i] = new LinkedList<byte[]>();
+	}
+
+	/**
+	 * Singleton accessor
+	 * @return the shared pool
+	 */
+	public static synchronized BufferPool sharedPool()
+	{
+		if (self == null)
+			self = new BufferPool();
+		return self;
+	}
+
+	/**
+	 * Take a buffer from the pool, or allocate one if there is no free buffer of the right size.
+	 * @param minSize the minimum size of the buffer
+	 * @return a buffer of at least {@code minSize} bytes. Its contents are undefined.
+	 */
+	public byte[] acquire(int minSize)
+	{
+		int index = sizeClass(minSize);
+		if (index < 0)
+		{
+			synchronized(this)
+			{
+				misses++;
+			}
+			return new byte[minSize];
+		}
+		synchronized(this)
+		{
+			byte[] buffer = free[index].poll();
+			if (buffer != null)
+			{
+				pooledBytes -= buffer.length;
+				hits++;
+				return buffer;
+			}
+			misses++;
+		}
+		return new byte[MIN_BUFFER_SIZE << index];
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers that are not the size of a size class, or that do not fit in
+	 * the pool, are dropped.
+	 * @param buffer the buffer. May be {@code null}.
+	 */
+	public void release(byte[] buffer)
+	{
+		if (buffer == null)
+			return;
+		int index = sizeClass(buffer.length);
+		synchronized(this)
+		{
+			if (index < 0 || buffer.length != (MIN_BUFFER_SIZE << index) || pooledBytes + buffer.length > maxPooledBytes)
+			{
+				discards++;
+				return;
+			}
+			free[index].push(buffer);
+			pooledBytes += buffer.length;
+		}
+	}
+
+	/**
+	 * Set the maximum total size of the buffers kept in the pool. Free buffers are dropped if the pool
+	 * is larger than the new size.
+	 * @param maxPooledBytes the size, in bytes. {@code 0} disables pooling.
+	 * @return this
+	 */
+	public synchronized BufferPool maxPooledBytes(int maxPooledBytes)
+	{
+		this.maxPooledBytes = Math.max(0, maxPooledBytes);
+		for (int i = free.length - 1; i >= 0 && pooledBytes > this.maxPooledBytes; i--)
+		{
+			while (pooledBytes > this.maxPooledBytes && !free[i].isEmpty())
+			{
+				pooledBytes -= free[i].pop().length;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @return the maximum total size of the buffers kept in the pool, in bytes
+	 */
+	public synchronized int maxPooledBytes()
+	{
+		return maxPooledBytes;
+	}
+
+	/**
+	 * @return the total size of the free buffers currently in the pool, in bytes
+	 */
+	public synchronized int pooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	/**
+	 * @return the number of {@link #acquire(int)} calls that were given a pooled buffer
+	 */
+	public synchronized long hits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of {@link #acquire(int)} calls that had to allocate a new buffer
+	 */
+	public synchronized long misses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the number of {@link #release(byte[])} calls whose buffer was dropped, because the pool was
+	 * full or the buffer could not be pooled. A high count suggests {@link #maxPooledBytes(int)} is too small.
+	 */
+	public synchronized long discards()
+	{
+		return discards;
+	}
+
+	/**
+	 * Reset the {@link #hits()}, {@link #misses()} and {@link #discards()} counters
+	 */
+	public synchronized void resetStats()
+	{
+		hits = 0;
+		misses = 0;
+		discards = 0;
+	}
+
+	/**
+	 * Drop all free buffers. This can be called from {@link android.app.Application#onLowMemory()}.
+	 */
+	public synchronized void clear()
+	{
+		for (LinkedList<byte[]> list : free)
+			list.clear();
+		pooledBytes = 0;
+	}
+
+	/**
+	 * Get the size class of a buffer
+	 * @param size the buffer size
+	 * @return the index of the smallest size class that can hold {@code size} bytes, or {@code -1}
+	 * if {@code size} is larger than {@link #MAX_BUFFER_SIZE}.
+	 */
+	private int sizeClass(int size)
+	{
+		int index = 0;
+		for (int classSize = MIN_BUFFER_SIZE; classSize < size; classSize <<= 1)
+		{
+			if (classSize >= MAX_BUFFER_SIZE)
+				return -1;
+			index++;
+		}
+		return index;
+	}
+}
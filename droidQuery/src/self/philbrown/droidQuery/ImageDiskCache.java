@@ -0,0 +1,328 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Disk cache for images, stored in the application's cache directory. It holds the original encoded
+ * bytes of downloaded images, and variants of images after they have been transformed (for example,
+ * sampled down to the size they are displayed at). Entries are keyed by source and transform chain,
+ * as returned by {@link #keyFor(String, String...)}. When the cache is larger than {@link #maxSize()},
+ * the least recently used files are deleted.
+ * @author Phil Brown
+ */
+public class ImageDiskCache
+{
+	/** Default for {@link #maxSize(long)}. 20 megabytes. */
+	public static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+	/** The name of the cache directory, inside the application's cache directory */
+	private static final String DIRECTORY = "droidQuery-images";
+
+	/** singleton instance */
+	private static ImageDiskCache self;
+
+	/** The cache directory */
+	private File directory;
+	/** The number of bytes of all cached files */
+	private long size;
+	/** The maximum number of bytes to cache */
+	private long maxSize = DEFAULT_MAX_SIZE;
+
+	/**
+	 * Constructor
+	 * @param directory the cache directory
+	 */
+	private ImageDiskCache(File directory)
+	{
+		this.directory = directory;
+		if (!directory.exists())
+			directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+				size += f.length();
+		}
+	}
+
+	/**
+	 * Singleton accessor
+	 * @param context used to find the application's cache directory
+	 * @return the shared cache
+	 */
+	public static synchronized ImageDiskCache sharedCache(Context context)
+	{
+		if (self == null)
+			self = new ImageDiskCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY));
+		return self;
+	}
+
+	/**
+	 * Get the key for an image
+	 * @param source the image asset path, file path or URL
+	 * @param transforms the transforms applied to the original image, in order, such as {@code size(100x100)}.
+	 * Empty for the original image.
+	 * @return the key
+	 */
+	public static String keyFor(String source, String... transforms)
+	{
+		StringBuilder key = new StringBuilder(source);
+		for (String transform : transforms)
+			key.append('|').append(transform);
+		return key.toString();
+	}
+
+	/**
+	 * Get the key for an image sampled down to a size
+	 * @param source the image asset path, file path or URL
+	 * @param width the width the image was sampled to, or {@code -1}
+	 * @param height the height the image was sampled to, or {@code -1}
+	 * @return the key
+	 */
+	public static String keyFor(String source, int width, int height)
+	{
+		return keyFor(source, "size(" + width + "x" + height + ")");
+	}
+
+	/**
+	 * Get a cached image
+	 * @param key the key
+	 * @return the file holding the encoded image, or {@code null} if it is not cached.
+	 */
+	public synchronized File get(String key)
+	{
+		File file = file(key);
+		if (!file.exists())
+			return null;
+		//the modification time is used as the access time for LRU trimming
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Cache an encoded image
+	 * @param key the key
+	 * @param data the encoded image
+	 * @param offset the offset of the image in {@code data}
+	 * @param length the length of the image
+	 */
+	public void put(String key, byte[] data, int offset, int length)
+	{
+		File temp = null;
+		try
+		{
+			temp = File.createTempFile("image", ".tmp", directory);
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				out.write(data, offset, length);
+			}
+			finally
+			{
+				out.close();
+			}
+			commit(key, temp);
+		}
+		catch (IOException e)
+		{
+			Log.w("ImageDiskCache", "Could not cache " + key, e);
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Cache a decoded image. Opaque images are stored as JPEG, and images with transparency as PNG.
+	 * @param key the key
+	 * @param bitmap the image
+	 */
+	public void put(String key, Bitmap bitmap)
+	{
+		File temp = null;
+		try
+		{
+			temp = File.createTempFile("image", ".tmp", directory);
+			OutputStream out = new FileOutputStream(temp);
+			boolean written;
+			try
+			{
+				if (bitmap.hasAlpha())
+					written = bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+				else
+					written = bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+			}
+			finally
+			{
+				out.close();
+			}
+			if (written)
+				commit(key, temp);
+			else
+				temp.delete();
+		}
+		catch (IOException e)
+		{
+			Log.w("ImageDiskCache", "Could not cache " + key, e);
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Move a fully written temporary file into the cache, then trim the cache
+	 * @param key the key
+	 * @param temp the temporary file
+	 */
+	private synchronized void commit(String key, File temp)
+	{
+		File file = file(key);
+		if (file.exists())
+		{
+			size -= file.length();
+			file.delete();
+		}
+		if (temp.renameTo(file))
+			size += file.length();
+		else
+			temp.delete();
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Remove a cached image
+	 * @param key the key
+	 */
+	public synchronized void remove(String key)
+	{
+		File file = file(key);
+		if (file.exists())
+		{
+			size -= file.length();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Remove all cached images
+	 */
+	public synchronized void clear()
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+				f.delete();
+		}
+		size = 0;
+	}
+
+	/**
+	 * Set the maximum number of bytes to cache. Default is {@link #DEFAULT_MAX_SIZE}.
+	 * @param maxSize the size, in bytes
+	 * @return this
+	 */
+	public synchronized ImageDiskCache maxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of bytes to cache
+	 */
+	public synchronized long maxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of bytes currently cached
+	 */
+	public synchronized long size()
+	{
+		return size;
+	}
+
+	/**
+	 * Delete least recently used files until the cache is no larger than the given size
+	 * @param maxSize the size, in bytes
+	 */
+	private void trimToSize(long maxSize)
+	{
+		if (size <= maxSize)
+			return;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified(), r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < files.length && size > maxSize; i++)
+		{
+			long length = files[i].length();
+			if (files[i].delete())
+				size -= length;
+		}
+	}
+
+	/**
+	 * Get the file for a key
+	 * @param key the key
+	 * @return the file, which may not exist
+	 */
+	private File file(String key)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+			{
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return new File(directory, name.toString());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			//MD5 is always available
+			return new File(directory, Integer.toHexString(key.hashCode()));
+		}
+		catch (IOException e)
+		{
+			//UTF-8 is always available
+			return new File(directory, Integer.toHexString(key.hashCode()));
+		}
+	}
+}
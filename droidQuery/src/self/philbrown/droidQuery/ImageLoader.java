@@ -0,0 +1,864 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import self.philbrown.droidQuery.AjaxOptions.Redundancy;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.view.View;
+import android.webkit.URLUtil;
+
+/**
+ * Loads images on a pool of background threads, using the {@link ImageDiskCache} to avoid repeating
+ * downloads and sampling. Loads can be bound to views with {@link #bind(Collection)}, so that results
+ * for views that have since been given another image are dropped. Each image is decoded in two passes: the first only reads its dimensions,
+ * and the second decodes it with the largest power-of-two {@code inSampleSize} that still leaves it
+ * at least as large as the requested size, reusing the pixel memory of a {@link BitmapPool pooled}
+ * Bitmap when possible.
+ * @author Phil Brown
+ */
+public class ImageLoader
+{
+	/**
+	 * An encoded image that can be decoded more than once
+	 */
+	private interface Source
+	{
+		/**
+		 * Decode the image
+		 * @param opt the decode options
+		 * @return the Bitmap, or {@code null} if it could not be decoded, or if only the bounds were decoded.
+		 * @throws IOException if the image cannot be read
+		 */
+		public Bitmap decode(BitmapFactory.Options opt) throws IOException;
+	}
+
+	/**
+	 * The longest time, in milliseconds, that a downloaded image and its variants are used from the disk
+	 * cache before the image is downloaded again. One day.
+	 */
+	public static final long MAX_REMOTE_AGE = 24 * 60 * 60 * 1000;
+
+	/** Number of threads used to decode images */
+	private static final int DECODE_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/** Decodes images */
+	private static ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "droidQuery-image");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** Used to deliver decoded images on the UI thread */
+	private static Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/** Running loads, by {@link BitmapCache#keyFor(String, int, int) image key}. Also used as the lock for joining loads. */
+	private static Map<String, Job> jobs = new HashMap<String, Job>();
+	/** Running downloads, by URL. Only used on the UI thread. */
+	private static Map<String, Download> downloads = new HashMap<String, Download>();
+	/** The time the application package was last installed or updated, or {@code -1} if not yet read */
+	private static volatile long packageUpdateTime = -1;
+	/** The latest request for each view. Only used on the UI thread. */
+	private static Map<View, Request> requests = new WeakHashMap<View, Request>();
+	/** The latest mask request for each view. Only used on the UI thread. */
+	private static Map<View, Request> maskRequests = new WeakHashMap<View, Request>();
+
+	/**
+	 * Constructor
+	 */
+	private ImageLoader()
+	{
+
+	}
+
+	/**
+	 * Load an image in the background. The {@link ImageDiskCache} is checked first, for a copy of the image
+	 * already sampled to this size, and then for the original bytes of a downloaded image. Only if neither
+	 * is cached is the image downloaded or decoded from its source. Downloaded images, and images that had
+	 * to be sampled down, are written to the disk cache so that they are not downloaded or sampled again.
+	 * Downloaded images are downloaded again once they are older than {@link #MAX_REMOTE_AGE}.
+	 * @param context used to open assets, and wrapped in the droidQuery passed to the callbacks
+	 * @param source asset path, file path (starting with "file://") or URL
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @param success receives a droidQuery wrapping {@code context} and the Bitmap, on the UI thread.
+	 * @param error receives a droidQuery wrapping {@code context} and the {@code Throwable} error, on the UI thread.
+	 * If the image is downloaded, this instead receives the Ajax error. May be {@code null}.
+	 * @see AjaxOptions#error(Function)
+	 */
+	public static void load(Context context, String source, int width, int height, Function success, Function error)
+	{
+		load(context, source, width, height, null, success, error);
+	}
+
+	/**
+	 * Load an image in the background, on behalf of a {@link Request}. Loads of the same image at the same
+	 * size are joined, so that it is only downloaded and decoded once. If every request waiting for a load
+	 * is {@link Request#isCancelled() cancelled}, the load stops at its next step (including its download),
+	 * and the callbacks of cancelled requests are never invoked. This must be called on the UI thread.
+	 * @param context used to open assets, and wrapped in the droidQuery passed to the callbacks
+	 * @param source asset path, file path (starting with "file://") or URL
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @param request the request, usually from {@link #bind(Collection)}. {@code null} for a load that
+	 * cannot be cancelled.
+	 * @param success receives a droidQuery wrapping {@code context} and the Bitmap, on the UI thread.
+	 * @param error receives a droidQuery wrapping {@code context} and the {@code Throwable} error, on the UI thread.
+	 * If the image is downloaded, this instead receives the Ajax error. May be {@code null}.
+	 * @see #load(Context, String, int, int, Function, Function)
+	 */
+	public static void load(Context context, String source, int width, int height, Request request, Function success, Function error)
+	{
+		load(context, source, width, height, request, success, error, false);
+	}
+
+	/**
+	 * Load an image in the background, on behalf of a {@link Request}
+	 * @param context used to open assets, and wrapped in the droidQuery passed to the callbacks
+	 * @param source asset path, file path (starting with "file://") or URL
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @param request the request, or {@code null}
+	 * @param success receives a droidQuery wrapping {@code context} and the Bitmap, on the UI thread.
+	 * @param error receives the error. May be {@code null}.
+	 * @param tracked {@code true} if {@code success} {@link BitmapPool#retain(Bitmap) retains} the Bitmap,
+	 * or {@link BitmapPool#display(View, Bitmap) displays} it, before it returns. Otherwise the Bitmap is
+	 * never pooled, since its users cannot be counted.
+	 */
+	static void load(Context context, String source, int width, int height, Request request, Function success, Function error, boolean tracked)
+	{
+		String key = BitmapCache.keyFor(source, width, height);
+		Listener listener = new Listener(context, request, success, error, tracked);
+		final Job job;
+		synchronized (jobs)
+		{
+			Job running = jobs.get(key);
+			if (running != null)
+			{
+				running.listeners.add(listener);
+				return;
+			}
+			job = new Job(context, key, source, width, height);
+			job.listeners.add(listener);
+			jobs.put(key, job);
+		}
+		decodeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				load(job);
+			}
+		});
+	}
+
+	/**
+	 * Start a request for the given views. Any earlier request for one of these views is replaced, and is
+	 * cancelled once none of its views are still bound to it. This must be called on the UI thread.
+	 * @param views the views that will show the image
+	 * @return the new request
+	 * @see #isBound(View, Request)
+	 */
+	public static Request bind(Collection<View> views)
+	{
+		return bind(requests, views);
+	}
+
+	/**
+	 * Start a mask request for the given views. Masks are bound separately from the images of the views,
+	 * so that masking a view does not cancel the image it is loading. Any earlier mask request for one of
+	 * these views is replaced, and is cancelled once none of its views are still bound to it. This must be
+	 * called on the UI thread.
+	 * @param views the views that will be masked
+	 * @return the new request
+	 * @see #isMaskBound(View, Request)
+	 */
+	public static Request bindMask(Collection<View> views)
+	{
+		return bind(maskRequests, views);
+	}
+
+	/**
+	 * Start a request for the given views
+	 * @param requests the latest request for each view
+	 * @param views the views
+	 * @return the new request
+	 */
+	private static Request bind(Map<View, Request> requests, Collection<View> views)
+	{
+		Request request = new Request();
+		boolean cancelled = false;
+		for (View view : views)
+		{
+			Request previous = requests.put(view, request);
+			request.views++;
+			if (previous != null && previous != request)
+			{
+				previous.views--;
+				if (previous.views <= 0)
+				{
+					previous.cancelled = true;
+					cancelled = true;
+				}
+			}
+		}
+		if (cancelled)
+			cancelDownloads();
+		return request;
+	}
+
+	/**
+	 * Checks whether a view is still bound to a request. A result should only be shown in views that are
+	 * still bound to the request that loaded it, since the others have moved on to another image.
+	 * @param view the view
+	 * @param request the request
+	 * @return {@code true} if {@link #bind(Collection)} has not been called for the view since {@code request}
+	 * was started. Otherwise {@code false}.
+	 */
+	public static boolean isBound(View view, Request request)
+	{
+		return requests.get(view) == request;
+	}
+
+	/**
+	 * Checks whether a view is still bound to a mask request
+	 * @param view the view
+	 * @param request the request
+	 * @return {@code true} if {@link #bindMask(Collection)} has not been called for the view since {@code request}
+	 * was started. Otherwise {@code false}.
+	 */
+	public static boolean isMaskBound(View view, Request request)
+	{
+		return maskRequests.get(view) == request;
+	}
+
+	/**
+	 * Run a load on a background thread. The disk cache is checked first, and then the image is decoded
+	 * from its source, or downloaded.
+	 * @param job the load
+	 */
+	private static void load(Job job)
+	{
+		if (abandon(job))
+			return;
+		try
+		{
+			ImageDiskCache disk = ImageDiskCache.sharedCache(job.context);
+			String key = diskKey(job.context, job.source);
+			Bitmap bitmap = null;
+			File variant = disk.get(ImageDiskCache.keyFor(key, job.width, job.height));
+			if (variant != null)
+				bitmap = decode(fileSource(variant.getPath()), -1, -1, null, true);
+			if (bitmap == null)
+			{
+				if (isRemote(job.source))
+				{
+					File original = disk.get(ImageDiskCache.keyFor(key));
+					if (original == null)
+					{
+						download(job);
+						return;
+					}
+					bitmap = decode(disk, key, fileSource(original.getPath()), job.width, job.height);
+				}
+				else if (job.source.startsWith("file://"))
+				{
+					bitmap = decode(disk, key, fileSource(job.source.substring(6)), job.width, job.height);
+				}
+				else
+				{
+					bitmap = decode(disk, key, assetSource(job.context, job.source), job.width, job.height);
+				}
+			}
+			if (bitmap == null)
+				throw new IOException("Could not decode " + job.source);
+			deliver(job, bitmap);
+		}
+		catch (Throwable t)
+		{
+			fail(job, t);
+		}
+	}
+
+	/**
+	 * Download an image, then write its original bytes to the disk cache and decode it in the background.
+	 * Loads of the same URL at different sizes share one download.
+	 * @param job the load
+	 */
+	private static void download(final Job job)
+	{
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				Download running = downloads.get(job.source);
+				if (running != null)
+				{
+					running.jobs.add(job);
+					return;
+				}
+				final Download download = new Download();
+				download.jobs.add(job);
+				downloads.put(job.source, download);
+				Function success = new Function() {
+					@Override
+					public void invoke($ droidQuery, Object... params) {
+						if (downloads.get(job.source) == download)
+							downloads.remove(job.source);
+						final byte[] data = (byte[]) params[0];
+						decodeExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								ImageDiskCache disk = ImageDiskCache.sharedCache(job.context);
+								String key = diskKey(job.context, job.source);
+								disk.put(ImageDiskCache.keyFor(key), data, 0, data.length);
+								for (Job downloaded : download.jobs)
+								{
+									if (abandon(downloaded))
+										continue;
+									try
+									{
+										Bitmap bitmap = decode(disk, key, byteArraySource(data, 0, data.length), downloaded.width, downloaded.height);
+										if (bitmap == null)
+											throw new IOException("Could not decode " + downloaded.source);
+										deliver(downloaded, bitmap);
+									}
+									catch (Throwable t)
+									{
+										fail(downloaded, t);
+									}
+								}
+							}
+						});
+					}
+				};
+				Function error = new Function() {
+					@Override
+					public void invoke($ droidQuery, Object... params) {
+						if (downloads.get(job.source) == download)
+							downloads.remove(job.source);
+						for (Job downloaded : download.jobs)
+							fail(downloaded, params);
+					}
+				};
+				//not shared with other Ajax requests, so that cancelling it cannot affect them
+				download.promise = $.ajax(new AjaxOptions().url(job.source)
+				                                           .type("GET")
+				                                           .dataType("raw")
+				                                           .context(job.context)
+				                                           .global(false)
+				                                           .redundancy(Redundancy.DO_NOTHING)
+				                                           .cache(false)
+				                                           .success(success)
+				                                           .error(error));
+			}
+		});
+	}
+
+	/**
+	 * Cancel the downloads that no request is waiting for anymore. Called on the UI thread.
+	 */
+	private static void cancelDownloads()
+	{
+		for (Iterator<Download> it = downloads.values().iterator(); it.hasNext();)
+		{
+			Download download = it.next();
+			boolean cancelled = true;
+			for (Job job : download.jobs)
+			{
+				if (!abandon(job))
+					cancelled = false;
+			}
+			if (cancelled)
+			{
+				it.remove();
+				if (download.promise != null)
+					download.promise.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Stop tracking a load if every request waiting for it has been cancelled. Once this returns {@code true},
+	 * no more requests can join the load.
+	 * @param job the load
+	 * @return {@code true} if the load should stop. Otherwise {@code false}.
+	 */
+	private static boolean abandon(Job job)
+	{
+		synchronized (jobs)
+		{
+			for (Listener listener : job.listeners)
+			{
+				if (listener.request == null || !listener.request.cancelled)
+					return false;
+			}
+			if (jobs.get(job.key) == job)
+				jobs.remove(job.key);
+			return true;
+		}
+	}
+
+	/**
+	 * Decode an image, and write it to the disk cache if it was sampled down
+	 * @param disk the disk cache
+	 * @param key the disk cache key of the original image
+	 * @param source the encoded image
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @return the Bitmap, or {@code null} if it could not be decoded.
+	 * @throws IOException if the image cannot be read
+	 */
+	private static Bitmap decode(ImageDiskCache disk, String key, Source source, int width, int height) throws IOException
+	{
+		int[] sampleSize = new int[1];
+		Bitmap bitmap = decode(source, width, height, sampleSize, true);
+		if (bitmap != null && sampleSize[0] > 1)
+			disk.put(ImageDiskCache.keyFor(key, width, height), bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Post a decoded Bitmap to the requests that are still waiting for it, on the UI thread
+	 * @param job the load
+	 * @param bitmap the Bitmap
+	 */
+	private static void deliver(final Job job, final Bitmap bitmap)
+	{
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				List<Listener> listeners = finish(job);
+				for (Listener listener : listeners)
+				{
+					if (!listener.tracked)
+					{
+						//handed to code that does not release it, so it must never be reused
+						BitmapPool.sharedPool().disown(bitmap);
+						break;
+					}
+				}
+				for (Listener listener : listeners)
+				{
+					if (listener.request == null || !listener.request.cancelled)
+						listener.success.invoke($.with(listener.context), bitmap);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Post an error to the requests that are still waiting for a load, on the UI thread
+	 * @param job the load
+	 * @param params the error arguments, following the droidQuery argument
+	 */
+	private static void fail(final Job job, final Object... params)
+	{
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (Listener listener : finish(job))
+				{
+					if (listener.error != null && (listener.request == null || !listener.request.cancelled))
+						listener.error.invoke($.with(listener.context), params);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop tracking a finished load, so that later requests start a new one
+	 * @param job the load
+	 * @return the requests that were waiting for the load
+	 */
+	private static List<Listener> finish(Job job)
+	{
+		synchronized (jobs)
+		{
+			if (jobs.get(job.key) == job)
+				jobs.remove(job.key);
+			return new ArrayList<Listener>(job.listeners);
+		}
+	}
+
+	/**
+	 * Checks whether an image has to be downloaded
+	 * @param source asset path, file path (starting with "file://") or URL
+	 * @return {@code true} if {@code source} is a URL other than a file URL. Otherwise {@code false}.
+	 */
+	private static boolean isRemote(String source)
+	{
+		return URLUtil.isValidUrl(source) && !source.startsWith("file://");
+	}
+
+	/**
+	 * Get the disk cache key of an original image. The key includes a version, so that cached copies and
+	 * variants of an image that may have changed are not used: the modification time of a file, the time
+	 * the application was last updated for an asset, and the {@link #MAX_REMOTE_AGE} period a download
+	 * was made in for a URL.
+	 * @param context used to read the time the application was updated
+	 * @param source asset path, file path (starting with "file://") or URL
+	 * @return the key
+	 */
+	private static String diskKey(Context context, String source)
+	{
+		if (source.startsWith("file://"))
+			return source + "#" + new File(source.substring(6)).lastModified();
+		if (isRemote(source))
+			return source + "#" + (System.currentTimeMillis() / MAX_REMOTE_AGE);
+		return source + "#" + packageUpdateTime(context);
+	}
+
+	/**
+	 * Get the time the application package was last installed or updated. Assets can only change when
+	 * it is updated.
+	 * @param context used to read the package info
+	 * @return the time, or {@code 0} if it could not be read
+	 */
+	private static long packageUpdateTime(Context context)
+	{
+		long time = packageUpdateTime;
+		if (time < 0)
+		{
+			try
+			{
+				time = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+			}
+			catch (PackageManager.NameNotFoundException e)
+			{
+				time = 0;
+			}
+			packageUpdateTime = time;
+		}
+		return time;
+	}
+
+	/**
+	 * Decode a local image on the calling thread
+	 * @param context used to open assets
+	 * @param source asset path or file path (starting with "file://")
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @return the Bitmap, or {@code null} if it could not be decoded.
+	 * @throws IOException if the asset cannot be read
+	 */
+	public static Bitmap decode(Context context, String source, int width, int height) throws IOException
+	{
+		if (source.startsWith("file://"))
+			return decodeFile(source.substring(6), width, height);
+		return decodeAsset(context, source, width, height);
+	}
+
+	/**
+	 * Decode an image file, sampled down to the given size
+	 * @param path the file path
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @return the Bitmap, or {@code null} if it could not be decoded.
+	 */
+	public static Bitmap decodeFile(String path, int width, int height)
+	{
+		try
+		{
+			return decode(fileSource(path), width, height, null, false);
+		}
+		catch (IOException e)
+		{
+			//not thrown by decodeFile
+			return null;
+		}
+	}
+
+	/**
+	 * Decode an image asset, sampled down to the given size
+	 * @param context used to open the asset
+	 * @param path the asset path
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @return the Bitmap, or {@code null} if it could not be decoded.
+	 * @throws IOException if the asset cannot be read
+	 */
+	public static Bitmap decodeAsset(Context context, String path, int width, int height) throws IOException
+	{
+		return decode(assetSource(context, path), width, height, null, false);
+	}
+
+	/**
+	 * Decode an encoded image, sampled down to the given size
+	 * @param data the encoded image
+	 * @param offset the offset of the image in {@code data}
+	 * @param length the length of the image
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @return the Bitmap, or {@code null} if it could not be decoded.
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int offset, int length, int width, int height)
+	{
+		try
+		{
+			return decode(byteArraySource(data, offset, length), width, height, null, false);
+		}
+		catch (IOException e)
+		{
+			//not thrown by decodeByteArray
+			return null;
+		}
+	}
+
+	/**
+	 * Decode an image in two passes. The first pass only reads the image size, which is used to choose
+	 * the sample size and, for pooled decodes, a {@link BitmapPool pooled} Bitmap to decode into.
+	 * @param source the encoded image
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @param sampleSize if not {@code null}, receives the sample size that was used
+	 * @param pooled {@code true} to reuse a pooled Bitmap, and let the result be pooled once it has no users.
+	 * Bitmaps returned by the public decode methods are never pooled.
+	 * @return the Bitmap, or {@code null} if it could not be decoded.
+	 * @throws IOException if the image cannot be read
+	 */
+	private static Bitmap decode(Source source, int width, int height, int[] sampleSize, boolean pooled) throws IOException
+	{
+		BitmapFactory.Options opt = new BitmapFactory.Options();
+		opt.inJustDecodeBounds = true;
+		source.decode(opt);
+		opt.inSampleSize = sampleSize(opt.outWidth, opt.outHeight, width, height);
+		if (sampleSize != null)
+			sampleSize[0] = opt.inSampleSize;
+		opt.inJustDecodeBounds = false;
+		opt.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		if (pooled)
+			BitmapPool.sharedPool().prepare(opt);
+		opt.inTempStorage = BufferPool.sharedPool().acquire(ResponseDecoders.BITMAP_TEMP_STORAGE);
+		Bitmap bitmap;
+		try
+		{
+			bitmap = source.decode(opt);
+		}
+		catch (IllegalArgumentException e)
+		{
+			//the pooled Bitmap could not be reused for this image
+			if (opt.inBitmap == null)
+				throw e;
+			opt.inBitmap = null;
+			bitmap = source.decode(opt);
+		}
+		finally
+		{
+			BufferPool.sharedPool().release(opt.inTempStorage);
+		}
+		if (pooled)
+			BitmapPool.sharedPool().adopt(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Get a {@link Source} that decodes an image file
+	 * @param path the file path
+	 * @return the source
+	 */
+	private static Source fileSource(final String path)
+	{
+		return new Source() {
+			@Override
+			public Bitmap decode(BitmapFactory.Options opt) {
+				return BitmapFactory.decodeFile(path, opt);
+			}
+		};
+	}
+
+	/**
+	 * Get a {@link Source} that decodes an image asset
+	 * @param context used to open the asset
+	 * @param path the asset path
+	 * @return the source
+	 */
+	private static Source assetSource(final Context context, final String path)
+	{
+		return new Source() {
+			@Override
+			public Bitmap decode(BitmapFactory.Options opt) throws IOException {
+				InputStream stream = context.getAssets().open(path);
+				try
+				{
+					return BitmapFactory.decodeStream(stream, null, opt);
+				}
+				finally
+				{
+					stream.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get a {@link Source} that decodes an image held in memory
+	 * @param data the encoded image
+	 * @param offset the offset of the image in {@code data}
+	 * @param length the length of the image
+	 * @return the source
+	 */
+	private static Source byteArraySource(final byte[] data, final int offset, final int length)
+	{
+		return new Source() {
+			@Override
+			public Bitmap decode(BitmapFactory.Options opt) {
+				return BitmapFactory.decodeByteArray(data, offset, length, opt);
+			}
+		};
+	}
+
+	/**
+	 * Calculate the sample size for an image
+	 * @param outWidth the width of the encoded image
+	 * @param outHeight the height of the encoded image
+	 * @param width the width the image will be displayed at, or {@code -1} to not sample by width.
+	 * @param height the height the image will be displayed at, or {@code -1} to not sample by height.
+	 * @return the largest power of two that leaves the image at least {@code width} by {@code height}
+	 */
+	public static int sampleSize(int outWidth, int outHeight, int width, int height)
+	{
+		int sampleSize = 1;
+		if (outWidth <= 0 || outHeight <= 0 || (width <= 0 && height <= 0))
+			return sampleSize;
+		while ((width <= 0 || outWidth / (sampleSize * 2) >= width)
+			&& (height <= 0 || outHeight / (sampleSize * 2) >= height))
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * A request to show an image in some views. It is cancelled once all of its views have been
+	 * {@link ImageLoader#bind(Collection) bound} to newer requests, such as when the rows of a list are recycled.
+	 */
+	public static class Request
+	{
+		/** The number of views still bound to this request */
+		private int views;
+		/** Whether this request has been cancelled */
+		private volatile boolean cancelled;
+
+		/**
+		 * Constructor
+		 */
+		private Request()
+		{
+
+		}
+
+		/**
+		 * @return {@code true} if none of the views of this request are still bound to it. Otherwise {@code false}.
+		 */
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Callbacks waiting for a load
+	 */
+	private static class Listener
+	{
+		/** wrapped in the droidQuery passed to the callbacks */
+		public final Context context;
+		/** the request, or {@code null} */
+		public final Request request;
+		/** receives the Bitmap */
+		public final Function success;
+		/** receives the error. May be {@code null}. */
+		public final Function error;
+		/** whether {@link #success} counts itself as a user of the Bitmap */
+		public final boolean tracked;
+
+		public Listener(Context context, Request request, Function success, Function error, boolean tracked)
+		{
+			this.context = context;
+			this.request = request;
+			this.success = success;
+			this.error = error;
+			this.tracked = tracked;
+		}
+	}
+
+	/**
+	 * A load of one image at one size
+	 */
+	private static class Job
+	{
+		/** used to open assets and the disk cache */
+		public final Context context;
+		/** the key in {@link ImageLoader#jobs} */
+		public final String key;
+		/** asset path, file path or URL */
+		public final String source;
+		/** the width to sample to */
+		public final int width;
+		/** the height to sample to */
+		public final int height;
+		/** the callbacks waiting for this load. Guarded by {@link ImageLoader#jobs}. */
+		public final List<Listener> listeners = new ArrayList<Listener>();
+
+		public Job(Context context, String key, String source, int width, int height)
+		{
+			this.context = context;
+			this.key = key;
+			this.source = source;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	/**
+	 * A download shared by the loads of one URL
+	 */
+	private static class Download
+	{
+		/** the loads waiting for this download */
+		public final List<Job> jobs = new ArrayList<Job>();
+		/** the Ajax request */
+		public AjaxPromise promise;
+	}
+}
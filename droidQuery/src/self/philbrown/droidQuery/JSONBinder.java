@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Binds JSON responses directly into typed Objects, without first building a {@link JSONObject} tree.
+ * This is used for requests that set {@link AjaxOptions#responseType(Class)}. For example:
+ * <pre>
+ * public class Post {
+ *     String title;
+ *     String author;
+ *     &#64;JSONBinder.Key("created_utc")
+ *     long created;
+ *     List&lt;String&gt; tags;
+ * }
+ *
+ * $.ajax(new AjaxOptions(url).responseType(Post[].class).success(new Function() {
+ *     public void invoke($ droidQuery, Object... params) {
+ *         Post[] posts = (Post[]) params[0];
+ *     }
+ * }));
+ * </pre>
+ * Objects are bound by an {@link Adapter} that is built once per class and then cached. By default,
+ * this is a reflective adapter that sets each non-static, non-transient field from the JSON key of the same
+ * name (or the name given by {@link Key}). Bound classes must have a no-argument constructor, which may be private.
+ * Hand-written or generated adapters can be registered with {@link #register(Class, Adapter)} to avoid
+ * reflection entirely.
+ * @author Phil Brown
+ */
+public class JSONBinder
+{
+	/**
+	 * Reads one Object of a specific class from a JSON stream
+	 */
+	public interface Adapter
+	{
+		/**
+		 * Read the next value from the reader
+		 * @param reader the reader, positioned before the value. The value is never {@code null}.
+		 * @return the bound Object
+		 * @throws IOException if the JSON cannot be read or does not match the class.
+		 * @see JSONBinder#read(JsonReader, Type)
+		 */
+		public Object read(JsonReader reader) throws IOException;
+	}
+
+	/**
+	 * Sets the JSON key that is bound to a field, if it is not the same as the field name
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.FIELD)
+	public @interface Key
+	{
+		/** The JSON key */
+		String value();
+	}
+
+	/** Adapters mapped by class. Includes registered and reflective adapters. */
+	private static Map<Class<?>, Adapter> adapters = new HashMap<Class<?>, Adapter>();
+
+	/**
+	 * Constructor
+	 */
+	private JSONBinder()
+	{
+
+	}
+
+	/**
+	 * Register the adapter used to bind the given class, replacing the reflective adapter.
+	 * @param type the class
+	 * @param adapter the adapter, or {@code null} to use the reflective adapter.
+	 */
+	public static synchronized void register(Class<?> type, Adapter adapter)
+	{
+		if (adapter == null)
+			adapters.remove(type);
+		else
+			adapters.put(type, adapter);
+	}
+
+	/**
+	 * Get the adapter for the given class. Reflective adapters are built on first use, and cached.
+	 * @param type the class
+	 * @return the adapter
+	 * @throws IllegalArgumentException if the class cannot be bound, because it is abstract or has
+	 * no no-argument constructor.
+	 */
+	public static synchronized Adapter adapter(Class<?> type)
+	{
+		Adapter adapter = adapters.get(type);
+		if (adapter == null)
+		{
+			adapter = new ReflectiveAdapter(type);
+			adapters.put(type, adapter);
+		}
+		return adapter;
+	}
+
+	/**
+	 * Bind a JSON response body
+	 * @param stream the response body. This is not closed.
+	 * @param contentType the Content-Type header, used to find the charset. May be {@code null}.
+	 * @param type the class to bind. Arrays are bound from JSON arrays.
+	 * @return the bound Object, or {@code null} if the response is the JSON {@code null}.
+	 * @throws IOException if the stream cannot be read, or the JSON is malformed or does not match {@code type}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T bind(InputStream stream, String contentType, Class<T> type) throws IOException
+	{
+		JsonReader reader = new JsonReader(new InputStreamReader(stream, AjaxUtil.charset(contentType)));
+		try
+		{
+			return (T) read(reader, type);
+		}
+		catch (IllegalStateException e)
+		{
+			//thrown by JsonReader when the JSON has a different structure than the class
+			throw new IOException("Received JSON that does not match " + type.getName() + ": " + e.getMessage());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Received JSON that does not match " + type.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the next value from the reader as the given type. This can be used by custom {@link Adapter}s
+	 * to read nested values.
+	 * @param reader the reader
+	 * @param type the type to read. This can be a class, or a parameterized {@link List}, {@link Collection},
+	 * {@link Set} or {@link Map} (with String keys) type. {@link Object} is read as a JSONObject, JSONArray, String,
+	 * Number or Boolean.
+	 * @return the value, or {@code null} if the next value is the JSON {@code null}.
+	 * @throws IOException if the JSON cannot be read or does not match {@code type}.
+	 */
+	public static Object read(JsonReader reader, Type type) throws IOException
+	{
+		if (reader.peek() == JsonToken.NULL)
+		{
+			reader.nextNull();
+			return null;
+		}
+		Class<?> raw = rawType(type);
+		if (raw == String.class)
+			return reader.nextString();
+		if (raw == int.class || raw == Integer.class)
+			return reader.nextInt();
+		if (raw == long.class || raw == Long.class)
+			return reader.nextLong();
+		if (raw == double.class || raw == Double.class)
+			return reader.nextDouble();
+		if (raw == boolean.class || raw == Boolean.class)
+			return reader.nextBoolean();
+		if (raw == float.class || raw == Float.class)
+			return (float) reader.nextDouble();
+		if (raw == short.class || raw == Short.class)
+			return (short) reader.nextInt();
+		if (raw == byte.class || raw == Byte.class)
+			return (byte) reader.nextInt();
+		if (raw == char.class || raw == Character.class)
+		{
+			String s = reader.nextString();
+			return s.length() == 0 ? '\0' : s.charAt(0);
+		}
+		if (raw.isEnum())
+			return enumValue(raw, reader.nextString());
+		if (raw.isArray())
+		{
+			Type componentType = (type instanceof GenericArrayType) ? ((GenericArrayType) type).getGenericComponentType() : raw.getComponentType();
+			List<Object> list = new ArrayList<Object>();
+			reader.beginArray();
+			while (reader.hasNext())
+				list.add(read(reader, componentType));
+			reader.endArray();
+			Object array = Array.newInstance(raw.getComponentType(), list.size());
+			for (int i = 0; i < list.size(); i++)
+				Array.set(array, i, list.get(i));
+			return array;
+		}
+		if (Collection.class.isAssignableFrom(raw))
+		{
+			Type elementType = typeArgument(type, 0);
+			Collection<Object> collection;
+			if (Set.class.isAssignableFrom(raw))
+				collection = new LinkedHashSet<Object>();
+			else
+				collection = new ArrayList<Object>();
+			reader.beginArray();
+			while (reader.hasNext())
+				collection.add(read(reader, elementType));
+			reader.endArray();
+			return collection;
+		}
+		if (Map.class.isAssignableFrom(raw))
+		{
+			Type valueType = typeArgument(type, 1);
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			reader.beginObject();
+			while (reader.hasNext())
+				map.put(reader.nextName(), read(reader, valueType));
+			reader.endObject();
+			return map;
+		}
+		if (raw == Object.class || raw == JSONObject.class || raw == JSONArray.class)
+			return readUntyped(reader);
+		return adapter(raw).read(reader);
+	}
+
+	/**
+	 * Read the next value without a target type
+	 * @param reader the reader
+	 * @return a JSONObject, JSONArray, String, Number, Boolean or {@link JSONObject#NULL}
+	 * @throws IOException if the JSON cannot be read
+	 */
+	private static Object readUntyped(JsonReader reader) throws IOException
+	{
+		try
+		{
+			switch (reader.peek())
+			{
+				case BEGIN_OBJECT :
+				{
+					JSONObject object = new JSONObject();
+					reader.beginObject();
+					while (reader.hasNext())
+						object.put(reader.nextName(), readUntyped(reader));
+					reader.endObject();
+					return object;
+				}
+				case BEGIN_ARRAY :
+				{
+					JSONArray array = new JSONArray();
+					reader.beginArray();
+					while (reader.hasNext())
+						array.put(readUntyped(reader));
+					reader.endArray();
+					return array;
+				}
+				case NUMBER :
+				{
+					String number = reader.nextString();
+					if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1)
+					{
+						try
+						{
+							return Long.parseLong(number);
+						}
+						catch (NumberFormatException e)
+						{
+							//too large for a long
+						}
+					}
+					return Double.parseDouble(number);
+				}
+				case BOOLEAN :
+					return reader.nextBoolean();
+				case NULL :
+					reader.nextNull();
+					return JSONObject.NULL;
+				default :
+					return reader.nextString();
+			}
+		}
+		catch (JSONException e)
+		{
+			throw new IOException("Received malformed JSON");
+		}
+	}
+
+	/**
+	 * Get the class of a type
+	 * @param type a class, parameterized type or generic array type
+	 * @return the class
+	 */
+	private static Class<?> rawType(Type type)
+	{
+		if (type instanceof Class)
+			return (Class<?>) type;
+		if (type instanceof ParameterizedType)
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		if (type instanceof GenericArrayType)
+			return Array.newInstance(rawType(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+		//type variables and wildcards
+		return Object.class;
+	}
+
+	/**
+	 * Get a type argument of a parameterized type
+	 * @param type the type
+	 * @param index the index of the argument
+	 * @return the argument, or {@link Object} if the type is not parameterized.
+	 */
+	private static Type typeArgument(Type type, int index)
+	{
+		if (type instanceof ParameterizedType)
+		{
+			Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+			if (index < args.length)
+				return args[index];
+		}
+		return Object.class;
+	}
+
+	/**
+	 * Get an enum constant by name
+	 * @param type the enum class
+	 * @param name the constant name
+	 * @return the constant
+	 * @throws IOException if there is no such constant
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object enumValue(Class<?> type, String name) throws IOException
+	{
+		try
+		{
+			return Enum.valueOf((Class<? extends Enum>) type, name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("No " + type.getName() + " constant named " + name);
+		}
+	}
+
+	/**
+	 * Binds a class by setting its fields. The constructor and fields are found once, when the adapter is built.
+	 */
+	private static class ReflectiveAdapter implements Adapter
+	{
+		/** The no-argument constructor */
+		private Constructor<?> constructor;
+		/** The bound fields, mapped by JSON key */
+		private Map<String, Field> fields = new HashMap<String, Field>();
+
+		/**
+		 * Constructor
+		 * @param type the class to bind
+		 */
+		public ReflectiveAdapter(Class<?> type)
+		{
+			if (type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+				throw new IllegalArgumentException("Cannot bind JSON to abstract type " + type.getName());
+			try
+			{
+				constructor = type.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			}
+			catch (NoSuchMethodException e)
+			{
+				throw new IllegalArgumentException(type.getName() + " must have a no-argument constructor to bind JSON.");
+			}
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass())
+			{
+				for (Field f : c.getDeclaredFields())
+				{
+					int modifiers = f.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isSynthetic())
+						continue;
+					Key key = f.getAnnotation(Key.class);
+					String name = key == null ? f.getName() : key.value();
+					//fields of subclasses hide fields of superclasses with the same name
+					if (fields.containsKey(name))
+						continue;
+					f.setAccessible(true);
+					fields.put(name, f);
+				}
+			}
+		}
+
+		@Override
+		public Object read(JsonReader reader) throws IOException
+		{
+			Object object;
+			try
+			{
+				object = constructor.newInstance();
+			}
+			catch (Throwable t)
+			{
+				throw new IOException("Could not create " + constructor.getDeclaringClass().getName() + ": " + t.getMessage());
+			}
+			reader.beginObject();
+			while (reader.hasNext())
+			{
+				Field field = fields.get(reader.nextName());
+				if (field == null)
+				{
+					reader.skipValue();
+					continue;
+				}
+				Object value = JSONBinder.read(reader, field.getGenericType());
+				//leave primitive fields at their default value for JSON nulls
+				if (value == null && field.getType().isPrimitive())
+					continue;
+				try
+				{
+					field.set(object, value);
+				}
+				catch (IllegalAccessException e)
+				{
+					throw new IOException("Could not set " + field.getName() + ": " + e.getMessage());
+				}
+			}
+			reader.endObject();
+			return object;
+		}
+	}
+}
@@ -22,7 +22,6 @@ import java.net.HttpURLConnection;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
@@ -52,32 +51,7 @@ public class JSONResponseHandler implements ResponseHandler<Object>
         if (entity == null) 
         	return null;
         
-        String json = null;
-        try 
-        {
-        	json = AjaxUtil.toString(entity);
-        	if (json.startsWith("{"))
-        	{
-        		return new JSONObject(json);
-        	}
-        	else
-        	{
-        		return new JSONArray(json);
-        	}
-        	
-		} 
-        catch (ParseException e) 
-        {
-			throw e;
-		} 
-        catch (JSONException e) 
-        {
-        	throw new IOException("Received malformed JSON");
-		}
-        catch (NullPointerException e) 
-        {
-        	return null;
-        }
+        return handleText(AjaxUtil.toString(entity));
 	}
 	
 	public Object handleResponse(HttpURLConnection connection) throws ClientProtocolException, IOException
@@ -89,12 +63,46 @@ public class JSONResponseHandler implements ResponseHandler<Object>
         	Log.e("droidQuery", "HTTP Response Error " + statusCode + ":" + connection.getResponseMessage());
         }
 
-        String json = null;
         InputStream stream = null;
         try 
         {
         	stream = AjaxUtil.getInputStream(connection);
-        	json = Ajax.parseText(stream);
+        	return handleText(AjaxUtil.toString(stream, connection.getContentType(), AjaxUtil.isGzip(connection) ? -1 : connection.getContentLength()));
+		} 
+        finally
+        {
+        	if (stream != null) 
+        	{
+        		try 
+        		{
+        			stream.close();
+        		} 
+        		catch (IOException e) {}
+        	}
+        }
+	}
+	
+	/**
+	 * Parses the given UTF-8 response body as a JSONObject or JSONArray
+	 * @param stream the response body. This is not closed.
+	 * @return a JSONObject or JSONArray
+	 * @throws IOException if the stream cannot be read, or the JSON is malformed.
+	 */
+	public Object handleResponse(InputStream stream) throws IOException
+	{
+		return handleText(AjaxUtil.toString(stream, null, -1));
+	}
+	
+	/**
+	 * Parses the given, already decoded, response body as a JSONObject or JSONArray
+	 * @param json the response body
+	 * @return a JSONObject, JSONArray, or {@code null} if {@code json} is {@code null}.
+	 * @throws IOException if the JSON is malformed.
+	 */
+	public Object handleText(String json) throws IOException
+	{
+        try 
+        {
         	if (json.startsWith("{"))
         	{
         		return new JSONObject(json);
@@ -105,10 +113,6 @@ public class JSONResponseHandler implements ResponseHandler<Object>
         	}
         	
 		} 
-        catch (ParseException e) 
-        {
-			throw e;
-		} 
         catch (JSONException e) 
         {
         	throw new IOException("Received malformed JSON");
@@ -117,17 +121,6 @@ public class JSONResponseHandler implements ResponseHandler<Object>
         {
         	return null;
         }
-        finally
-        {
-        	if (stream != null) 
-        	{
-        		try 
-        		{
-        			stream.close();
-        		} 
-        		catch (IOException e) {}
-        	}
-        }
 	}
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates the quality of the current network from the round trip time and throughput of completed
+ * Ajax requests. When {@link #adaptive(boolean) adaptive} (the default), the estimate is used to lengthen
+ * request timeouts on slow networks, and to choose how many {@link Prefetcher prefetches} can run at once.
+ * Samples expire after {@link #MAX_AGE}, so an old estimate does not outlive the conditions it measured.
+ * @author Phil Brown
+ */
+public class NetworkQuality
+{
+	/**
+	 * Network quality classes
+	 */
+	public static enum Quality
+	{
+		/** No requests have completed recently */
+		UNKNOWN,
+		/** Less than 150 kbps, or round trips of 1400 ms or more */
+		POOR,
+		/** Less than 550 kbps, or round trips of 270 ms or more */
+		MODERATE,
+		/** Less than 2000 kbps, or round trips of 100 ms or more */
+		GOOD,
+		/** Faster */
+		EXCELLENT
+	}
+
+	/** Weight given to each new sample in the moving averages */
+	private static final double WEIGHT = 0.25;
+	/** Responses smaller than this many bytes are dominated by latency, so are not used to estimate throughput. */
+	private static final long MIN_THROUGHPUT_BYTES = 10240;
+	/** Time, in milliseconds, after which an estimate with no new samples is forgotten. One minute. */
+	public static final long MAX_AGE = 60000;
+
+	/** Moving average of round trip times, in milliseconds. Negative if unknown. */
+	private static double rtt = -1;
+	/** Moving average of throughput, in kilobits per second. Negative if unknown. */
+	private static double throughput = -1;
+	/** Time of the last round trip sample, in {@link SystemClock#elapsedRealtime()} milliseconds */
+	private static long rttTime;
+	/** Time of the last throughput sample, in {@link SystemClock#elapsedRealtime()} milliseconds */
+	private static long throughputTime;
+	/** {@code true} if the estimate should be used to adjust requests */
+	private static boolean adaptive = true;
+
+	/**
+	 * Constructor
+	 */
+	private NetworkQuality()
+	{
+
+	}
+
+	/**
+	 * Set whether or not timeouts and prefetching are adjusted to the network quality. Default is {@code true}.
+	 * @param adaptive {@code true} to adjust requests. Otherwise {@code false}.
+	 */
+	public static synchronized void adaptive(boolean adaptive)
+	{
+		NetworkQuality.adaptive = adaptive;
+	}
+
+	/**
+	 * @return {@code true} if timeouts and prefetching are adjusted to the network quality. Otherwise {@code false}.
+	 */
+	public static synchronized boolean adaptive()
+	{
+		return adaptive;
+	}
+
+	/**
+	 * Record a completed request
+	 * @param rttMillis the time from sending the request until the response headers were received
+	 * @param bytes the number of bytes in the response body, or a negative number if unknown
+	 * @param transferMillis the time taken to read the response body
+	 */
+	public static synchronized void addSample(long rttMillis, long bytes, long transferMillis)
+	{
+		expire();
+		long now = SystemClock.elapsedRealtime();
+		if (rttMillis >= 0)
+		{
+			rtt = rtt < 0 ? rttMillis : (1 - WEIGHT) * rtt + WEIGHT * rttMillis;
+			rttTime = now;
+		}
+		if (bytes >= MIN_THROUGHPUT_BYTES && transferMillis > 0)
+		{
+			double kbps = (bytes * 8.0) / transferMillis;
+			throughput = throughput < 0 ? kbps : (1 - WEIGHT) * throughput + WEIGHT * kbps;
+			throughputTime = now;
+		}
+	}
+	
+	/**
+	 * Forget the round trip time or throughput if it has not been sampled for {@link #MAX_AGE}.
+	 * Must be called while synchronized.
+	 */
+	private static void expire()
+	{
+		long now = SystemClock.elapsedRealtime();
+		if (rtt >= 0 && now - rttTime > MAX_AGE)
+			rtt = -1;
+		if (throughput >= 0 && now - throughputTime > MAX_AGE)
+			throughput = -1;
+	}
+
+	/**
+	 * Forget all samples. This should be called when the device switches networks.
+	 */
+	public static synchronized void reset()
+	{
+		rtt = -1;
+		throughput = -1;
+	}
+
+	/**
+	 * @return the average round trip time, in milliseconds, or {@code -1} if unknown.
+	 */
+	public static synchronized long rtt()
+	{
+		expire();
+		return Math.round(rtt);
+	}
+
+	/**
+	 * @return the average throughput, in kilobits per second, or {@code -1} if unknown.
+	 */
+	public static synchronized long throughput()
+	{
+		expire();
+		return Math.round(throughput);
+	}
+
+	/**
+	 * Get the current quality class. If both the round trip time and throughput are known, the worse of
+	 * the two classes is used.
+	 * @return the quality
+	 */
+	public static synchronized Quality current()
+	{
+		expire();
+		Quality byRtt = Quality.UNKNOWN;
+		if (rtt >= 0)
+		{
+			if (rtt >= 1400)
+				byRtt = Quality.POOR;
+			else if (rtt >= 270)
+				byRtt = Quality.MODERATE;
+			else if (rtt >= 100)
+				byRtt = Quality.GOOD;
+			else
+				byRtt = Quality.EXCELLENT;
+		}
+		Quality byThroughput = Quality.UNKNOWN;
+		if (throughput >= 0)
+		{
+			if (throughput < 150)
+				byThroughput = Quality.POOR;
+			else if (throughput < 550)
+				byThroughput = Quality.MODERATE;
+			else if (throughput < 2000)
+				byThroughput = Quality.GOOD;
+			else
+				byThroughput = Quality.EXCELLENT;
+		}
+		if (byRtt == Quality.UNKNOWN)
+			return byThroughput;
+		if (byThroughput == Quality.UNKNOWN)
+			return byRtt;
+		return byRtt.ordinal() < byThroughput.ordinal() ? byRtt : byThroughput;
+	}
+
+	/**
+	 * Adjust a request timeout to the current network quality. Timeouts are never shortened.
+	 * @param timeout the configured timeout, in milliseconds. {@code 0} means no timeout is set.
+	 * @return the timeout to use
+	 */
+	public static int timeout(int timeout)
+	{
+		if (timeout <= 0 || !adaptive())
+			return timeout;
+		switch (current())
+		{
+			case POOR :
+				return timeout * 3;
+			case MODERATE :
+				return timeout * 2;
+			default :
+				return timeout;
+		}
+	}
+
+	/**
+	 * Adjust the number of prefetches allowed to run at once to the current network quality.
+	 * @param max the configured maximum
+	 * @return the number of prefetches to allow. {@code 0} pauses prefetching on poor networks, until a
+	 * better sample is recorded or the estimate expires.
+	 */
+	public static int prefetchLimit(int max)
+	{
+		if (!adaptive())
+			return max;
+		switch (current())
+		{
+			case POOR :
+				return 0;
+			case MODERATE :
+				return 1;
+			case EXCELLENT :
+				return max * 2;
+			default :
+				return max;
+		}
+	}
+
+	/**
+	 * Scale an image dimension to the current network quality. This can be used to choose which size
+	 * of an image to request from a server that offers several.
+	 * @param size the dimension to use on a good network, in pixels
+	 * @return the dimension to use
+	 */
+	public static int imageSize(int size)
+	{
+		if (size <= 0 || !adaptive())
+			return size;
+		switch (current())
+		{
+			case POOR :
+				return size / 2;
+			case MODERATE :
+				return size * 3 / 4;
+			default :
+				return size;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import self.philbrown.droidQuery.AjaxOptions.Redundancy;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Warms the {@link AjaxCache} with low-priority background requests. Prefetches are queued and only
+ * run while no foreground request started by {@link $#ajax(AjaxOptions)} is in progress. They never
+ * invoke the callbacks of the given options - they only cache the response. A foreground request
+ * for the same data that is started while its prefetch is running waits for the prefetch and is then
+ * answered from the cache, instead of making a second request.
+ * @author Phil Brown
+ * @see $#prefetch(AjaxOptions...)
+ */
+public class Prefetcher
+{
+	/** Queued prefetches, in order */
+	private static LinkedList<Prefetch> queue = new LinkedList<Prefetch>();
+	/** Running prefetches, mapped by their {@link AjaxCache#keyFor(AjaxOptions) cache key} */
+	private static Map<String, Prefetch> running = new HashMap<String, Prefetch>();
+	/** The number of foreground requests currently in progress */
+	private static int foregroundRequests = 0;
+	/** 
+	 * The maximum number of prefetches that can run at the same time. When {@link NetworkQuality#adaptive()}
+	 * is {@code true}, this is adjusted to the current network quality.
+	 */
+	private static int maxConcurrentPrefetches = 1;
+	/** If {@code true}, prefetches are only run on Wi-Fi (or Ethernet) connections */
+	private static boolean wifiOnly = false;
+	/** Time, in milliseconds, to wait before trying again while prefetching is paused on a poor network */
+	private static final long RETRY_DELAY = 30000;
+	/** Runs {@link #schedule()} again while prefetching is paused. Created when first needed. */
+	private static Timer retryTimer;
+	/** {@code true} while a retry is scheduled on {@link #retryTimer} */
+	private static boolean retryScheduled = false;
+
+	/**
+	 * Constructor
+	 */
+	private Prefetcher()
+	{
+
+	}
+
+	/**
+	 * Set the maximum number of prefetches that can run at the same time. Default is 1. When 
+	 * {@link NetworkQuality#adaptive()} is {@code true}, fewer prefetches are run on slow networks, and 
+	 * more on fast networks.
+	 * @param max the maximum number of concurrent prefetches
+	 */
+	public static void maxConcurrentPrefetches(int max)
+	{
+		synchronized(Prefetcher.class)
+		{
+			maxConcurrentPrefetches = Math.max(1, max);
+		}
+		schedule();
+	}
+
+	/**
+	 * Set whether or not prefetches should only run on unmetered (Wi-Fi or Ethernet) connections.
+	 * This requires that the prefetch options have a {@link AjaxOptions#context() context}, and that the
+	 * application has the {@code ACCESS_NETWORK_STATE} permission. Default is {@code false}.
+	 * @param wifiOnly {@code true} to skip prefetches on mobile connections. Otherwise {@code false}.
+	 */
+	public static void wifiOnly(boolean wifiOnly)
+	{
+		synchronized(Prefetcher.class)
+		{
+			Prefetcher.wifiOnly = wifiOnly;
+		}
+	}
+
+	/**
+	 * Queue a prefetch. If the response is already cached, or the same prefetch is already queued or
+	 * running, no new request is made.
+	 * @param options the options of the request to prefetch. Its callbacks are not invoked.
+	 * @return a promise that is resolved once the response has been cached. Cancelling it cancels the prefetch.
+	 */
+	public static AjaxPromise prefetch(AjaxOptions options)
+	{
+		final String key = AjaxCache.keyFor(options);
+		synchronized(Prefetcher.class)
+		{
+			Prefetch existing = running.get(key);
+			if (existing == null)
+			{
+				for (Prefetch p : queue)
+				{
+					if (p.key.equals(key))
+					{
+						existing = p;
+						break;
+					}
+				}
+			}
+			if (existing != null)
+				return existing.promise;
+		}
+
+		Object cached = AjaxCache.sharedCache().getCachedResponse(options);
+		if (cached != null)
+			return AjaxPromise.resolved(cached, "cached response", null);
+
+		final Prefetch prefetch = new Prefetch(key, prefetchOptions(options));
+		prefetch.promise.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(Prefetcher.class)
+				{
+					queue.remove(prefetch);
+				}
+			}
+		});
+		synchronized(Prefetcher.class)
+		{
+			queue.add(prefetch);
+		}
+		schedule();
+		return prefetch.promise;
+	}
+
+	/**
+	 * Cancel all queued and running prefetches.
+	 */
+	public static void cancelAll()
+	{
+		List<Prefetch> toCancel;
+		synchronized(Prefetcher.class)
+		{
+			toCancel = new ArrayList<Prefetch>(queue);
+			toCancel.addAll(running.values());
+		}
+		for (Prefetch prefetch : toCancel)
+		{
+			prefetch.promise.cancel();
+		}
+	}
+
+	/**
+	 * Called by {@link $#ajax(AjaxOptions)} before a foreground request is started. If a prefetch for the
+	 * same data is queued, it is dropped, since the foreground request will cache the response anyway.
+	 * If it is already running, its promise is returned so that the foreground request can join it.
+	 * @param options the foreground request options
+	 * @return the promise of the running prefetch, or {@code null} if there is none.
+	 */
+	static AjaxPromise join(AjaxOptions options)
+	{
+		String key = AjaxCache.keyFor(options);
+		Prefetch queued = null;
+		synchronized(Prefetcher.class)
+		{
+			Prefetch prefetch = running.get(key);
+			if (prefetch != null)
+				return prefetch.promise;
+			for (Iterator<Prefetch> it = queue.iterator(); it.hasNext();)
+			{
+				Prefetch p = it.next();
+				if (p.key.equals(key))
+				{
+					queued = p;
+					it.remove();
+					break;
+				}
+			}
+		}
+		if (queued != null)
+			queued.promise.cancel();
+		return null;
+	}
+
+	/**
+	 * Track a foreground request. Prefetches are paused until it completes.
+	 * @param promise the foreground request's promise
+	 */
+	static void foreground(AjaxPromise promise)
+	{
+		synchronized(Prefetcher.class)
+		{
+			foregroundRequests++;
+		}
+		promise.always(new Function() {
+			@Override
+			public void invoke($ droidQuery, Object... params) {
+				synchronized(Prefetcher.class)
+				{
+					foregroundRequests--;
+				}
+				schedule();
+			}
+		});
+	}
+
+	/**
+	 * Start as many queued prefetches as allowed
+	 */
+	private static void schedule()
+	{
+		List<Prefetch> toStart = new ArrayList<Prefetch>();
+		List<Prefetch> toSkip = new ArrayList<Prefetch>();
+		int limit = NetworkQuality.prefetchLimit(maxConcurrentPrefetches);
+		synchronized(Prefetcher.class)
+		{
+			while (foregroundRequests == 0 && running.size() + toStart.size() < limit && !queue.isEmpty())
+			{
+				Prefetch prefetch = queue.removeFirst();
+				if (isNetworkAllowed(prefetch.options))
+				{
+					running.put(prefetch.key, prefetch);
+					toStart.add(prefetch);
+				}
+				else
+				{
+					toSkip.add(prefetch);
+				}
+			}
+			if (limit == 0 && foregroundRequests == 0 && running.isEmpty() && !queue.isEmpty())
+			{
+				//no running request will call schedule() again when it completes, so try again later.
+				retry();
+			}
+		}
+		for (Prefetch prefetch : toSkip)
+		{
+			prefetch.promise.cancel();
+		}
+		for (final Prefetch prefetch : toStart)
+		{
+			Ajax task = new Ajax(prefetch.options);
+			//remove from running before the prefetch promise is settled, so that joined requests find the cached response.
+			task.promise().always(new Function() {
+				@Override
+				public void invoke($ droidQuery, Object... params) {
+					synchronized(Prefetcher.class)
+					{
+						running.remove(prefetch.key);
+					}
+					schedule();
+				}
+			});
+			prefetch.promise.follow(task.promise());
+			task.execute();
+		}
+	}
+
+	/**
+	 * Call {@link #schedule()} after {@link #RETRY_DELAY}, unless a retry is already scheduled.
+	 * Must be called while synchronized on {@code Prefetcher.class}.
+	 */
+	private static void retry()
+	{
+		if (retryScheduled)
+			return;
+		if (retryTimer == null)
+			retryTimer = new Timer("Prefetcher", true);
+		retryScheduled = true;
+		retryTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				synchronized(Prefetcher.class)
+				{
+					retryScheduled = false;
+				}
+				schedule();
+			}
+		}, RETRY_DELAY);
+	}
+
+	/**
+	 * Checks whether the current connection allows prefetching
+	 * @param options the prefetch options. The {@link AjaxOptions#context() context} is used to check connectivity.
+	 * @return {@code true} if the prefetch can run. Otherwise {@code false}.
+	 */
+	private static boolean isNetworkAllowed(AjaxOptions options)
+	{
+		Context context = options.context();
+		if (context == null)
+			return true;
+		try
+		{
+			ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = cm.getActiveNetworkInfo();
+			if (info == null || !info.isConnected())
+				return false;
+			if (wifiOnly)
+				return info.getType() == ConnectivityManager.TYPE_WIFI || info.getType() == ConnectivityManager.TYPE_ETHERNET;
+			return true;
+		}
+		catch (SecurityException e)
+		{
+			if (options.debug())
+				Log.w("Prefetcher", "ACCESS_NETWORK_STATE permission is required to check connectivity.");
+			return true;
+		}
+	}
+
+	/**
+	 * Creates the options used for a prefetch: a silent, lowest-priority, cached request.
+	 * @param options the original options
+	 * @return a copy of {@code options} without callbacks
+	 */
+	private static AjaxOptions prefetchOptions(AjaxOptions options)
+	{
+		AjaxOptions prefetch = (AjaxOptions) options.clone();
+		return prefetch.priority(Thread.MIN_PRIORITY)
+		               .cache(true)
+		               .global(false)
+		               .async(true)
+		               .redundancy(Redundancy.DO_NOTHING)
+		               .beforeSend(null)
+		               .success(null)
+		               .error(null)
+		               .complete(null)
+		               .statusCode(new HashMap<Integer, Function>());
+	}
+
+	/**
+	 * A queued or running prefetch
+	 */
+	private static class Prefetch
+	{
+		/** The {@link AjaxCache} key */
+		public final String key;
+		/** The prefetch options */
+		public final AjaxOptions options;
+		/** Settled once the prefetch completes */
+		public final AjaxPromise promise = new AjaxPromise();
+
+		public Prefetch(String key, AjaxOptions options)
+		{
+			this.key = key;
+			this.options = options;
+		}
+	}
+}
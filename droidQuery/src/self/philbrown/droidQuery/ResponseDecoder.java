@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.io.InputStream;
+
+/**
+ * Converts a response body into the Object passed to {@link AjaxOptions#success()}. Decoders are
+ * registered with {@link ResponseDecoders} by {@link AjaxOptions#dataType() dataType} or by Content-Type,
+ * and are run on the request's background thread.
+ * @author Phil Brown
+ * @see ResponseDecoders
+ */
+public interface ResponseDecoder
+{
+	/**
+	 * Decode a response body
+	 * @param stream the response body, already decompressed if the server used gzip. The caller closes it.
+	 * @param contentType the value of the response's Content-Type header. May be {@code null}.
+	 * @param contentLength the value of the response's Content-Length header, or {@code -1} if unknown.
+	 * This may be the compressed length, so should only be used as a size hint.
+	 * @param options the request options
+	 * @return the parsed response
+	 * @throws Exception if the response cannot be decoded. The request will fail with an error.
+	 */
+	public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception;
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParser;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Registry of {@link ResponseDecoder}s. A request's decoder is resolved once, in this order:
+ * <ol>
+ * <li>the decoder registered for the request's {@link AjaxOptions#dataType() dataType}
+ * <li>the decoder registered for the response's Content-Type (for example {@code application/json},
+ * then {@code application/*})
+ * <li>{@link #TEXT}
+ * </ol>
+ * Custom formats can be supported by registering a decoder for a new dataType. For example:
+ * <pre>
+ * ResponseDecoders.register("protobuf", new ResponseDecoder() {
+ *     public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+ *         return Message.parseFrom(stream);
+ *     }
+ * });
+ * $.ajax(new AjaxOptions(url).dataType("protobuf").success(...));
+ * </pre>
+ * @author Phil Brown
+ */
+public class ResponseDecoders
+{
+	/** Size of the pooled scratch buffer given to {@link BitmapFactory} when decoding images */
+	static final int BITMAP_TEMP_STORAGE = 16 * 1024;
+
+	/** Decodes the response as a String, using the charset of the Content-Type. Used for "text" and "html" */
+	public static final ResponseDecoder TEXT = new ResponseDecoder() {
+		@Override
+		public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+			return AjaxUtil.toString(stream, contentType, contentLength);
+		}
+	};
+
+	/**
+	 * Decodes the response as an XML Document, or passes it to {@link AjaxOptions#customXMLParser()},
+	 * {@link AjaxOptions#SAXContentHandler()} or {@link AjaxOptions#xmlPullHandler()}, if set. Used for "xml"
+	 */
+	public static final ResponseDecoder XML = new ResponseDecoder() {
+		@Override
+		public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+			if (options.customXMLParser() != null)
+			{
+				if (options.SAXContentHandler() != null)
+					options.customXMLParser().parse(stream, options.SAXContentHandler());
+				else
+					options.customXMLParser().parse(stream, new DefaultHandler());
+				return "Response handled by custom SAX parser";
+			}
+			else if (options.SAXContentHandler() != null)
+			{
+				SAXParser parser = XMLParsers.saxParser();
+				try
+				{
+					XMLReader reader = parser.getXMLReader();
+					reader.setContentHandler(options.SAXContentHandler());
+					reader.parse(new InputSource(stream));
+				}
+				finally
+				{
+					XMLParsers.release(parser);
+				}
+				return "Response handled by custom SAX content handler";
+			}
+			else if (options.xmlPullHandler() != null)
+			{
+				String encoding = null;
+				if (contentType != null && contentType.toLowerCase(Locale.US).contains("charset="))
+					encoding = AjaxUtil.charset(contentType).name();
+				XMLParsers.pull(stream, encoding, options.xmlPullHandler());
+				return "Response handled by XML pull handler";
+			}
+			return new XMLResponseHandler().handleResponse(stream);
+		}
+	};
+
+	/** 
+	 * Decodes the response as a JSONObject or JSONArray, or binds it to {@link AjaxOptions#responseType()}, 
+	 * if set. Used for "json" 
+	 */
+	public static final ResponseDecoder JSON = new ResponseDecoder() {
+		@Override
+		public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+			if (options.responseType() != null)
+				return JSONBinder.bind(stream, contentType, options.responseType());
+			return new JSONResponseHandler().handleText(AjaxUtil.toString(stream, contentType, contentLength));
+		}
+	};
+
+	/** Executes the response as a {@link Script}, and returns a {@link ScriptResponse}. Used for "script" */
+	public static final ResponseDecoder SCRIPT = new ResponseDecoder() {
+		@Override
+		public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+			if (options.context() == null)
+				throw new NullPointerException("No context provided.");
+			return new ScriptResponseHandler(options.context()).handleText(AjaxUtil.toString(stream, contentType, contentLength));
+		}
+	};
+
+	/** 
+	 * Decodes the response as a Bitmap, sampled down to {@link AjaxOptions#imageWidth()} and 
+	 * {@link AjaxOptions#imageHeight()}, if set. Used for "image" 
+	 */
+	public static final ResponseDecoder IMAGE = new ResponseDecoder() {
+		@Override
+		public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+			Bitmap bitmap;
+			if (options.imageWidth() > 0 || options.imageHeight() > 0)
+			{
+				//the stream can only be read once, so buffer it for the bounds pass
+				byte[] data = AjaxUtil.toByteArray(stream, contentLength);
+				bitmap = ImageLoader.decodeByteArray(data, 0, data.length, options.imageWidth(), options.imageHeight());
+			}
+			else
+			{
+				BitmapFactory.Options opt = new BitmapFactory.Options();
+				opt.inTempStorage = BufferPool.sharedPool().acquire(BITMAP_TEMP_STORAGE);
+				try
+				{
+					bitmap = BitmapFactory.decodeStream(stream, null, opt);
+				}
+				finally
+				{
+					BufferPool.sharedPool().release(opt.inTempStorage);
+				}
+			}
+
+			if (bitmap == null || bitmap.isRecycled())
+			{
+				return null;
+			}
+			return bitmap;
+		}
+	};
+
+	/** Reads the response as a byte[], sized from the Content-Length when it is known. Used for "raw" */
+	public static final ResponseDecoder RAW = new ResponseDecoder() {
+		@Override
+		public Object decode(InputStream stream, String contentType, long contentLength, AjaxOptions options) throws Exception {
+			return AjaxUtil.toByteArray(stream, contentLength);
+		}
+	};
+
+	/** Decoders mapped by lower-case dataType */
+	private static Map<String, ResponseDecoder> dataTypes = new HashMap<String, ResponseDecoder>();
+	/** Decoders mapped by lower-case media type, such as "application/json" or "image/*" */
+	private static Map<String, ResponseDecoder> contentTypes = new HashMap<String, ResponseDecoder>();
+
+	static
+	{
+		dataTypes.put("text", TEXT);
+		dataTypes.put("html", TEXT);
+		dataTypes.put("xml", XML);
+		dataTypes.put("json", JSON);
+		dataTypes.put("script", SCRIPT);
+		dataTypes.put("image", IMAGE);
+		dataTypes.put("raw", RAW);
+
+		contentTypes.put("text/*", TEXT);
+		contentTypes.put("application/json", JSON);
+		contentTypes.put("text/json", JSON);
+		contentTypes.put("application/xml", XML);
+		contentTypes.put("text/xml", XML);
+		contentTypes.put("image/*", IMAGE);
+		contentTypes.put("application/octet-stream", RAW);
+	}
+
+	/**
+	 * Constructor
+	 */
+	private ResponseDecoders()
+	{
+
+	}
+
+	/**
+	 * Register a decoder for the given dataType, replacing any existing decoder for it.
+	 * @param dataType the {@link AjaxOptions#dataType() dataType}. Case-insensitive.
+	 * @param decoder the decoder, or {@code null} to remove the current decoder.
+	 */
+	public static synchronized void register(String dataType, ResponseDecoder decoder)
+	{
+		String key = dataType.toLowerCase(Locale.US);
+		if (decoder == null)
+			dataTypes.remove(key);
+		else
+			dataTypes.put(key, decoder);
+	}
+
+	/**
+	 * Register a decoder for the given Content-Type. This is used when the request's dataType has no
+	 * registered decoder.
+	 * @param contentType a media type, such as {@code application/cbor}, or a wildcard such as {@code image/*}.
+	 * Case-insensitive.
+	 * @param decoder the decoder, or {@code null} to remove the current decoder.
+	 */
+	public static synchronized void registerContentType(String contentType, ResponseDecoder decoder)
+	{
+		String key = contentType.toLowerCase(Locale.US);
+		if (decoder == null)
+			contentTypes.remove(key);
+		else
+			contentTypes.put(key, decoder);
+	}
+
+	/**
+	 * Get the decoder for a response
+	 * @param dataType the request's {@link AjaxOptions#dataType() dataType}. May be {@code null}.
+	 * @param contentType the response's Content-Type header. May be {@code null}.
+	 * @return the decoder to use. Never {@code null}.
+	 */
+	public static synchronized ResponseDecoder resolve(String dataType, String contentType)
+	{
+		if (dataType != null)
+		{
+			ResponseDecoder decoder = dataTypes.get(dataType.toLowerCase(Locale.US));
+			if (decoder != null)
+				return decoder;
+		}
+		if (contentType != null)
+		{
+			String mediaType = contentType;
+			int params = mediaType.indexOf(';');
+			if (params != -1)
+				mediaType = mediaType.substring(0, params);
+			mediaType = mediaType.trim().toLowerCase(Locale.US);
+			ResponseDecoder decoder = contentTypes.get(mediaType);
+			if (decoder != null)
+				return decoder;
+			int slash = mediaType.indexOf('/');
+			if (slash != -1)
+			{
+				decoder = contentTypes.get(mediaType.substring(0, slash) + "/*");
+				if (decoder != null)
+					return decoder;
+			}
+		}
+		return TEXT;
+	}
+}
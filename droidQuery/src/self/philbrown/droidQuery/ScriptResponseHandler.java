@@ -62,21 +62,7 @@ public class ScriptResponseHandler implements ResponseHandler<ScriptResponse>
         if (entity == null) 
         	return null;
         
-        ScriptResponse script = new ScriptResponse();
-        script.text = AjaxUtil.toString(entity);
-        //new line characters currently represent a new command. 
-        //Although one file can be all one line, it will be executed as a shell script.
-        //for something else, the first line should contain be: #!<shell>\n, where <shell> points
-        //to the shell that should be used.
-        String[] commands = script.text.split("\n");
-        script.script = new Script(context, commands);
-        try {
-			script.output = script.script.execute();
-		} catch (Throwable t) {
-			//could not execute script
-			script.output = null;
-		}
-        return script;
+        return handleText(AjaxUtil.toString(entity));
 	}
 	
 	public ScriptResponse handleResponse(HttpURLConnection connection) throws ClientProtocolException, IOException
@@ -88,26 +74,49 @@ public class ScriptResponseHandler implements ResponseHandler<ScriptResponse>
         	Log.e("droidQuery", "HTTP Response Error " + statusCode + ":" + connection.getResponseMessage());
         }
 
-        ScriptResponse script = new ScriptResponse();
         InputStream stream = AjaxUtil.getInputStream(connection);
-        script.text = Ajax.parseText(stream);
+        try {
+        	return handleText(AjaxUtil.toString(stream, connection.getContentType(), AjaxUtil.isGzip(connection) ? -1 : connection.getContentLength()));
+		} finally
+		{
+			if (stream != null) 
+			{
+				stream.close();
+			}
+		}
+	}
+	
+	/**
+	 * Reads the given UTF-8 response body as a Script, then executes it
+	 * @param stream the response body. This is not closed.
+	 * @return the Script response
+	 * @throws IOException if the stream cannot be read
+	 */
+	public ScriptResponse handleResponse(InputStream stream) throws IOException
+	{
+		return handleText(AjaxUtil.toString(stream, null, -1));
+	}
+	
+	/**
+	 * Executes the given, already decoded, response body as a Script
+	 * @param text the response body
+	 * @return the Script response
+	 */
+	public ScriptResponse handleText(String text)
+	{
+        ScriptResponse script = new ScriptResponse();
+        script.text = text;
         //new line characters currently represent a new command. 
         //Although one file can be all one line, it will be executed as a shell script.
         //for something else, the first line should contain be: #!<shell>\n, where <shell> points
         //to the shell that should be used.
-        String[] commands = script.text.split("\n");
+        String[] commands = script.text.split("\r?\n");
         script.script = new Script(context, commands);
         try {
 			script.output = script.script.execute();
 		} catch (Throwable t) {
 			//could not execute script
 			script.output = null;
-		} finally
-		{
-			if (stream != null) 
-			{
-				stream.close();
-			}
 		}
         return script;
 	}
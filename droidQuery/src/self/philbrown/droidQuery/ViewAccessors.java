@@ -0,0 +1,512 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.view.View;
+import android.widget.TextView;
+
+import com.nineoldandroids.util.FloatProperty;
+import com.nineoldandroids.view.ViewHelper;
+
+/**
+ * Registry of the getters and setters used to read and write view attributes by name, such as
+ * {@link $#attr(String)}. An accessor is resolved once for each view class and attribute (and value type,
+ * for setters), and reused afterwards. Common attributes ({@code alpha}, {@code visibility}, {@code text},
+ * {@code translationX} and the other transformations) are accessed directly. Other attributes use the
+ * view's <em>get-</em>, <em>is-</em> or <em>set-</em> prefixed method, or the {@link ViewHelper} method
+ * with that name. Attributes that have no accessor are remembered too, so they are not looked up again.
+ * @author Phil Brown
+ */
+public class ViewAccessors
+{
+	/**
+	 * Reads an attribute of a view
+	 */
+	public static interface Getter
+	{
+		/**
+		 * @param view the view
+		 * @return the value of the attribute
+		 * @throws Exception if the attribute could not be read
+		 */
+		public Object get(View view) throws Exception;
+	}
+
+	/**
+	 * Writes an attribute of a view
+	 */
+	public static interface Setter
+	{
+		/**
+		 * @param view the view
+		 * @param value the new value of the attribute
+		 * @throws Exception if the attribute could not be written
+		 */
+		public void set(View view, Object value) throws Exception;
+	}
+
+	/** Cached for attributes that have no getter */
+	private static final Getter NO_GETTER = new Getter() {
+		@Override
+		public Object get(View view) {
+			return null;
+		}
+	};
+	/** Cached for attributes that have no setter */
+	private static final Setter NO_SETTER = new Setter() {
+		@Override
+		public void set(View view, Object value) {
+
+		}
+	};
+
+	/** View transformations, which are read and written through {@link ViewHelper} on all API levels */
+	private static final Map<String, FloatProperty<View>> properties = new HashMap<String, FloatProperty<View>>();
+	static
+	{
+		properties.put("alpha", new FloatProperty<View>("alpha") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setAlpha(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getAlpha(view); }
+		});
+		properties.put("translationX", new FloatProperty<View>("translationX") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setTranslationX(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getTranslationX(view); }
+		});
+		properties.put("translationY", new FloatProperty<View>("translationY") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setTranslationY(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getTranslationY(view); }
+		});
+		properties.put("scaleX", new FloatProperty<View>("scaleX") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setScaleX(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getScaleX(view); }
+		});
+		properties.put("scaleY", new FloatProperty<View>("scaleY") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setScaleY(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getScaleY(view); }
+		});
+		properties.put("rotation", new FloatProperty<View>("rotation") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setRotation(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getRotation(view); }
+		});
+		properties.put("rotationX", new FloatProperty<View>("rotationX") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setRotationX(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getRotationX(view); }
+		});
+		properties.put("rotationY", new FloatProperty<View>("rotationY") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setRotationY(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getRotationY(view); }
+		});
+		properties.put("pivotX", new FloatProperty<View>("pivotX") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setPivotX(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getPivotX(view); }
+		});
+		properties.put("pivotY", new FloatProperty<View>("pivotY") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setPivotY(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getPivotY(view); }
+		});
+		properties.put("x", new FloatProperty<View>("x") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setX(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getX(view); }
+		});
+		properties.put("y", new FloatProperty<View>("y") {
+			@Override
+			public void setValue(View view, float value) { ViewHelper.setY(view, value); }
+			@Override
+			public Float get(View view) { return ViewHelper.getY(view); }
+		});
+	}
+
+	/** Resolved getters, by view class and attribute */
+	private static final Map<Class<?>, Map<String, Getter>> getters = new HashMap<Class<?>, Map<String, Getter>>();
+	/** Resolved setters, by view class, attribute and value type */
+	private static final Map<Class<?>, Map<String, Map<Class<?>, Setter>>> setters = new HashMap<Class<?>, Map<String, Map<Class<?>, Setter>>>();
+	/** Resolved layout parameter fields, by layout parameters class and name */
+	private static final Map<Class<?>, Map<String, Field>> fields = new HashMap<Class<?>, Map<String, Field>>();
+
+	/**
+	 * Constructor
+	 */
+	private ViewAccessors()
+	{
+
+	}
+
+	/**
+	 * Read an attribute of a view
+	 * @param view the view
+	 * @param attribute the name of the attribute, such as {@code alpha} or {@code text}
+	 * @return the value, or {@code null} if the view has no such attribute or it could not be read.
+	 */
+	public static Object get(View view, String attribute)
+	{
+		Getter getter = getter(view.getClass(), attribute);
+		if (getter == null)
+			return null;
+		try
+		{
+			return getter.get(view);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Write an attribute of a view
+	 * @param view the view
+	 * @param attribute the name of the attribute, such as {@code alpha} or {@code text}
+	 * @param value the new value
+	 * @return {@code true} if the attribute was written. {@code false} if the view has no setter for a value
+	 * of this type, or the setter failed.
+	 */
+	public static boolean set(View view, String attribute, Object value)
+	{
+		Setter setter = setter(view.getClass(), attribute, value.getClass());
+		if (setter == null)
+			return false;
+		try
+		{
+			setter.set(view, value);
+			return true;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Get the getter for an attribute
+	 * @param type the view class
+	 * @param attribute the name of the attribute
+	 * @return the getter, or {@code null} if the class has no such attribute.
+	 */
+	public static Getter getter(Class<?> type, String attribute)
+	{
+		synchronized (getters)
+		{
+			Map<String, Getter> byAttribute = getters.get(type);
+			if (byAttribute == null)
+			{
+				byAttribute = new HashMap<String, Getter>();
+				getters.put(type, byAttribute);
+			}
+			Getter getter = byAttribute.get(attribute);
+			if (getter == null)
+			{
+				getter = resolveGetter(type, attribute);
+				byAttribute.put(attribute, getter == null ? NO_GETTER : getter);
+			}
+			return getter == NO_GETTER ? null : getter;
+		}
+	}
+
+	/**
+	 * Get the setter for an attribute
+	 * @param type the view class
+	 * @param attribute the name of the attribute
+	 * @param valueType the class of the values that will be set. Boxed primitives also match setters that
+	 * take the primitive type.
+	 * @return the setter, or {@code null} if the class has no setter for values of this type.
+	 */
+	public static Setter setter(Class<?> type, String attribute, Class<?> valueType)
+	{
+		synchronized (setters)
+		{
+			Map<String, Map<Class<?>, Setter>> byAttribute = setters.get(type);
+			if (byAttribute == null)
+			{
+				byAttribute = new HashMap<String, Map<Class<?>, Setter>>();
+				setters.put(type, byAttribute);
+			}
+			Map<Class<?>, Setter> byValueType = byAttribute.get(attribute);
+			if (byValueType == null)
+			{
+				byValueType = new HashMap<Class<?>, Setter>(2);
+				byAttribute.put(attribute, byValueType);
+			}
+			Setter setter = byValueType.get(valueType);
+			if (setter == null)
+			{
+				setter = resolveSetter(type, attribute, valueType);
+				byValueType.put(valueType, setter == null ? NO_SETTER : setter);
+			}
+			return setter == NO_SETTER ? null : setter;
+		}
+	}
+
+	/**
+	 * Get a view transformation that can be animated without reflection
+	 * @param attribute the name of the attribute, such as {@code alpha} or {@code translationX}
+	 * @return the property, or {@code null} if the attribute is not a view transformation.
+	 */
+	public static FloatProperty<View> property(String attribute)
+	{
+		return properties.get(attribute);
+	}
+
+	/**
+	 * Get a public field of a layout parameters class, such as {@code leftMargin}
+	 * @param type the layout parameters class
+	 * @param name the name of the field
+	 * @return the field, or {@code null} if the class has no such field.
+	 */
+	public static Field layoutField(Class<?> type, String name)
+	{
+		synchronized (fields)
+		{
+			Map<String, Field> byName = fields.get(type);
+			if (byName == null)
+			{
+				byName = new HashMap<String, Field>();
+				fields.put(type, byName);
+			}
+			//classes without the field are cached as null
+			if (byName.containsKey(name))
+				return byName.get(name);
+			Field field;
+			try
+			{
+				field = type.getField(name);
+			}
+			catch (NoSuchFieldException e)
+			{
+				field = null;
+			}
+			byName.put(name, field);
+			return field;
+		}
+	}
+
+	/**
+	 * Find the getter for an attribute
+	 * @param type the view class
+	 * @param attribute the name of the attribute
+	 * @return the getter, or {@code null} if there is none.
+	 */
+	private static Getter resolveGetter(Class<?> type, String attribute)
+	{
+		if (attribute.length() == 0)
+			return null;
+		final FloatProperty<View> property = properties.get(attribute);
+		if (property != null)
+		{
+			return new Getter() {
+				@Override
+				public Object get(View view) {
+					return property.get(view);
+				}
+			};
+		}
+		if (attribute.equals("visibility"))
+		{
+			return new Getter() {
+				@Override
+				public Object get(View view) {
+					return view.getVisibility();
+				}
+			};
+		}
+		if (attribute.equals("text") && TextView.class.isAssignableFrom(type))
+		{
+			return new Getter() {
+				@Override
+				public Object get(View view) {
+					return ((TextView) view).getText();
+				}
+			};
+		}
+		String name = capitalize(attribute);
+		final Method method = method(type, "get" + name);
+		if (method != null)
+		{
+			return new Getter() {
+				@Override
+				public Object get(View view) throws Exception {
+					return method.invoke(view);
+				}
+			};
+		}
+		final Method is = method(type, "is" + name);
+		if (is != null)
+		{
+			return new Getter() {
+				@Override
+				public Object get(View view) throws Exception {
+					return is.invoke(view);
+				}
+			};
+		}
+		final Method helper = method(ViewHelper.class, "get" + name, View.class);
+		if (helper != null)
+		{
+			return new Getter() {
+				@Override
+				public Object get(View view) throws Exception {
+					return helper.invoke(null, view);
+				}
+			};
+		}
+		return null;
+	}
+
+	/**
+	 * Find the setter for an attribute
+	 * @param type the view class
+	 * @param attribute the name of the attribute
+	 * @param valueType the class of the values
+	 * @return the setter, or {@code null} if there is none.
+	 */
+	private static Setter resolveSetter(Class<?> type, String attribute, Class<?> valueType)
+	{
+		if (attribute.length() == 0)
+			return null;
+		Class<?> primitive = primitive(valueType);
+		final FloatProperty<View> property = properties.get(attribute);
+		if (property != null && primitive == float.class)
+		{
+			return new Setter() {
+				@Override
+				public void set(View view, Object value) {
+					property.setValue(view, (Float) value);
+				}
+			};
+		}
+		if (attribute.equals("visibility") && primitive == int.class)
+		{
+			return new Setter() {
+				@Override
+				public void set(View view, Object value) {
+					view.setVisibility((Integer) value);
+				}
+			};
+		}
+		if (attribute.equals("text") && TextView.class.isAssignableFrom(type) && CharSequence.class.isAssignableFrom(valueType))
+		{
+			return new Setter() {
+				@Override
+				public void set(View view, Object value) {
+					((TextView) view).setText((CharSequence) value);
+				}
+			};
+		}
+		String name = "set" + capitalize(attribute);
+		Class<?> parameterType = primitive != null ? primitive : valueType;
+		final Method method = method(type, name, parameterType);
+		if (method != null)
+		{
+			return new Setter() {
+				@Override
+				public void set(View view, Object value) throws Exception {
+					method.invoke(view, value);
+				}
+			};
+		}
+		final Method helper = method(ViewHelper.class, name, View.class, parameterType);
+		if (helper != null)
+		{
+			return new Setter() {
+				@Override
+				public void set(View view, Object value) throws Exception {
+					helper.invoke(null, view, value);
+				}
+			};
+		}
+		return null;
+	}
+
+	/**
+	 * Find a public method
+	 * @param type the class
+	 * @param name the name of the method
+	 * @param parameterTypes the parameter types
+	 * @return the method, or {@code null} if there is none.
+	 */
+	private static Method method(Class<?> type, String name, Class<?>... parameterTypes)
+	{
+		try
+		{
+			return type.getMethod(name, parameterTypes);
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Get the primitive type of a boxed primitive class
+	 * @param type the class
+	 * @return the primitive type, or {@code null} if the class is not a boxed primitive.
+	 */
+	private static Class<?> primitive(Class<?> type)
+	{
+		if (type == Float.class)
+			return float.class;
+		if (type == Integer.class)
+			return int.class;
+		if (type == Boolean.class)
+			return boolean.class;
+		if (type == Double.class)
+			return double.class;
+		if (type == Long.class)
+			return long.class;
+		if (type == Short.class)
+			return short.class;
+		if (type == Byte.class)
+			return byte.class;
+		return null;
+	}
+
+	/**
+	 * Capitalizes the first letter of the given string.
+	 * @param string the string
+	 * @return the string with its first letter capitalized
+	 */
+	private static String capitalize(String string)
+	{
+		return Character.toUpperCase(string.charAt(0)) + string.substring(1);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.view.View;
+
+/**
+ * Reports changes that droidQuery makes to view hierarchies: views added with {@link $#add(View)}, and
+ * attributes set with {@link $#attr(String, Object)} or {@link $#tag(Object)}. This is used by live CSS
+ * style sheets to restyle only the views that changed. Code that adds views or sets attributes without
+ * droidQuery, such as an adapter, can report its changes here too.
+ * @author Phil Brown
+ */
+public class ViewChanges
+{
+	/**
+	 * Receives view hierarchy changes. Called on the thread that made the change, which is normally the UI thread.
+	 */
+	public static interface Listener
+	{
+		/**
+		 * Called after a view is added to a hierarchy
+		 * @param parent the view the subview was added to
+		 * @param child the subview
+		 */
+		public void onViewAdded(View parent, View child);
+
+		/**
+		 * Called after an attribute of a view is set
+		 * @param view the view
+		 * @param attribute the name of the attribute, such as {@code "text"} or {@code "tag"}
+		 */
+		public void onAttributeChanged(View view, String attribute);
+	}
+
+	/** The registered listeners */
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Constructor
+	 */
+	private ViewChanges()
+	{
+
+	}
+
+	/**
+	 * Start receiving changes
+	 * @param listener the listener. Registering the same listener twice has no effect.
+	 */
+	public static void register(Listener listener)
+	{
+		synchronized (listeners)
+		{
+			if (!listeners.contains(listener))
+				listeners.add(listener);
+		}
+	}
+
+	/**
+	 * Stop receiving changes
+	 * @param listener the listener
+	 */
+	public static void unregister(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Report that a view was added to a hierarchy
+	 * @param parent the view the subview was added to
+	 * @param child the subview
+	 */
+	public static void viewAdded(View parent, View child)
+	{
+		for (Listener listener : listeners)
+			listener.onViewAdded(parent, child);
+	}
+
+	/**
+	 * Report that an attribute of a view was set
+	 * @param view the view
+	 * @param attribute the name of the attribute
+	 */
+	public static void attributeChanged(View view, String attribute)
+	{
+		for (Listener listener : listeners)
+			listener.onAttributeChanged(view, attribute);
+	}
+}
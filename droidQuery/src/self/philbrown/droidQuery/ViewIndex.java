@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+
+/**
+ * Optional index of the views in a hierarchy by id, class (including superclasses and interfaces) and
+ * tag. Indexes are only kept for roots that have been {@link #attach(View) attached}, and are built the
+ * first time they are queried. An index is discarded, to be rebuilt by the next query, whenever the window lays out
+ * its views, and when droidQuery adds or removes views or changes tags. Results are always checked
+ * against the views, so a stale entry is never returned.
+ * <br>
+ * This is used by {@link $#id(int)}, {@link $#selectByType(Class)}, {@link $#selectByTag(Object)} and
+ * CSS type and id selectors, and is worthwhile for large layouts that are queried often.
+ * @author Phil Brown
+ * @see $#index()
+ */
+public class ViewIndex
+{
+	/** Look up views by class */
+	private static final int TYPE = 0;
+	/** Look up views by tag */
+	private static final int TAG = 1;
+	/** Look up views by id */
+	private static final int ID = 2;
+
+	/** The index of each attached root */
+	private static final Map<View, ViewIndex> indexes = new WeakHashMap<View, ViewIndex>();
+	/** The types each view class is indexed by */
+	private static final Map<Class<?>, List<Class<?>>> supertypes = new HashMap<Class<?>, List<Class<?>>>();
+
+	/** The root. Weak, since the index is kept in a map keyed by the root. */
+	private final WeakReference<View> root;
+	/** Views by id, in document order */
+	private Map<Integer, List<WeakReference<View>>> ids;
+	/** Views by class, superclass and interface, in document order */
+	private Map<Class<?>, List<WeakReference<View>>> types;
+	/** Views by tag, in document order */
+	private Map<Object, List<WeakReference<View>>> tags;
+	/** Discards the index after each layout */
+	private final ViewTreeObserver.OnGlobalLayoutListener listener = new ViewTreeObserver.OnGlobalLayoutListener() {
+		@Override
+		public void onGlobalLayout() {
+			invalidate();
+		}
+	};
+	/** The observer that {@link #listener} is registered with */
+	private ViewTreeObserver observer;
+
+	/**
+	 * Constructor
+	 * @param root the root of the indexed hierarchy
+	 */
+	private ViewIndex(View root)
+	{
+		this.root = new WeakReference<View>(root);
+		observer = root.getViewTreeObserver();
+		observer.addOnGlobalLayoutListener(listener);
+	}
+
+	/**
+	 * Index the view hierarchy with the given root. Queries of the root or its subviews will use the index.
+	 * @param root the root of the hierarchy
+	 * @return the index
+	 */
+	public static ViewIndex attach(View root)
+	{
+		synchronized (indexes)
+		{
+			ViewIndex index = indexes.get(root);
+			if (index == null)
+			{
+				index = new ViewIndex(root);
+				indexes.put(root, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Stop indexing the view hierarchy with the given root
+	 * @param root the root of the hierarchy
+	 */
+	public static void detach(View root)
+	{
+		ViewIndex index;
+		synchronized (indexes)
+		{
+			index = indexes.remove(root);
+		}
+		if (index != null)
+		{
+			index.invalidate();
+			ViewTreeObserver observer = index.observer;
+			if (observer.isAlive())
+				observer.removeGlobalOnLayoutListener(index.listener);
+		}
+	}
+
+	/**
+	 * Find the index that covers a view
+	 * @param view the view
+	 * @return the index of the view, or of its nearest indexed ancestor. {@code null} if there is none.
+	 */
+	public static ViewIndex find(View view)
+	{
+		synchronized (indexes)
+		{
+			if (indexes.isEmpty())
+				return null;
+			for (Object v = view; v instanceof View; v = ((View) v).getParent())
+			{
+				ViewIndex index = indexes.get(v);
+				if (index != null)
+					return index;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Discard the index that covers a view, if there is one. Call this after changing the hierarchy
+	 * or the ids or tags of its views outside of droidQuery, if the hierarchy is queried before the
+	 * next layout.
+	 * @param view the view
+	 */
+	public static void invalidate(View view)
+	{
+		ViewIndex index = find(view);
+		if (index != null)
+			index.invalidate();
+	}
+
+	/**
+	 * Discard the index. It is rebuilt by the next query.
+	 */
+	public synchronized void invalidate()
+	{
+		ids = null;
+		types = null;
+		tags = null;
+	}
+
+	/**
+	 * Find the first view with an id
+	 * @param scope the view whose hierarchy is searched. Must be covered by this index.
+	 * @param id the id
+	 * @return the first view with the id in document order, or {@code null} if there is none.
+	 */
+	public View findViewById(View scope, int id)
+	{
+		List<View> views = select(scope, ID, Integer.valueOf(id), 1);
+		return views.isEmpty() ? null : views.get(0);
+	}
+
+	/**
+	 * Select the views with an id. Ids are not required to be unique, so there may be more than one.
+	 * @param scope the view whose hierarchy is searched. Must be covered by this index.
+	 * @param id the id
+	 * @return the views with the id, including {@code scope}, in document order
+	 */
+	public List<View> selectById(View scope, int id)
+	{
+		return select(scope, ID, Integer.valueOf(id), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Select the views of a class
+	 * @param scope the view whose hierarchy is searched. Must be covered by this index.
+	 * @param type the class
+	 * @return the instances of the class, including {@code scope}, in document order
+	 */
+	public List<View> selectByType(View scope, Class<?> type)
+	{
+		return select(scope, TYPE, type, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Select the views with a tag
+	 * @param scope the view whose hierarchy is searched. Must be covered by this index.
+	 * @param tag the tag
+	 * @return the views whose tag {@link Object#equals(Object) equals} the given tag, in document order
+	 */
+	public List<View> selectByTag(View scope, Object tag)
+	{
+		return select(scope, TAG, tag, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Look up views in the index, building it first if needed
+	 * @param scope the view whose hierarchy is searched
+	 * @param kind {@link #TYPE}, {@link #TAG} or {@link #ID}
+	 * @param key the id, type or tag
+	 * @param limit the maximum number of views to return
+	 * @return the views, checked against their current id, class, tag and position
+	 */
+	private List<View> select(View scope, int kind, Object key, int limit)
+	{
+		List<WeakReference<View>> entries;
+		synchronized (this)
+		{
+			if (ids == null)
+				build();
+			if (kind == TYPE)
+				entries = types.get(key);
+			else if (kind == TAG)
+				entries = tags.get(key);
+			else
+				entries = ids.get(key);
+		}
+		List<View> views = new ArrayList<View>();
+		if (entries == null)
+			return views;
+		for (int i = 0; i < entries.size() && views.size() < limit; i++)
+		{
+			View view = entries.get(i).get();
+			if (view == null || !isWithin(view, scope))
+				continue;
+			if (kind == TYPE ? ((Class<?>) key).isInstance(view) : kind == TAG ? key.equals(view.getTag()) : view.getId() == ((Integer) key).intValue())
+				views.add(view);
+		}
+		return views;
+	}
+
+	/**
+	 * Build the index
+	 */
+	private void build()
+	{
+		ids = new HashMap<Integer, List<WeakReference<View>>>();
+		types = new HashMap<Class<?>, List<WeakReference<View>>>();
+		tags = new HashMap<Object, List<WeakReference<View>>>();
+		View root = this.root.get();
+		if (root == null)
+			return;
+		ViewTraversal.traverse(root, new ViewTraversal.Visitor() {
+			@Override
+			public int visit(View view) {
+				WeakReference<View> reference = new WeakReference<View>(view);
+				if (view.getId() != View.NO_ID)
+					add(ids, Integer.valueOf(view.getId()), reference);
+				if (view.getTag() != null)
+					add(tags, view.getTag(), reference);
+				for (Class<?> type : supertypes(view.getClass()))
+					add(types, type, reference);
+				return ViewTraversal.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Get the classes and interfaces a view class can be selected by. Results are cached.
+	 * @param clazz the view class
+	 * @return the class, its superclasses below {@code Object}, and every interface they implement, each once
+	 */
+	private static List<Class<?>> supertypes(Class<?> clazz)
+	{
+		synchronized (supertypes)
+		{
+			List<Class<?>> types = supertypes.get(clazz);
+			if (types != null)
+				return types;
+		}
+		Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+		for (Class<?> type = clazz; type != null && type != Object.class; type = type.getSuperclass())
+		{
+			types.add(type);
+			addInterfaces(type, types);
+		}
+		List<Class<?>> list = new ArrayList<Class<?>>(types);
+		synchronized (supertypes)
+		{
+			supertypes.put(clazz, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Add the interfaces a type implements, including the interfaces they extend
+	 * @param type the class or interface
+	 * @param types receives the interfaces
+	 */
+	private static void addInterfaces(Class<?> type, Set<Class<?>> types)
+	{
+		for (Class<?> i : type.getInterfaces())
+		{
+			if (types.add(i))
+				addInterfaces(i, types);
+		}
+	}
+
+	/**
+	 * Add a view to an index map
+	 * @param map the map
+	 * @param key the key
+	 * @param view the view
+	 */
+	private static <K> void add(Map<K, List<WeakReference<View>>> map, K key, WeakReference<View> view)
+	{
+		List<WeakReference<View>> views = map.get(key);
+		if (views == null)
+		{
+			views = new ArrayList<WeakReference<View>>(1);
+			map.put(key, views);
+		}
+		views.add(view);
+	}
+
+	/**
+	 * Checks whether a view is in the hierarchy with the given root
+	 * @param view the view
+	 * @param root the root
+	 * @return {@code true} if {@code view} is {@code root} or one of its subviews. Otherwise {@code false}.
+	 */
+	private static boolean isWithin(View view, View root)
+	{
+		if (root == null)
+			return false;
+		for (ViewParent parent = view.getParent(); view != root; parent = parent.getParent())
+		{
+			if (!(parent instanceof View))
+				return false;
+			view = (View) parent;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Iterative, depth-first traversal of view hierarchies, in document order (each view before its subviews).
+ * The traversal keeps its own stack instead of recursing, and reuses that stack between traversals on
+ * the same thread, so walking a hierarchy does not allocate. This is shared by the {@code select}
+ * methods of {@link $} and by CSS selectors.
+ * @author Phil Brown
+ */
+public class ViewTraversal
+{
+	/** Returned by a {@link Visitor} to continue with the subviews of the visited view */
+	public static final int CONTINUE = 0;
+	/** Returned by a {@link Visitor} to skip the subviews of the visited view */
+	public static final int SKIP_CHILDREN = 1;
+	/** Returned by a {@link Visitor} to end the traversal */
+	public static final int STOP = 2;
+
+	/**
+	 * Visits each view of a traversal
+	 */
+	public static interface Visitor
+	{
+		/**
+		 * Visit a view
+		 * @param view the view
+		 * @return {@link ViewTraversal#CONTINUE}, {@link ViewTraversal#SKIP_CHILDREN} or {@link ViewTraversal#STOP}
+		 */
+		public int visit(View view);
+	}
+
+	/**
+	 * Selects views during a traversal
+	 */
+	public static interface Filter
+	{
+		/**
+		 * Checks whether a view should be selected
+		 * @param view the view
+		 * @return {@code true} to select the view. Otherwise {@code false}.
+		 */
+		public boolean matches(View view);
+	}
+
+	/** The idle traversal of each thread */
+	private static final ThreadLocal<ViewTraversal> traversals = new ThreadLocal<ViewTraversal>() {
+		@Override
+		protected ViewTraversal initialValue() {
+			return new ViewTraversal();
+		}
+	};
+
+	/** The view groups whose subviews are being traversed, outermost first */
+	private ViewGroup[] groups = new ViewGroup[16];
+	/** The index of the next subview to visit in each of {@link #groups} */
+	private int[] next = new int[16];
+	/** {@code true} while this traversal is running. A visitor that starts another traversal gets a new one. */
+	private boolean busy;
+
+	/**
+	 * Constructor
+	 */
+	private ViewTraversal()
+	{
+
+	}
+
+	/**
+	 * Visit a view and its subviews
+	 * @param root the root of the hierarchy
+	 * @param visitor visits each view
+	 * @return {@code false} if the visitor {@link #STOP stopped} the traversal. Otherwise {@code true}.
+	 */
+	public static boolean traverse(View root, Visitor visitor)
+	{
+		ViewTraversal traversal = traversals.get();
+		if (traversal.busy)
+			traversal = new ViewTraversal();
+		traversal.busy = true;
+		try
+		{
+			return traversal.run(root, visitor);
+		}
+		finally
+		{
+			traversal.busy = false;
+		}
+	}
+
+	/**
+	 * Add the matching views of a hierarchy to a list
+	 * @param root the root of the hierarchy, which may itself be selected
+	 * @param filter selects views
+	 * @param selection receives the matching views, in document order
+	 * @return {@code selection}
+	 */
+	public static List<View> collect(View root, final Filter filter, final List<View> selection)
+	{
+		traverse(root, new Visitor() {
+			@Override
+			public int visit(View view) {
+				if (filter.matches(view))
+					selection.add(view);
+				return CONTINUE;
+			}
+		});
+		return selection;
+	}
+
+	/**
+	 * Add the matching views of several hierarchies to a list. A view in more than one of the hierarchies
+	 * is only added once.
+	 * @param roots the roots of the hierarchies
+	 * @param filter selects views
+	 * @param selection receives the matching views
+	 * @return {@code selection}
+	 */
+	public static List<View> collect(List<View> roots, final Filter filter, final List<View> selection)
+	{
+		if (roots.size() == 1)
+			return collect(roots.get(0), filter, selection);
+		final Set<View> selected = new HashSet<View>();
+		Visitor visitor = new Visitor() {
+			@Override
+			public int visit(View view) {
+				if (filter.matches(view) && selected.add(view))
+					selection.add(view);
+				return CONTINUE;
+			}
+		};
+		for (int i = 0; i < roots.size(); i++)
+		{
+			traverse(roots.get(i), visitor);
+		}
+		return selection;
+	}
+
+	/**
+	 * Find the first matching view of a hierarchy, in document order. The traversal stops at that view.
+	 * @param root the root of the hierarchy, which may itself be selected
+	 * @param filter selects views
+	 * @return the first matching view, or {@code null} if no view matched.
+	 */
+	public static View first(View root, final Filter filter)
+	{
+		final View[] found = new View[1];
+		traverse(root, new Visitor() {
+			@Override
+			public int visit(View view) {
+				if (filter.matches(view))
+				{
+					found[0] = view;
+					return STOP;
+				}
+				return CONTINUE;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Run this traversal
+	 * @param root the root of the hierarchy
+	 * @param visitor visits each view
+	 * @return {@code false} if the visitor stopped the traversal. Otherwise {@code true}.
+	 */
+	private boolean run(View root, Visitor visitor)
+	{
+		int result = visitor.visit(root);
+		if (result == STOP)
+			return false;
+		if (result == SKIP_CHILDREN || !(root instanceof ViewGroup))
+			return true;
+		int depth = 0;
+		push(depth++, (ViewGroup) root);
+		try
+		{
+			while (depth > 0)
+			{
+				ViewGroup group = groups[depth - 1];
+				int index = next[depth - 1];
+				if (index >= group.getChildCount())
+				{
+					depth--;
+					continue;
+				}
+				next[depth - 1] = index + 1;
+				View child = group.getChildAt(index);
+				result = visitor.visit(child);
+				if (result == STOP)
+					return false;
+				if (result == CONTINUE && child instanceof ViewGroup)
+					push(depth++, (ViewGroup) child);
+			}
+			return true;
+		}
+		finally
+		{
+			//do not keep views alive after the traversal
+			for (int i = 0; i < groups.length && groups[i] != null; i++)
+				groups[i] = null;
+		}
+	}
+
+	/**
+	 * Push a view group onto the stack, growing the stack if needed
+	 * @param depth the stack position
+	 * @param group the view group whose subviews will be visited next
+	 */
+	private void push(int depth, ViewGroup group)
+	{
+		if (depth == groups.length)
+		{
+			ViewGroup[] groups = new ViewGroup[depth * 2];
+			System.arraycopy(this.groups, 0, groups, 0, depth);
+			this.groups = groups;
+			int[] next = new int[depth * 2];
+			System.arraycopy(this.next, 0, next, 0, depth);
+			this.next = next;
+		}
+		groups[depth] = group;
+		next[depth] = 0;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidQuery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Pools of pre-configured XML parsers. Looking up a parser factory and creating a parser is much slower
+ * than parsing a small document, so parsers are borrowed from a small pool, and returned to it with
+ * {@link #release(DocumentBuilder)}, {@link #release(SAXParser)} or {@link #release(XmlPullParser)} once
+ * the document has been parsed. A parser must not be used after it has been released.
+ * @author Phil Brown
+ */
+public class XMLParsers
+{
+	/**
+	 * Receives the elements of an XML response as it is streamed, without building a Document.
+	 * @see AjaxOptions#xmlPullHandler(XMLPullHandler)
+	 */
+	public interface XMLPullHandler
+	{
+		/**
+		 * Called for each start tag in the response, on the request's background thread. The handler may
+		 * read the element's attributes and content from the parser, for example with {@link XmlPullParser#nextText()}.
+		 * @param parser the parser, positioned on the element's {@link XmlPullParser#START_TAG}
+		 * @return {@code true} to continue parsing, or {@code false} to stop.
+		 * @throws XmlPullParserException if the element is malformed
+		 * @throws IOException if the response cannot be read
+		 */
+		public boolean onElement(XmlPullParser parser) throws XmlPullParserException, IOException;
+	}
+
+	/** The most idle parsers of each kind that are kept for reuse */
+	private static final int MAX_POOL_SIZE = 4;
+
+	/** Shared Document Builder Factory. Only used while synchronized on itself. */
+	private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+	/** Shared SAX Parser Factory. Only used while synchronized on itself. */
+	private static final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+
+	/** Idle Document Builders. Only used while synchronized on itself. */
+	private static final Deque<DocumentBuilder> documentBuilders = new ArrayDeque<DocumentBuilder>();
+	/** Idle SAX Parsers. Only used while synchronized on itself. */
+	private static final Deque<SAXParser> saxParsers = new ArrayDeque<SAXParser>();
+	/** Idle pull parsers. Only used while synchronized on itself. */
+	private static final Deque<XmlPullParser> pullParsers = new ArrayDeque<XmlPullParser>();
+
+	/**
+	 * Constructor
+	 */
+	private XMLParsers()
+	{
+
+	}
+
+	/**
+	 * Borrow a Document Builder. It must not be shared with other threads, and should be returned
+	 * with {@link #release(DocumentBuilder)}.
+	 * @return the builder, in its initial configuration
+	 * @throws ParserConfigurationException if the builder cannot be created
+	 */
+	public static DocumentBuilder documentBuilder() throws ParserConfigurationException
+	{
+		synchronized(documentBuilders)
+		{
+			DocumentBuilder builder = documentBuilders.poll();
+			if (builder != null)
+				return builder;
+		}
+		synchronized(documentBuilderFactory)
+		{
+			return documentBuilderFactory.newDocumentBuilder();
+		}
+	}
+
+	/**
+	 * Return a Document Builder to the pool
+	 * @param builder the builder, from {@link #documentBuilder()}. May be {@code null}.
+	 */
+	public static void release(DocumentBuilder builder)
+	{
+		if (builder == null)
+			return;
+		builder.reset();
+		synchronized(documentBuilders)
+		{
+			if (documentBuilders.size() < MAX_POOL_SIZE)
+				documentBuilders.push(builder);
+		}
+	}
+
+	/**
+	 * Borrow a SAX Parser, with namespace prefixes reported as attributes. It must not be shared
+	 * with other threads, and should be returned with {@link #release(SAXParser)}.
+	 * @return the parser, in its initial configuration
+	 * @throws ParserConfigurationException if the parser cannot be created
+	 * @throws SAXException if the parser cannot be configured
+	 */
+	public static SAXParser saxParser() throws ParserConfigurationException, SAXException
+	{
+		synchronized(saxParsers)
+		{
+			SAXParser parser = saxParsers.poll();
+			if (parser != null)
+				return parser;
+		}
+		synchronized(saxParserFactory)
+		{
+			saxParserFactory.setFeature("http://xml.org/sax/features/namespaces", false);
+			saxParserFactory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+			return saxParserFactory.newSAXParser();
+		}
+	}
+
+	/**
+	 * Return a SAX Parser to the pool. Resetting the parser drops its content handler.
+	 * @param parser the parser, from {@link #saxParser()}. May be {@code null}.
+	 */
+	public static void release(SAXParser parser)
+	{
+		if (parser == null)
+			return;
+		parser.reset();
+		synchronized(saxParsers)
+		{
+			if (saxParsers.size() < MAX_POOL_SIZE)
+				saxParsers.push(parser);
+		}
+	}
+
+	/**
+	 * Borrow a pull parser, reading from the given stream. It must not be shared with other threads,
+	 * and should be returned with {@link #release(XmlPullParser)}.
+	 * @param stream the XML to read
+	 * @param encoding the encoding of the stream, or {@code null} to detect it from the XML declaration.
+	 * @return the parser, positioned before the start of the document
+	 * @throws XmlPullParserException if the stream cannot be read
+	 */
+	public static XmlPullParser pullParser(InputStream stream, String encoding) throws XmlPullParserException
+	{
+		XmlPullParser parser;
+		synchronized(pullParsers)
+		{
+			parser = pullParsers.poll();
+		}
+		if (parser == null)
+			parser = Xml.newPullParser();
+		//setting the input resets the parser
+		parser.setInput(stream, encoding);
+		return parser;
+	}
+
+	/**
+	 * Return a pull parser to the pool. Its input is dropped, so that the pool does not hold on to
+	 * the stream or its buffers.
+	 * @param parser the parser, from {@link #pullParser(InputStream, String)}. May be {@code null}.
+	 */
+	public static void release(XmlPullParser parser)
+	{
+		if (parser == null)
+			return;
+		try
+		{
+			parser.setInput((Reader) null);
+		}
+		catch (XmlPullParserException e)
+		{
+			//the parser cannot be reset, so it is not reused
+			return;
+		}
+		synchronized(pullParsers)
+		{
+			if (pullParsers.size() < MAX_POOL_SIZE)
+				pullParsers.push(parser);
+		}
+	}
+
+	/**
+	 * Stream the given XML to a pull handler. No Document is built.
+	 * @param stream the XML to read. This is not closed.
+	 * @param encoding the encoding of the stream, or {@code null} to detect it from the XML declaration.
+	 * @param handler receives each element
+	 * @throws XmlPullParserException if the XML is malformed
+	 * @throws IOException if the stream cannot be read
+	 */
+	public static void pull(InputStream stream, String encoding, XMLPullHandler handler) throws XmlPullParserException, IOException
+	{
+		XmlPullParser parser = pullParser(stream, encoding);
+		try
+		{
+			int event = parser.getEventType();
+			while (event != XmlPullParser.END_DOCUMENT)
+			{
+				if (event == XmlPullParser.START_TAG && !handler.onElement(parser))
+					break;
+				event = parser.next();
+			}
+		}
+		finally
+		{
+			release(parser);
+		}
+	}
+}
@@ -20,7 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.http.HttpEntity;
@@ -56,9 +56,10 @@ public class XMLResponseHandler implements ResponseHandler<Document>
         if (entity == null)
         	return null;
         
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder builder = null;
 		try {
-			return factory.newDocumentBuilder().parse(AjaxUtil.getInputStream(entity));
+			builder = XMLParsers.documentBuilder();
+			return builder.parse(AjaxUtil.getInputStream(entity));
 		} catch (IllegalStateException e) {
 			throw e;
 		} catch (SAXException e) {
@@ -67,6 +68,8 @@ public class XMLResponseHandler implements ResponseHandler<Document>
 			throw new IOException();
 		} catch (NullPointerException e)  {
         	return null;
+        } finally {
+        	XMLParsers.release(builder);
         }
 	}
 	
@@ -79,11 +82,28 @@ public class XMLResponseHandler implements ResponseHandler<Document>
         	Log.e("droidQuery", "HTTP Response Error " + statusCode + ":" + connection.getResponseMessage());
         }
 
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 		InputStream is = null;
 		try {
 			is = AjaxUtil.getInputStream(connection);
-			return factory.newDocumentBuilder().parse(is);
+			return handleResponse(is);
+		} finally {
+        	if (is != null)
+        		is.close();
+        }
+	}
+	
+	/**
+	 * Parses the given response body as an XML Document
+	 * @param stream the response body. This is not closed.
+	 * @return the Document
+	 * @throws IOException if the stream cannot be read, or the XML is malformed.
+	 */
+	public Document handleResponse(InputStream stream) throws IOException
+	{
+		DocumentBuilder builder = null;
+		try {
+			builder = XMLParsers.documentBuilder();
+			return builder.parse(stream);
 		} catch (IllegalStateException e) {
 			throw e;
 		} catch (SAXException e) {
@@ -93,8 +113,7 @@ public class XMLResponseHandler implements ResponseHandler<Document>
 		} catch (NullPointerException e)  {
         	return null;
         } finally {
-        	if (is != null)
-        		is.close();
+        	XMLParsers.release(builder);
         }
 	}
 
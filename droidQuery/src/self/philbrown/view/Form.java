@@ -20,8 +20,8 @@ import java.lang.reflect.Method;
 import java.net.URLEncoder;
 import java.util.Locale;
 
-import self.philbrown.droidQuery.$;
 import self.philbrown.droidQuery.R;
+import self.philbrown.droidQuery.ViewAccessors;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.util.AttributeSet;
@@ -213,7 +213,7 @@ public class Form extends LinearLayout
 			if (getter == null)
 				continue;
 			boolean inputIsRequired = requiredFields.get(i);
-			Object o = $.with(getChildAt(i)).attr(getter);
+			Object o = ViewAccessors.get(getChildAt(i), getter);
 			if (o == null)
 			{
 				if (inputIsRequired)
@@ -310,7 +310,7 @@ public class Form extends LinearLayout
 			String getter = getterFields.get(i);
 			if (getter == null)
 				continue;
-			Object o = $.with(getChildAt(i)).attr(getter);
+			Object o = ViewAccessors.get(getChildAt(i), getter);
 			if (o == null)
 			{
 				continue;